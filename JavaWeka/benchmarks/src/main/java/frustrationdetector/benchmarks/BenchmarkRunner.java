@@ -0,0 +1,46 @@
+/**
+ * Entry point of the benchmarks jar
+ * Takes the usual JMH command line (benchmark regexps, -p model=J48, -f, -wi, -i, ...) and always
+ * adds the allocation profiler (-prof gc), so every run reports the allocation rate next to the time.
+ * Run it from the JavaWeka folder, where the models and data folders are:
+ *     java -jar benchmarks/target/benchmarks.jar [ClassifyInstance] [-p model=RandomForest]
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+public class BenchmarkRunner {
+
+    public static void main(String[] args) {
+        try {
+            CommandLineOptions commandLine = new CommandLineOptions(args);
+            if (commandLine.shouldHelp()) {
+                commandLine.showHelp();
+                return;
+            }
+            ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+            boolean gcProfiler = false;
+            for (ProfilerConfig profiler : commandLine.getProfilers()) {
+                gcProfiler |= profiler.getKlass().equals("gc") || profiler.getKlass().equals(GCProfiler.class.getName());
+            }
+            if (!gcProfiler) {
+                options.addProfiler(GCProfiler.class);
+            }
+            Runner runner = new Runner(options.build());
+            if (commandLine.shouldList()) {
+                runner.list();
+            } else {
+                runner.run();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Cost of the bootstrap confidence intervals of ModelPredictionCI: re-classifying every resample
+ * (bootstrapAUC) against bootstrapping over predictions cached once (-predict-once)
+ * The number of resamples and worker threads are parameters too (-p numBootstrapSamples=1000).
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector.benchmarks;
+
+import frustrationdetector.BootstrapEngine;
+import frustrationdetector.DatasetCatalog;
+import frustrationdetector.ModelInspector;
+import frustrationdetector.PredictionCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+public class BootstrapBenchmark {
+
+    @Param({"CostSensitive_BN", "CostSensitive_NB", "J48", "RandomForest", "KNN", "BN", "NB"})
+    public String model;
+
+    @Param({"TEST-UTAS-FINAL-424", "TEST-EmoDetect-FINAL-300"})
+    public String dataset;
+
+    @Param({"100"})
+    public int numBootstrapSamples;
+
+    @Param({"1"})
+    public int numThreads;
+
+    private Classifier classifier;
+    private Instances data;
+    private BootstrapEngine bootstrap;
+
+    @Setup
+    public void setUp() throws Exception {
+        classifier = (Classifier) SerializationHelper.read(ModelInspector.modelPath(model));
+        data = DatasetCatalog.load(DatasetCatalog.path(dataset));
+        bootstrap = new BootstrapEngine();
+        bootstrap.setNumBootstrapSamples(numBootstrapSamples);
+        bootstrap.setNumThreads(numThreads);
+    }
+
+    @Benchmark
+    public Object resample() throws Exception {
+        return bootstrap.bootstrapAUC(classifier, data);
+    }
+
+    // Includes the one prediction pass over the dataset
+    @Benchmark
+    public Object predictOnce() throws Exception {
+        return bootstrap.bootstrapCached(PredictionCache.predict(classifier, data));
+    }
+}
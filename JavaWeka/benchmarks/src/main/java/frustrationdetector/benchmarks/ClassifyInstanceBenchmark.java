@@ -0,0 +1,82 @@
+/**
+ * Latency of scoring one row: Classifier.classifyInstance on the deserialized model, as
+ * ModelPrediction does, and the compiled scorer of the same model. Every call takes the next row
+ * of the dataset, so the numbers average over the whole test set.
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector.benchmarks;
+
+import frustrationdetector.CompiledScorer;
+import frustrationdetector.DatasetCatalog;
+import frustrationdetector.FrustrationFeatures;
+import frustrationdetector.ModelCompiler;
+import frustrationdetector.ModelInspector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ClassifyInstanceBenchmark {
+
+    @Param({"CostSensitive_BN", "CostSensitive_NB", "J48", "RandomForest", "KNN", "BN", "NB"})
+    public String model;
+
+    @Param({"TEST-UTAS-FINAL-424", "TEST-EmoDetect-FINAL-300"})
+    public String dataset;
+
+    private Classifier classifier;
+    private CompiledScorer scorer;
+    private Instances data;
+    private double[][] rows;
+    private double[] distribution;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        String modelPath = ModelInspector.modelPath(model);
+        classifier = (Classifier) SerializationHelper.read(modelPath);
+        scorer = ModelCompiler.compile((Classifier) SerializationHelper.read(modelPath));
+        data = DatasetCatalog.load(DatasetCatalog.path(dataset));
+        rows = new double[data.numInstances()][FrustrationFeatures.NUM_FEATURES];
+        for (int i = 0; i < rows.length; i++) {
+            FrustrationFeatures.toFeatures(data.instance(i), rows[i]);
+        }
+        distribution = new double[scorer.numClasses()];
+    }
+
+    private int nextRow() {
+        int row = next;
+        next = row + 1 == rows.length ? 0 : row + 1;
+        return row;
+    }
+
+    @Benchmark
+    public double classifyInstance() throws Exception {
+        return classifier.classifyInstance(data.instance(nextRow()));
+    }
+
+    @Benchmark
+    public double[] compiledDistribution() {
+        scorer.distribution(rows[nextRow()], distribution);
+        return distribution;
+    }
+}
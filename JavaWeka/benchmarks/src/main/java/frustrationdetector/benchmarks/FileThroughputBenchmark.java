@@ -0,0 +1,86 @@
+/**
+ * Time to score a whole test file: classifyInstance over every row (ModelPrediction), a full
+ * Evaluation.evaluateModel pass (ModelPredictionCI) and one batch call of the compiled scorer
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector.benchmarks;
+
+import frustrationdetector.CompiledScorer;
+import frustrationdetector.DatasetCatalog;
+import frustrationdetector.FrustrationFeatures;
+import frustrationdetector.ModelCompiler;
+import frustrationdetector.ModelInspector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.classifiers.Classifier;
+import weka.classifiers.evaluation.Evaluation;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FileThroughputBenchmark {
+
+    @Param({"CostSensitive_BN", "CostSensitive_NB", "J48", "RandomForest", "KNN", "BN", "NB"})
+    public String model;
+
+    @Param({"TEST-UTAS-FINAL-424", "TEST-EmoDetect-FINAL-300"})
+    public String dataset;
+
+    private Classifier classifier;
+    private CompiledScorer scorer;
+    private Instances data;
+    private double[][] rows;
+    private double[][] distributions;
+
+    @Setup
+    public void setUp() throws Exception {
+        String modelPath = ModelInspector.modelPath(model);
+        classifier = (Classifier) SerializationHelper.read(modelPath);
+        scorer = ModelCompiler.compile((Classifier) SerializationHelper.read(modelPath));
+        data = DatasetCatalog.load(DatasetCatalog.path(dataset));
+        rows = new double[data.numInstances()][FrustrationFeatures.NUM_FEATURES];
+        for (int i = 0; i < rows.length; i++) {
+            FrustrationFeatures.toFeatures(data.instance(i), rows[i]);
+        }
+        distributions = new double[rows.length][scorer.numClasses()];
+    }
+
+    @Benchmark
+    public double classifyFile() throws Exception {
+        double sum = 0.0;
+        for (int i = 0; i < data.numInstances(); i++) {
+            sum += classifier.classifyInstance(data.instance(i));
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public Evaluation evaluateFile() throws Exception {
+        Evaluation evaluation = new Evaluation(data);
+        evaluation.evaluateModel(classifier, data);
+        return evaluation;
+    }
+
+    @Benchmark
+    public double[][] compiledBatch() {
+        scorer.distributions(rows, rows.length, distributions);
+        return distributions;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Cold-start cost of each model in models/: SerializationHelper.read of the serialized Weka model
+ * against ModelFile.load of the same model exported to the binary format
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector.benchmarks;
+
+import frustrationdetector.CompiledScorer;
+import frustrationdetector.ModelCompiler;
+import frustrationdetector.ModelFile;
+import frustrationdetector.ModelInspector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.classifiers.Classifier;
+import weka.core.SerializationHelper;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ModelLoadBenchmark {
+
+    @Param({"CostSensitive_BN", "CostSensitive_NB", "J48", "RandomForest", "KNN", "BN", "NB"})
+    public String model;
+
+    private String modelPath;
+    private Path binaryPath;
+
+    @Setup
+    public void setUp() throws Exception {
+        modelPath = ModelInspector.modelPath(model);
+        binaryPath = Files.createTempFile("benchmark-" + model, ModelFile.EXTENSION);
+        ModelFile.write(ModelCompiler.compile((Classifier) SerializationHelper.read(modelPath)), binaryPath);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(binaryPath);
+    }
+
+    @Benchmark
+    public Object deserialize() throws Exception {
+        return SerializationHelper.read(modelPath);
+    }
+
+    @Benchmark
+    public CompiledScorer mappedLoad() throws Exception {
+        return ModelFile.load(binaryPath);
+    }
+}
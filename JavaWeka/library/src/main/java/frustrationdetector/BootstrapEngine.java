@@ -0,0 +1,254 @@
+/**
+ * Parallel, seeded bootstrap engine for the AUC confidence intervals
+ * (shared by ModelPredictionCI and ModelTraining)
+ * The bootstrap rounds are spread across a fork-join pool or a supplied executor.
+ * Every round draws from its own split of one SplittableRandom, so a fixed seed
+ * gives the same intervals no matter how many threads run the rounds.
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.evaluation.Evaluation;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BootstrapEngine {
+
+    public static final int DEFAULT_NUM_BOOTSTRAP_SAMPLES = 1000;
+    public static final double DEFAULT_CONFIDENCE_LEVEL = 0.95;
+    public static final long DEFAULT_SEED = 1L;
+
+    /** One bootstrap round: fills out[] with the statistics computed on the round's resample. */
+    public interface Round {
+        void run(int round, SplittableRandom random, double[] out) throws Exception;
+    }
+
+    /** Creates the per-worker state (classifier copy, scratch buffers) for a round function. */
+    public interface RoundFactory {
+        Round newRound() throws Exception;
+    }
+
+    private int numBootstrapSamples = DEFAULT_NUM_BOOTSTRAP_SAMPLES;
+    private double confidenceLevel = DEFAULT_CONFIDENCE_LEVEL;
+    private long seed = DEFAULT_SEED;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService executor;
+
+    public int getNumBootstrapSamples() {
+        return numBootstrapSamples;
+    }
+
+    public void setNumBootstrapSamples(int numBootstrapSamples) {
+        if (numBootstrapSamples < 2) {
+            throw new IllegalArgumentException("Number of bootstrap samples must be at least 2, got " + numBootstrapSamples);
+        }
+        this.numBootstrapSamples = numBootstrapSamples;
+    }
+
+    public double getConfidenceLevel() {
+        return confidenceLevel;
+    }
+
+    public void setConfidenceLevel(double confidenceLevel) {
+        if (confidenceLevel <= 0.0 || confidenceLevel >= 1.0) {
+            throw new IllegalArgumentException("Confidence level must be in (0, 1), got " + confidenceLevel);
+        }
+        this.confidenceLevel = confidenceLevel;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    // Run the rounds on a caller-owned executor instead of a private fork-join pool
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /*
+     * Parse the bootstrap options, Weka style:
+     * -B <number of bootstrap samples>  -C <confidence level>  -S <seed>  -num-slots <threads>
+     */
+    public void setOptions(String[] options) throws Exception {
+        String samples = Utils.getOption('B', options);
+        if (samples.length() > 0) {
+            setNumBootstrapSamples(Integer.parseInt(samples));
+        }
+        String confidence = Utils.getOption('C', options);
+        if (confidence.length() > 0) {
+            setConfidenceLevel(Double.parseDouble(confidence));
+        }
+        String seedOption = Utils.getOption('S', options);
+        if (seedOption.length() > 0) {
+            setSeed(Long.parseLong(seedOption));
+        }
+        String slots = Utils.getOption("num-slots", options);
+        if (slots.length() > 0) {
+            setNumThreads(Integer.parseInt(slots));
+        }
+    }
+
+    public String[] getOptions() {
+        return new String[] {
+            "-B", String.valueOf(numBootstrapSamples),
+            "-C", String.valueOf(confidenceLevel),
+            "-S", String.valueOf(seed),
+            "-num-slots", String.valueOf(numThreads)
+        };
+    }
+
+    /*
+     * Bootstrap the class-averaged AUC of a classifier: each round resamples the data with
+     * replacement and re-evaluates the model, exactly as the original sequential loop did.
+     * Every worker scores with its own copy of the classifier.
+     */
+    public ConfidenceInterval bootstrapAUC(Classifier classifier, Instances inputData) throws Exception {
+        int numClasses = inputData.numClasses();
+        double[][] statistics = run(1, () -> {
+            Classifier workerClassifier = numThreads == 1 ? classifier : AbstractClassifier.makeCopy(classifier);
+            return (round, random, out) -> {
+                Instances resampledData = inputData.resample(new Random(random.nextLong()));
+                Evaluation resampledEvaluation = new Evaluation(resampledData);
+                resampledEvaluation.evaluateModel(workerClassifier, resampledData);
+                out[0] = averageAUC(resampledEvaluation, numClasses);
+            };
+        });
+        return ConfidenceInterval.fromSamples(statistics[0], confidenceLevel);
+    }
+
+    /*
+     * Predict-once bootstrap: each round draws index multiplicities over the cached predictions
+     * and computes the rank-based AUC, Cohen's Kappa and weighted F-Measure directly from them.
+     */
+    public BootstrapReport bootstrapCached(PredictionCache cache) throws Exception {
+        int numClasses = cache.numClasses();
+        double[][] statistics = run(3, () -> {
+            int[] counts = new int[cache.numInstances()];
+            double[] confusion = new double[numClasses * numClasses];
+            return (round, random, out) -> {
+                cache.drawCounts(random, counts);
+                out[0] = cache.averageAUC(counts);
+                double totalInstances = cache.confusionMatrix(counts, confusion);
+                out[1] = ClassificationMetrics.kappa(confusion, numClasses, totalInstances);
+                out[2] = ClassificationMetrics.weightedFMeasure(confusion, numClasses);
+            };
+        });
+        return new BootstrapReport(
+            ConfidenceInterval.fromSamples(statistics[0], confidenceLevel),
+            ConfidenceInterval.fromSamples(statistics[1], confidenceLevel),
+            ConfidenceInterval.fromSamples(statistics[2], confidenceLevel));
+    }
+
+    /*
+     * Paired bootstrap over several models scored on the same dataset: each round draws one set
+     * of index multiplicities and evaluates every model's cached predictions on it.
+     * Returns auc[model][round].
+     */
+    public double[][] bootstrapPairedAUC(PredictionCache[] caches) throws Exception {
+        for (PredictionCache cache : caches) {
+            if (!cache.hasSameLabels(caches[0])) {
+                throw new IllegalArgumentException("Paired bootstrap needs every model scored on the same instances");
+            }
+        }
+        return run(caches.length, () -> {
+            int[] counts = new int[caches[0].numInstances()];
+            return (round, random, out) -> {
+                caches[0].drawCounts(random, counts);
+                for (int m = 0; m < caches.length; m++) {
+                    out[m] = caches[m].averageAUC(counts);
+                }
+            };
+        });
+    }
+
+    /*
+     * Run numBootstrapSamples rounds and return statistics[statistic][round].
+     * The per-round random streams are split from the seed up front, in round order,
+     * so which worker picks up a round never changes what the round computes.
+     */
+    public double[][] run(int numStatistics, RoundFactory factory) throws Exception {
+        SplittableRandom root = new SplittableRandom(seed);
+        SplittableRandom[] streams = new SplittableRandom[numBootstrapSamples];
+        for (int b = 0; b < numBootstrapSamples; b++) {
+            streams[b] = root.split();
+        }
+
+        double[][] statistics = new double[numStatistics][numBootstrapSamples];
+        AtomicInteger nextRound = new AtomicInteger();
+        int numWorkers = Math.min(numThreads, numBootstrapSamples);
+
+        ExecutorService pool = executor != null ? executor : new ForkJoinPool(numWorkers);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int w = 0; w < numWorkers; w++) {
+                workers.add(pool.submit(() -> {
+                    Round round = factory.newRound();
+                    double[] out = new double[numStatistics];
+                    int b;
+                    while ((b = nextRound.getAndIncrement()) < numBootstrapSamples) {
+                        round.run(b, streams[b], out);
+                        for (int s = 0; s < numStatistics; s++) {
+                            statistics[s][b] = out[s];
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            if (pool != executor) {
+                pool.shutdown();
+            }
+        }
+        return statistics;
+    }
+
+    // Average of the per-class AUCs, as printed by ModelPredictionCI
+    public static double averageAUC(Evaluation evaluation, int numClasses) {
+        double sumAUC = 0.0;
+        for (int i = 0; i < numClasses; i++) {
+            sumAUC += evaluation.areaUnderROC(i);
+        }
+        return sumAUC / numClasses;
+    }
+}
+
+/* Note:
+
+Reproducibility: the seed feeds one SplittableRandom, which is split once per bootstrap round
+before any work starts. Round b always sees the same stream, so -S 1 -num-slots 1 and
+-S 1 -num-slots 16 print identical intervals. The resampled Instances of a round are drawn with
+a java.util.Random seeded from that stream, because Instances.resample(Random) needs one.
+
+Thread safety: Weka classifiers are not guaranteed to be thread-safe while predicting
+(IBk, for example, updates the ranges of its distance function), so each worker evaluates
+with its own AbstractClassifier.makeCopy of the model.
+ *
+ *
+*/
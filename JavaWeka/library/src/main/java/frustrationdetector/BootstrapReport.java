@@ -0,0 +1,42 @@
+/**
+ * Bootstrap confidence intervals of the goodness metrics
+ * (average AUC, Cohen's Kappa and weighted F-Measure) from one bootstrap run
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import java.io.PrintStream;
+
+public class BootstrapReport {
+
+    private final ConfidenceInterval auc;
+    private final ConfidenceInterval kappa;
+    private final ConfidenceInterval weightedFMeasure;
+
+    public BootstrapReport(ConfidenceInterval auc, ConfidenceInterval kappa, ConfidenceInterval weightedFMeasure) {
+        this.auc = auc;
+        this.kappa = kappa;
+        this.weightedFMeasure = weightedFMeasure;
+    }
+
+    public ConfidenceInterval getAUC() {
+        return auc;
+    }
+
+    public ConfidenceInterval getKappa() {
+        return kappa;
+    }
+
+    public ConfidenceInterval getWeightedFMeasure() {
+        return weightedFMeasure;
+    }
+
+    public void print(PrintStream out) {
+        auc.print(out);
+        out.println("=== Cohen's Kappa ===");
+        kappa.print(out);
+        out.println("=== Weighted Average F-Measure ===");
+        weightedFMeasure.print(out);
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Goodness metrics computed straight from a confusion matrix
+ * (Cohen's Kappa, Precision, Recall, F-Measure and their weighted averages),
+ * following the same definitions as weka.classifiers.evaluation.Evaluation
+ * The matrix is flattened row-major: confusion[actual * numClasses + predicted]
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+public final class ClassificationMetrics {
+
+    private ClassificationMetrics() {
+    }
+
+    public static double truePositives(double[] confusion, int numClasses, int classIndex) {
+        return confusion[classIndex * numClasses + classIndex];
+    }
+
+    // Row sum: instances whose actual class is classIndex
+    public static double actualCount(double[] confusion, int numClasses, int classIndex) {
+        double sum = 0.0;
+        for (int j = 0; j < numClasses; j++) {
+            sum += confusion[classIndex * numClasses + j];
+        }
+        return sum;
+    }
+
+    // Column sum: instances predicted as classIndex
+    public static double predictedCount(double[] confusion, int numClasses, int classIndex) {
+        double sum = 0.0;
+        for (int i = 0; i < numClasses; i++) {
+            sum += confusion[i * numClasses + classIndex];
+        }
+        return sum;
+    }
+
+    // 0 when nothing was predicted as classIndex, as Evaluation.precision returns
+    public static double precision(double[] confusion, int numClasses, int classIndex) {
+        double predicted = predictedCount(confusion, numClasses, classIndex);
+        return predicted == 0.0 ? 0.0 : truePositives(confusion, numClasses, classIndex) / predicted;
+    }
+
+    // 0 when classIndex does not occur, as Evaluation.recall returns
+    public static double recall(double[] confusion, int numClasses, int classIndex) {
+        double actual = actualCount(confusion, numClasses, classIndex);
+        return actual == 0.0 ? 0.0 : truePositives(confusion, numClasses, classIndex) / actual;
+    }
+
+    public static double fMeasure(double precision, double recall) {
+        if (precision == 0.0 && recall == 0.0) {
+            return 0.0;
+        }
+        return 2.0 * precision * recall / (precision + recall);
+    }
+
+    public static double fMeasure(double[] confusion, int numClasses, int classIndex) {
+        return fMeasure(precision(confusion, numClasses, classIndex), recall(confusion, numClasses, classIndex));
+    }
+
+    // Cohen's Kappa over totalInstances, as calculated by hand in ModelPredictionCI
+    public static double kappa(double[] confusion, int numClasses, double totalInstances) {
+        double totalCorrect = 0.0;
+        double totalByChance = 0.0;
+        for (int i = 0; i < numClasses; i++) {
+            totalCorrect += confusion[i * numClasses + i];
+            totalByChance += actualCount(confusion, numClasses, i) * predictedCount(confusion, numClasses, i);
+        }
+        double po = totalCorrect / totalInstances;
+        double pe = totalByChance / (totalInstances * totalInstances);
+        return (po - pe) / (1 - pe);
+    }
+
+    public static double weightedPrecision(double[] confusion, int numClasses) {
+        double total = 0.0;
+        double classified = 0.0;
+        for (int i = 0; i < numClasses; i++) {
+            double actual = actualCount(confusion, numClasses, i);
+            classified += actual;
+            if (actual > 0) {
+                total += precision(confusion, numClasses, i) * actual;
+            }
+        }
+        return total / classified;
+    }
+
+    public static double weightedRecall(double[] confusion, int numClasses) {
+        double total = 0.0;
+        double classified = 0.0;
+        for (int i = 0; i < numClasses; i++) {
+            double actual = actualCount(confusion, numClasses, i);
+            classified += actual;
+            if (actual > 0) {
+                total += recall(confusion, numClasses, i) * actual;
+            }
+        }
+        return total / classified;
+    }
+
+    public static double weightedFMeasure(double[] confusion, int numClasses) {
+        double total = 0.0;
+        double classified = 0.0;
+        for (int i = 0; i < numClasses; i++) {
+            double actual = actualCount(confusion, numClasses, i);
+            classified += actual;
+            if (actual > 0) {
+                total += fMeasure(confusion, numClasses, i) * actual;
+            }
+        }
+        return total / classified;
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Fixed pool of copies of one trained classifier for concurrent scoring
+ * Weka classifiers are not thread-safe while predicting (BayesNet pushes every instance through
+ * its discretize filter, IBk updates its distance ranges), so each caller borrows a private copy.
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class ClassifierPool {
+
+    private final String name;
+    private final BlockingQueue<Classifier> copies;
+
+    public ClassifierPool(String name, Classifier classifier, int size) throws Exception {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1, got " + size);
+        }
+        this.name = name;
+        this.copies = new ArrayBlockingQueue<>(size);
+        copies.add(classifier);
+        for (int i = 1; i < size; i++) {
+            copies.add(AbstractClassifier.makeCopy(classifier));
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Blocks until a copy is free; the caller must release it
+    public Classifier acquire() throws InterruptedException {
+        return copies.take();
+    }
+
+    public void release(Classifier classifier) {
+        copies.add(classifier);
+    }
+
+    public double[] distributionForInstance(Instance instance) throws Exception {
+        Classifier classifier = acquire();
+        try {
+            return classifier.distributionForInstance(instance);
+        } finally {
+            release(classifier);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * BayesNet compiled to discretization cut points and log-probability lookup tables
+ * Each numeric feature is binned with the cut points of the network's internal Discretize
+ * filter (missing values take the training mode, as ReplaceMissingValues does) and the class
+ * scores are summed from Math.log of the conditional probability tables, as SimpleEstimator does.
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.bayes.BayesNet;
+import weka.classifiers.bayes.net.ParentSet;
+import weka.core.Instances;
+import weka.filters.supervised.attribute.Discretize;
+import weka.filters.unsupervised.attribute.ReplaceMissingValues;
+
+import java.io.IOException;
+
+public class CompiledBayesNet implements CompiledScorer {
+
+    private static final int PASS_THROUGH = -1;
+
+    private final int numClasses;
+    private final int numNodes;
+    private final int classIndex;
+
+    // Discretization per attribute: cut points in cutPoints[cutStart[a] .. cutStart[a] + numCuts[a])
+    private final int[] cutStart;
+    private final int[] numCuts;       // PASS_THROUGH for attributes that are already nominal
+    private final double[] cutPoints;
+    private final double[] missingModes;
+
+    // Network: parents of node a in parents[parentStart[a] .. parentStart[a] + numParents[a])
+    private final int[] parentStart;
+    private final int[] numParents;
+    private final int[] parents;
+    private final int[] cardinality;
+
+    // Log-probabilities of node a: logProbabilities[tableStart[a] + cpt * cardinality[a] + value]
+    private final int[] tableStart;
+    private final double[] logProbabilities;
+
+    public CompiledBayesNet(BayesNet bayesNet) throws Exception {
+        Instances network = bayesNet.m_Instances;
+        this.numNodes = network.numAttributes();
+        this.classIndex = network.classIndex();
+        this.numClasses = network.numClasses();
+        if (classIndex != numNodes - 1) {
+            throw new IllegalArgumentException("The class must be the last attribute");
+        }
+
+        // Discretization of the raw features
+        Discretize discretize = (Discretize) ModelCompiler.field(bayesNet, BayesNet.class, "m_DiscretizeFilter");
+        Instances rawHeader = discretize != null ? discretize.getCopyOfInputFormat() : null;
+        ReplaceMissingValues missingValues = (ReplaceMissingValues) ModelCompiler.field(bayesNet, BayesNet.class, "m_MissingValuesFilter");
+        double[] modes = (double[]) ModelCompiler.field(missingValues, ReplaceMissingValues.class, "m_ModesAndMeans");
+
+        this.cutStart = new int[numNodes];
+        this.numCuts = new int[numNodes];
+        this.missingModes = new double[numNodes];
+        int totalCuts = 0;
+        for (int a = 0; a < numNodes; a++) {
+            double[] cuts = rawHeader != null && rawHeader.attribute(a).isNumeric() ? discretize.getCutPoints(a) : null;
+            cutStart[a] = totalCuts;
+            if (rawHeader != null && rawHeader.attribute(a).isNumeric()) {
+                numCuts[a] = cuts == null ? 0 : cuts.length;
+                totalCuts += numCuts[a];
+            } else {
+                numCuts[a] = PASS_THROUGH;
+            }
+            missingModes[a] = modes != null ? modes[a] : 0.0;
+        }
+        this.cutPoints = new double[totalCuts];
+        for (int a = 0; a < numNodes; a++) {
+            if (numCuts[a] > 0) {
+                System.arraycopy(discretize.getCutPoints(a), 0, cutPoints, cutStart[a], numCuts[a]);
+            }
+        }
+
+        // Network structure and conditional probability tables
+        this.parentStart = new int[numNodes];
+        this.numParents = new int[numNodes];
+        this.cardinality = new int[numNodes];
+        this.tableStart = new int[numNodes];
+        int totalParents = 0;
+        int totalCells = 0;
+        for (int a = 0; a < numNodes; a++) {
+            ParentSet parentSet = bayesNet.getParentSet(a);
+            parentStart[a] = totalParents;
+            numParents[a] = parentSet.getNrOfParents();
+            totalParents += numParents[a];
+            cardinality[a] = network.attribute(a).numValues();
+            tableStart[a] = totalCells;
+            totalCells += parentSet.getCardinalityOfParents() * cardinality[a];
+        }
+        this.parents = new int[totalParents];
+        this.logProbabilities = new double[totalCells];
+        for (int a = 0; a < numNodes; a++) {
+            ParentSet parentSet = bayesNet.getParentSet(a);
+            for (int p = 0; p < numParents[a]; p++) {
+                parents[parentStart[a] + p] = parentSet.getParent(p);
+            }
+            for (int cpt = 0; cpt < parentSet.getCardinalityOfParents(); cpt++) {
+                for (int value = 0; value < cardinality[a]; value++) {
+                    logProbabilities[tableStart[a] + cpt * cardinality[a] + value] =
+                        Math.log(bayesNet.m_Distributions[a][cpt].getProbability(value));
+                }
+            }
+        }
+    }
+
+    CompiledBayesNet(ModelFile.Reader in) throws IOException {
+        this.numClasses = in.readInt();
+        this.numNodes = in.readInt();
+        this.classIndex = in.readInt();
+        this.cutStart = in.readInts();
+        this.numCuts = in.readInts();
+        this.cutPoints = in.readDoubles();
+        this.missingModes = in.readDoubles();
+        this.parentStart = in.readInts();
+        this.numParents = in.readInts();
+        this.parents = in.readInts();
+        this.cardinality = in.readInts();
+        this.tableStart = in.readInts();
+        this.logProbabilities = in.readDoubles();
+    }
+
+    void write(ModelFile.Writer out) {
+        out.writeInt(numClasses);
+        out.writeInt(numNodes);
+        out.writeInt(classIndex);
+        out.writeInts(cutStart);
+        out.writeInts(numCuts);
+        out.writeDoubles(cutPoints);
+        out.writeDoubles(missingModes);
+        out.writeInts(parentStart);
+        out.writeInts(numParents);
+        out.writeInts(parents);
+        out.writeInts(cardinality);
+        out.writeInts(tableStart);
+        out.writeDoubles(logProbabilities);
+    }
+
+    @Override
+    public int numClasses() {
+        return numClasses;
+    }
+
+    @Override
+    public void distribution(double[] features, double[] out) {
+        for (int c = 0; c < numClasses; c++) {
+            double logP = 0.0;
+            for (int a = 0; a < numNodes; a++) {
+                int cpt = 0;
+                for (int p = 0; p < numParents[a]; p++) {
+                    int parent = parents[parentStart[a] + p];
+                    cpt = parent == classIndex
+                        ? cpt * numClasses + c
+                        : cpt * cardinality[parent] + discreteValue(parent, features);
+                }
+                int value = a == classIndex ? c : discreteValue(a, features);
+                logP += logProbabilities[tableStart[a] + cpt * cardinality[a] + value];
+            }
+            out[c] = logP;
+        }
+        double max = out[0];
+        for (int c = 0; c < numClasses; c++) {
+            if (out[c] > max) {
+                max = out[c];
+            }
+        }
+        for (int c = 0; c < numClasses; c++) {
+            out[c] = Math.exp(out[c] - max);
+        }
+        double sum = 0.0;
+        for (int c = 0; c < numClasses; c++) {
+            sum += out[c];
+        }
+        // SimpleEstimator answers all zeros when the scores cannot be normalized
+        if (Double.isNaN(sum) || sum == 0.0) {
+            for (int c = 0; c < numClasses; c++) {
+                out[c] = 0.0;
+            }
+            return;
+        }
+        for (int c = 0; c < numClasses; c++) {
+            out[c] /= sum;
+        }
+    }
+
+    // Bin index of attribute a, same rule as Discretize: the first cut point the value is <= to
+    private int discreteValue(int a, double[] features) {
+        double value = features[a];
+        if (Double.isNaN(value)) {
+            return (int) missingModes[a];
+        }
+        if (numCuts[a] == PASS_THROUGH) {
+            return (int) value;
+        }
+        int bin = 0;
+        int end = cutStart[a] + numCuts[a];
+        for (int k = cutStart[a]; k < end && !(value <= cutPoints[k]); k++) {
+            bin++;
+        }
+        return bin;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * CostSensitiveClassifier compiled around the compiled base classifier
+ * With reweighted training instances (the bundled models) the distribution is the base
+ * classifier's; with -M the class of minimum expected cost gets probability 1.
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.CostMatrix;
+import weka.classifiers.meta.CostSensitiveClassifier;
+
+import java.io.IOException;
+
+public class CompiledCostSensitive implements CompiledScorer {
+
+    private final CompiledScorer base;
+    private final boolean minimizeExpectedCost;
+    private final int numClasses;
+    private final double[] costs;   // [actual * numClasses + predicted]
+
+    public CompiledCostSensitive(CostSensitiveClassifier classifier, CompiledScorer base) throws Exception {
+        this.base = base;
+        this.minimizeExpectedCost = classifier.getMinimizeExpectedCost();
+        this.numClasses = base.numClasses();
+        CostMatrix costMatrix = classifier.getCostMatrix();
+        if (costMatrix.size() != numClasses) {
+            throw new IllegalArgumentException("Cost matrix size does not match the number of classes");
+        }
+        this.costs = new double[numClasses * numClasses];
+        for (int actual = 0; actual < numClasses; actual++) {
+            for (int predicted = 0; predicted < numClasses; predicted++) {
+                costs[actual * numClasses + predicted] = costMatrix.getElement(actual, predicted);
+            }
+        }
+    }
+
+    CompiledCostSensitive(ModelFile.Reader in) throws IOException {
+        this.minimizeExpectedCost = in.readBoolean();
+        this.numClasses = in.readInt();
+        this.costs = in.readDoubles();
+        this.base = ModelFile.readScorer(in);
+    }
+
+    void write(ModelFile.Writer out) {
+        out.writeBoolean(minimizeExpectedCost);
+        out.writeInt(numClasses);
+        out.writeDoubles(costs);
+        ModelFile.writeScorer(out, base);
+    }
+
+    public CompiledScorer getBase() {
+        return base;
+    }
+
+    @Override
+    public int numClasses() {
+        return numClasses;
+    }
+
+    @Override
+    public void distribution(double[] features, double[] out) {
+        base.distribution(features, out);
+        if (!minimizeExpectedCost) {
+            return;
+        }
+        // Expected cost of predicting each class, as CostMatrix.expectedCosts; keep the first minimum
+        int best = 0;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (int predicted = 0; predicted < numClasses; predicted++) {
+            double cost = 0.0;
+            for (int actual = 0; actual < numClasses; actual++) {
+                cost += out[actual] * costs[actual * numClasses + predicted];
+            }
+            if (cost < bestCost) {
+                best = predicted;
+                bestCost = cost;
+            }
+        }
+        for (int c = 0; c < numClasses; c++) {
+            out[c] = c == best ? 1.0 : 0.0;
+        }
+    }
+}
@@ -0,0 +1,816 @@
+/**
+ * IBk (KNN) compiled to a spatial index over the stored training instances
+ * Large training sets are searched through a KD-tree built once at load time; small ones are
+ * scanned, and batches of rows are screened together over a contiguous float[] matrix before
+ * the exact distances are taken. Either way the neighbours, the distance weighting and the
+ * normalization are those of IBk with LinearNNSearch and EuclideanDistance, so the
+ * distributions are the ones IBk.distributionForInstance returns.
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.lazy.IBk;
+import weka.core.EuclideanDistance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.neighboursearch.LinearNNSearch;
+import weka.core.neighboursearch.NearestNeighbourSearch;
+
+import java.io.IOException;
+
+public class CompiledIBk implements CompiledScorer {
+
+    // Training sets at least this large are searched through the KD-tree
+    public static final int DEFAULT_TREE_THRESHOLD = 1024;
+
+    private static final int LEAF_SIZE = 16;
+    private static final int QUERY_BLOCK = 16;
+    private static final int MAX_DEPTH = 64;
+
+    private final int numClasses;
+    private final int numFeatures;
+    private final int kNN;
+    private final int distanceWeighting;
+    private final double numAttributesUsed;
+    private final int numTrain;
+
+    // Training instances, row-major [row * numFeatures + feature]
+    private final double[] train;
+    private final int[] trainClass;
+    private final double[] trainWeight;
+    private final int[] missingRows;     // rows with a missing feature, always compared exactly
+
+    // Float copy of the complete rows relative to origin, for the batched screening scan
+    private final float[] trainFloat;
+    private final int[] completeRows;
+    private final double[] origin;
+
+    /*
+     * Attribute ranges {min, max, width} per feature. IBk widens them with every instance it
+     * classifies (IBk.distributionForInstance calls NearestNeighbourSearch.addInstanceInfo), so
+     * they are replaced copy-on-write and every query works on the snapshot it widened.
+     */
+    private volatile Ranges ranges;
+    private boolean updateRanges = true;
+
+    private final boolean useTree;
+    // KD-tree over the complete rows (raw coordinates; the boxes stay valid for any widths)
+    private int[] order;
+    private int[] nodeStart;
+    private int[] nodeEnd;
+    private int[] nodeLeft;
+    private int[] nodeRight;
+    private double[] nodeMin;
+    private double[] nodeMax;
+    private int numNodes;
+
+    private final ThreadLocal<Search> searches;
+
+    public CompiledIBk(IBk ibk) throws Exception {
+        this(ibk, -1);
+    }
+
+    // treeThreshold < 0 selects DEFAULT_TREE_THRESHOLD
+    public CompiledIBk(IBk ibk, int treeThreshold) throws Exception {
+        NearestNeighbourSearch search = ibk.getNearestNeighbourSearchAlgorithm();
+        if (!(search instanceof LinearNNSearch) || ((LinearNNSearch) search).getSkipIdentical()) {
+            throw new IllegalArgumentException("Only IBk with LinearNNSearch (not skipping identical instances) can be compiled");
+        }
+        if (!(search.getDistanceFunction() instanceof EuclideanDistance)) {
+            throw new IllegalArgumentException("Only IBk with EuclideanDistance can be compiled");
+        }
+        EuclideanDistance distance = (EuclideanDistance) search.getDistanceFunction();
+        if (distance.getDontNormalize() || distance.getInvertSelection() || !"first-last".equals(distance.getAttributeIndices())) {
+            throw new IllegalArgumentException("Only a normalized EuclideanDistance over all attributes can be compiled");
+        }
+        if (ibk.getCrossValidate() || ibk.getWindowSize() > 0) {
+            throw new IllegalArgumentException("IBk with hold-one-out cross-validation or a window size can't be compiled");
+        }
+        Instances data = search.getInstances();
+        this.numFeatures = data.numAttributes() - 1;
+        if (data.classIndex() != numFeatures || !data.classAttribute().isNominal()) {
+            throw new IllegalArgumentException("Only a nominal class as the last attribute is supported");
+        }
+        for (int f = 0; f < numFeatures; f++) {
+            if (!data.attribute(f).isNumeric()) {
+                throw new IllegalArgumentException("Attribute " + data.attribute(f).name() + " is not numeric");
+            }
+        }
+        if (data.numInstances() == 0) {
+            throw new IllegalArgumentException("IBk has no training instances");
+        }
+        this.numClasses = data.numClasses();
+        this.kNN = ibk.getKNN();
+        this.distanceWeighting = ibk.getDistanceWeighting().getSelectedTag().getID();
+        this.numAttributesUsed = (Double) ModelCompiler.field(ibk, IBk.class, "m_NumAttributesUsed");
+        this.numTrain = data.numInstances();
+
+        double[][] wekaRanges = distance.getRanges();
+        double[] initialRanges = new double[3 * numFeatures];
+        this.origin = new double[numFeatures];
+        for (int f = 0; f < numFeatures; f++) {
+            initialRanges[3 * f] = wekaRanges[f][0];
+            initialRanges[3 * f + 1] = wekaRanges[f][1];
+            initialRanges[3 * f + 2] = wekaRanges[f][2];
+            origin[f] = Double.isInfinite(wekaRanges[f][0]) ? 0.0 : wekaRanges[f][0];
+        }
+
+        this.train = new double[numTrain * numFeatures];
+        this.trainClass = new int[numTrain];
+        this.trainWeight = new double[numTrain];
+        int numMissing = 0;
+        for (int r = 0; r < numTrain; r++) {
+            Instance instance = data.instance(r);
+            boolean missing = false;
+            for (int f = 0; f < numFeatures; f++) {
+                double value = instance.isMissing(f) ? Double.NaN : instance.value(f);
+                train[r * numFeatures + f] = value;
+                missing |= Double.isNaN(value);
+            }
+            trainClass[r] = (int) instance.classValue();
+            trainWeight[r] = instance.weight();
+            if (missing) {
+                numMissing++;
+            }
+        }
+        this.missingRows = new int[numMissing];
+        this.completeRows = new int[numTrain - numMissing];
+        int m = 0;
+        int c = 0;
+        for (int r = 0; r < numTrain; r++) {
+            if (hasMissing(train, r * numFeatures)) {
+                missingRows[m++] = r;
+            } else {
+                completeRows[c++] = r;
+            }
+        }
+        this.trainFloat = new float[completeRows.length * numFeatures];
+        for (int i = 0; i < completeRows.length; i++) {
+            for (int f = 0; f < numFeatures; f++) {
+                trainFloat[i * numFeatures + f] = (float) (train[completeRows[i] * numFeatures + f] - origin[f]);
+            }
+        }
+
+        this.ranges = new Ranges(initialRanges);
+
+        this.useTree = numTrain >= (treeThreshold < 0 ? DEFAULT_TREE_THRESHOLD : treeThreshold);
+        if (useTree) {
+            buildTree();
+        }
+        this.searches = ThreadLocal.withInitial(Search::new);
+    }
+
+    // Everything, the KD-tree and the current attribute ranges included, copied out of a ModelFile
+    CompiledIBk(ModelFile.Reader in) throws IOException {
+        this.numClasses = in.readInt();
+        this.numFeatures = in.readInt();
+        this.kNN = in.readInt();
+        this.distanceWeighting = in.readInt();
+        this.numAttributesUsed = in.readDouble();
+        this.numTrain = in.readInt();
+        this.train = in.readDoubles();
+        this.trainClass = in.readInts();
+        this.trainWeight = in.readDoubles();
+        this.missingRows = in.readInts();
+        this.completeRows = in.readInts();
+        this.trainFloat = in.readFloats();
+        this.origin = in.readDoubles();
+        this.ranges = new Ranges(in.readDoubles());
+        this.useTree = in.readBoolean();
+        if (useTree) {
+            this.numNodes = in.readInt();
+            this.order = in.readInts();
+            this.nodeStart = in.readInts();
+            this.nodeEnd = in.readInts();
+            this.nodeLeft = in.readInts();
+            this.nodeRight = in.readInts();
+            this.nodeMin = in.readDoubles();
+            this.nodeMax = in.readDoubles();
+        }
+        this.searches = ThreadLocal.withInitial(Search::new);
+    }
+
+    void write(ModelFile.Writer out) {
+        out.writeInt(numClasses);
+        out.writeInt(numFeatures);
+        out.writeInt(kNN);
+        out.writeInt(distanceWeighting);
+        out.writeDouble(numAttributesUsed);
+        out.writeInt(numTrain);
+        out.writeDoubles(train);
+        out.writeInts(trainClass);
+        out.writeDoubles(trainWeight);
+        out.writeInts(missingRows);
+        out.writeInts(completeRows);
+        out.writeFloats(trainFloat);
+        out.writeDoubles(origin);
+        out.writeDoubles(ranges.bounds);
+        out.writeBoolean(useTree);
+        if (useTree) {
+            out.writeInt(numNodes);
+            out.writeInts(order);
+            out.writeInts(nodeStart);
+            out.writeInts(nodeEnd);
+            out.writeInts(nodeLeft);
+            out.writeInts(nodeRight);
+            out.writeDoubles(nodeMin);
+            out.writeDoubles(nodeMax);
+        }
+    }
+
+    public boolean usesTree() {
+        return useTree;
+    }
+
+    public int numTrainingInstances() {
+        return numTrain;
+    }
+
+    /*
+     * With updateRanges (the default) every scored row widens the attribute ranges first, exactly
+     * as IBk does, so a scorer fed the same rows in the same order as an IBk returns the same
+     * distributions. Turning it off freezes the ranges of the serialized model.
+     */
+    public void setUpdateRanges(boolean updateRanges) {
+        this.updateRanges = updateRanges;
+    }
+
+    @Override
+    public int numClasses() {
+        return numClasses;
+    }
+
+    @Override
+    public void distribution(double[] features, double[] out) {
+        Ranges queryRanges = widen(features);
+        Search search = searches.get();
+        search.reset();
+        double[] query = queryRanges.normalize(features, search.query);
+        if (useTree && !hasMissing(features, 0)) {
+            searchTree(features, query, queryRanges, search);
+            for (int r : missingRows) {
+                search.offer(exactDistance(query, r, queryRanges), r);
+            }
+        } else {
+            for (int r = 0; r < numTrain; r++) {
+                search.offer(exactDistance(query, r, queryRanges), r);
+            }
+        }
+        makeDistribution(search, out);
+    }
+
+    /*
+     * Without the KD-tree, blocks of rows are screened together: one pass over the float[]
+     * matrix computes approximate distances for the whole block, and only the training rows
+     * within a safety margin of each row's k-th approximate distance get the exact comparison.
+     */
+    @Override
+    public void distributions(double[][] rows, int numRows, double[][] out) {
+        if (useTree) {
+            for (int r = 0; r < numRows; r++) {
+                distribution(rows[r], out[r]);
+            }
+            return;
+        }
+        int numComplete = completeRows.length;
+        float[] approximate = new float[QUERY_BLOCK * numComplete];
+        float[] queries = new float[QUERY_BLOCK * numFeatures];
+        float[] scales = new float[QUERY_BLOCK * numFeatures];
+        Ranges[] queryRanges = new Ranges[QUERY_BLOCK];
+        double[][] normalized = new double[QUERY_BLOCK][numFeatures];
+        Search search = searches.get();
+        for (int blockStart = 0; blockStart < numRows; blockStart += QUERY_BLOCK) {
+            int blockSize = Math.min(QUERY_BLOCK, numRows - blockStart);
+            for (int q = 0; q < blockSize; q++) {
+                double[] features = rows[blockStart + q];
+                queryRanges[q] = widen(features);
+                queryRanges[q].normalize(features, normalized[q]);
+                for (int f = 0; f < numFeatures; f++) {
+                    double width = queryRanges[q].bounds[3 * f + 2];
+                    queries[q * numFeatures + f] = (float) (features[f] - origin[f]);
+                    scales[q * numFeatures + f] = width == 0.0 ? 0.0f : (float) (1.0 / width);
+                }
+            }
+            for (int i = 0; i < numComplete; i++) {
+                int base = i * numFeatures;
+                for (int q = 0; q < blockSize; q++) {
+                    int queryBase = q * numFeatures;
+                    float sum = 0.0f;
+                    for (int f = 0; f < numFeatures; f++) {
+                        float diff = (queries[queryBase + f] - trainFloat[base + f]) * scales[queryBase + f];
+                        sum += diff * diff;
+                    }
+                    approximate[q * numComplete + i] = sum;
+                }
+            }
+            for (int q = 0; q < blockSize; q++) {
+                double[] features = rows[blockStart + q];
+                search.reset();
+                if (hasMissing(features, 0)) {
+                    for (int r = 0; r < numTrain; r++) {
+                        search.offer(exactDistance(normalized[q], r, queryRanges[q]), r);
+                    }
+                } else {
+                    double cutOff = search.kthSmallest(approximate, q * numComplete, numComplete);
+                    cutOff += 1e-4 * (1.0 + cutOff);
+                    for (int i = 0; i < numComplete; i++) {
+                        if (approximate[q * numComplete + i] <= cutOff) {
+                            int r = completeRows[i];
+                            search.offer(exactDistance(normalized[q], r, queryRanges[q]), r);
+                        }
+                    }
+                    for (int r : missingRows) {
+                        search.offer(exactDistance(normalized[q], r, queryRanges[q]), r);
+                    }
+                }
+                makeDistribution(search, out[blockStart + q]);
+            }
+        }
+    }
+
+    // NormalizableDistance.updateRanges on a copy, published only when a range actually changes
+    private Ranges widen(double[] features) {
+        Ranges current = ranges;
+        if (!updateRanges || !outside(current.bounds, features)) {
+            return current;
+        }
+        synchronized (this) {
+            current = ranges;
+            if (!outside(current.bounds, features)) {
+                return current;
+            }
+            double[] widened = current.bounds.clone();
+            for (int f = 0; f < numFeatures; f++) {
+                double value = features[f];
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+                if (value < widened[3 * f]) {
+                    widened[3 * f] = value;
+                    widened[3 * f + 2] = widened[3 * f + 1] - widened[3 * f];
+                }
+                if (value > widened[3 * f + 1]) {
+                    widened[3 * f + 1] = value;
+                    widened[3 * f + 2] = widened[3 * f + 1] - widened[3 * f];
+                }
+            }
+            current = new Ranges(widened);
+            ranges = current;
+            return current;
+        }
+    }
+
+    private boolean outside(double[] current, double[] features) {
+        for (int f = 0; f < numFeatures; f++) {
+            double value = features[f];
+            if (value < current[3 * f] || value > current[3 * f + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // EuclideanDistance.distance without the square root, same operations in the same order
+    private double exactDistance(double[] query, int row, Ranges queryRanges) {
+        double distance = 0.0;
+        int base = row * numFeatures;
+        double[] normalizedTrain = queryRanges.normalizedTrain;
+        for (int f = 0; f < numFeatures; f++) {
+            double diff = difference(query[f], normalizedTrain[base + f]);
+            distance = distance + diff * diff;
+        }
+        return distance;
+    }
+
+    // NormalizableDistance.difference of two normalized values (NaN when missing)
+    private static double difference(double value1, double value2) {
+        boolean missing1 = Double.isNaN(value1);
+        boolean missing2 = Double.isNaN(value2);
+        if (missing1 || missing2) {
+            if (missing1 && missing2) {
+                return 1.0;
+            }
+            double diff = missing2 ? value1 : value2;
+            if (diff < 0.5) {
+                diff = 1.0 - diff;
+            }
+            return diff;
+        }
+        return value1 - value2;
+    }
+
+    /*
+     * IBk.makeDistribution: a 1/n floor per class, then each neighbour (all training rows within
+     * the k-th smallest distance, ties included, nearest first) adds its weight to its class.
+     */
+    private void makeDistribution(Search search, double[] out) {
+        int numNeighbours = search.neighbours();
+        double total = (double) numClasses / (double) Math.max(1, numTrain);
+        for (int c = 0; c < numClasses; c++) {
+            out[c] = 1.0 / (double) Math.max(1, numTrain);
+        }
+        for (int i = 0; i < numNeighbours; i++) {
+            double distance = Math.sqrt(search.distance[i]);
+            distance = distance * distance;
+            distance = Math.sqrt(distance / numAttributesUsed);
+            double weight;
+            switch (distanceWeighting) {
+                case IBk.WEIGHT_INVERSE:
+                    weight = 1.0 / (distance + 0.001);
+                    break;
+                case IBk.WEIGHT_SIMILARITY:
+                    weight = 1.0 - distance;
+                    break;
+                default:
+                    weight = 1.0;
+                    break;
+            }
+            int row = search.index[i];
+            weight *= trainWeight[row];
+            out[trainClass[row]] += weight;
+            total += weight;
+        }
+        if (total > 0.0) {
+            for (int c = 0; c < numClasses; c++) {
+                out[c] /= total;
+            }
+        }
+    }
+
+    // Whether any of the numFeatures values from base on is missing
+    private boolean hasMissing(double[] values, int base) {
+        for (int f = 0; f < numFeatures; f++) {
+            if (Double.isNaN(values[base + f])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void buildTree() {
+        int numComplete = completeRows.length;
+        int maxNodes = 2 * Math.max(1, (numComplete + LEAF_SIZE - 1) / LEAF_SIZE) * 2 + 1;
+        order = completeRows.clone();
+        nodeStart = new int[maxNodes];
+        nodeEnd = new int[maxNodes];
+        nodeLeft = new int[maxNodes];
+        nodeRight = new int[maxNodes];
+        nodeMin = new double[maxNodes * numFeatures];
+        nodeMax = new double[maxNodes * numFeatures];
+        numNodes = 0;
+        if (numComplete > 0) {
+            buildNode(0, numComplete, 0);
+        }
+    }
+
+    private int buildNode(int start, int end, int depth) {
+        int node = numNodes++;
+        nodeStart[node] = start;
+        nodeEnd[node] = end;
+        nodeLeft[node] = -1;
+        nodeRight[node] = -1;
+        double[] initialRanges = ranges.bounds;
+        int splitFeature = -1;
+        double widestSpread = 0.0;
+        for (int f = 0; f < numFeatures; f++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = start; i < end; i++) {
+                double value = train[order[i] * numFeatures + f];
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            nodeMin[node * numFeatures + f] = min;
+            nodeMax[node * numFeatures + f] = max;
+            double width = initialRanges[3 * f + 2];
+            double spread = width > 0.0 ? (max - min) / width : 0.0;
+            if (spread > widestSpread) {
+                widestSpread = spread;
+                splitFeature = f;
+            }
+        }
+        if (end - start <= LEAF_SIZE || splitFeature < 0 || depth >= MAX_DEPTH - 1) {
+            return node;
+        }
+        int middle = (start + end) >>> 1;
+        select(start, end - 1, middle, splitFeature);
+        nodeLeft[node] = buildNode(start, middle, depth + 1);
+        nodeRight[node] = buildNode(middle, end, depth + 1);
+        return node;
+    }
+
+    // Quickselect on order[from..to] so that position k holds its median along feature f
+    private void select(int from, int to, int k, int f) {
+        while (from < to) {
+            double pivot = train[order[(from + to) >>> 1] * numFeatures + f];
+            int i = from;
+            int j = to;
+            while (i <= j) {
+                while (train[order[i] * numFeatures + f] < pivot) {
+                    i++;
+                }
+                while (train[order[j] * numFeatures + f] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                to = j;
+            } else if (k >= i) {
+                from = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void searchTree(double[] features, double[] query, Ranges queryRanges, Search search) {
+        if (numNodes == 0) {
+            return;
+        }
+        int[] stack = search.stack;
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            double bound = search.bound();
+            // Slack for rounding: the bound must never exceed the exact distance of a row in the box
+            if (boxDistance(node, features, queryRanges.bounds) > bound + 1e-9 * (1.0 + bound)) {
+                continue;
+            }
+            if (nodeLeft[node] < 0) {
+                for (int i = nodeStart[node]; i < nodeEnd[node]; i++) {
+                    int row = order[i];
+                    search.offer(exactDistance(query, row, queryRanges), row);
+                }
+                continue;
+            }
+            // Push the farther child first so the nearer one is searched next
+            double leftGap = boxDistance(nodeLeft[node], features, queryRanges.bounds);
+            double rightGap = boxDistance(nodeRight[node], features, queryRanges.bounds);
+            if (leftGap <= rightGap) {
+                stack[top++] = nodeRight[node];
+                stack[top++] = nodeLeft[node];
+            } else {
+                stack[top++] = nodeLeft[node];
+                stack[top++] = nodeRight[node];
+            }
+        }
+    }
+
+    private double boxDistance(int node, double[] features, double[] bounds) {
+        double distance = 0.0;
+        int base = node * numFeatures;
+        for (int f = 0; f < numFeatures; f++) {
+            double width = bounds[3 * f + 2];
+            if (width == 0.0) {
+                continue;
+            }
+            double value = features[f];
+            double gap = 0.0;
+            if (value < nodeMin[base + f]) {
+                gap = (nodeMin[base + f] - value) / width;
+            } else if (value > nodeMax[base + f]) {
+                gap = (value - nodeMax[base + f]) / width;
+            }
+            distance += gap * gap;
+        }
+        return distance;
+    }
+
+    /*
+     * One snapshot of the attribute ranges with the training matrix normalized by it,
+     * (value - min) / width as NormalizableDistance.norm computes it (0 for a zero width).
+     */
+    private final class Ranges {
+
+        final double[] bounds;
+        final double[] normalizedTrain;
+
+        Ranges(double[] bounds) {
+            this.bounds = bounds;
+            this.normalizedTrain = new double[train.length];
+            for (int r = 0; r < numTrain; r++) {
+                normalize(train, r * numFeatures, normalizedTrain, r * numFeatures);
+            }
+        }
+
+        double[] normalize(double[] features, double[] out) {
+            normalize(features, 0, out, 0);
+            return out;
+        }
+
+        private void normalize(double[] values, int from, double[] out, int to) {
+            for (int f = 0; f < numFeatures; f++) {
+                double width = bounds[3 * f + 2];
+                out[to + f] = width == 0.0 ? 0.0 : (values[from + f] - bounds[3 * f]) / width;
+            }
+        }
+    }
+
+    /*
+     * Per-thread search state: a max-heap of the k smallest squared distances seen so far and
+     * every row offered within the current k-th distance (LinearNNSearch keeps ties with the
+     * k-th nearest neighbour as well).
+     */
+    private final class Search {
+
+        final double[] heap = new double[Math.max(1, kNN)];
+        int heapSize;
+        double[] distance = new double[Math.max(16, 4 * kNN)];
+        int[] index = new int[distance.length];
+        int numCandidates;
+        final int[] stack = new int[2 * MAX_DEPTH + 2];
+        final double[] query = new double[numFeatures];
+
+        void reset() {
+            heapSize = 0;
+            numCandidates = 0;
+        }
+
+        double bound() {
+            return heapSize < kNN ? Double.POSITIVE_INFINITY : heap[0];
+        }
+
+        void offer(double squaredDistance, int row) {
+            if (heapSize < kNN) {
+                heap[heapSize] = squaredDistance;
+                siftUp(heapSize++);
+            } else if (squaredDistance < heap[0]) {
+                heap[0] = squaredDistance;
+                siftDown(0);
+            } else if (squaredDistance > heap[0]) {
+                return;
+            }
+            if (numCandidates == distance.length) {
+                compact();
+                if (numCandidates == distance.length) {
+                    distance = java.util.Arrays.copyOf(distance, 2 * distance.length);
+                    index = java.util.Arrays.copyOf(index, distance.length);
+                }
+            }
+            distance[numCandidates] = squaredDistance;
+            index[numCandidates++] = row;
+        }
+
+        // Keep the rows within the k-th distance, nearest first
+        int neighbours() {
+            compact();
+            for (int i = 1; i < numCandidates; i++) {
+                double d = distance[i];
+                int r = index[i];
+                int j = i - 1;
+                while (j >= 0 && (distance[j] > d || (distance[j] == d && index[j] > r))) {
+                    distance[j + 1] = distance[j];
+                    index[j + 1] = index[j];
+                    j--;
+                }
+                distance[j + 1] = d;
+                index[j + 1] = r;
+            }
+            return numCandidates;
+        }
+
+        private void compact() {
+            double bound = bound();
+            int kept = 0;
+            for (int i = 0; i < numCandidates; i++) {
+                if (distance[i] <= bound) {
+                    distance[kept] = distance[i];
+                    index[kept++] = index[i];
+                }
+            }
+            numCandidates = kept;
+        }
+
+        // k-th smallest of values[from .. from+length-1] (the heap is reused and left empty)
+        double kthSmallest(float[] values, int from, int length) {
+            heapSize = 0;
+            for (int i = from; i < from + length; i++) {
+                double value = values[i];
+                if (heapSize < kNN) {
+                    heap[heapSize] = value;
+                    siftUp(heapSize++);
+                } else if (value < heap[0]) {
+                    heap[0] = value;
+                    siftDown(0);
+                }
+            }
+            double kth = heapSize < kNN ? Double.POSITIVE_INFINITY : heap[0];
+            heapSize = 0;
+            return kth;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (heap[parent] >= heap[i]) {
+                    return;
+                }
+                double swap = heap[parent];
+                heap[parent] = heap[i];
+                heap[i] = swap;
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int largest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < heapSize && heap[left] > heap[largest]) {
+                    largest = left;
+                }
+                if (right < heapSize && heap[right] > heap[largest]) {
+                    largest = right;
+                }
+                if (largest == i) {
+                    return;
+                }
+                double swap = heap[largest];
+                heap[largest] = heap[i];
+                heap[i] = swap;
+                i = largest;
+            }
+        }
+    }
+
+    /*
+     * Checks the KD-tree, the single-row scan and the batched float[] scan against IBk on every
+     * bundled ARFF file. Every backend gets its own freshly loaded IBk, because both IBk and the
+     * compiled scorer widen their attribute ranges with each row they score.
+     */
+    public static void main(String[] args) {
+        try {
+            String modelPath = "models/KNN_model_trained.model";
+            String[] backends = {"kd-tree", "scan", "batched float[] scan"};
+            boolean allMatch = true;
+            for (int b = 0; b < backends.length; b++) {
+                IBk ibk = (IBk) SerializationHelper.read(modelPath);
+                IBk reference = (IBk) SerializationHelper.read(modelPath);
+                CompiledIBk scorer = new CompiledIBk(ibk, b == 0 ? 0 : Integer.MAX_VALUE);
+                System.out.println(modelPath + " (" + backends[b] + ", " + scorer.numTrainingInstances() + " training instances)");
+                for (String inputPath : DatasetCatalog.arffFiles()) {
+                    Instances data = DatasetCatalog.load(inputPath);
+                    int numRows = data.numInstances();
+                    double[][] rows = new double[numRows][FrustrationFeatures.NUM_FEATURES];
+                    for (int i = 0; i < numRows; i++) {
+                        FrustrationFeatures.toFeatures(data.instance(i), rows[i]);
+                    }
+                    double[][] compiled = new double[numRows][scorer.numClasses()];
+                    long start = System.nanoTime();
+                    if (b == 2) {
+                        scorer.distributions(rows, numRows, compiled);
+                    } else {
+                        for (int i = 0; i < numRows; i++) {
+                            scorer.distribution(rows[i], compiled[i]);
+                        }
+                    }
+                    double compiledNanos = (double) (System.nanoTime() - start) / numRows;
+                    double[][] weka = new double[numRows][];
+                    start = System.nanoTime();
+                    for (int i = 0; i < numRows; i++) {
+                        weka[i] = reference.distributionForInstance(data.instance(i));
+                    }
+                    double wekaNanos = (double) (System.nanoTime() - start) / numRows;
+                    double maxDifference = 0.0;
+                    for (int i = 0; i < numRows; i++) {
+                        for (int c = 0; c < weka[i].length; c++) {
+                            maxDifference = Math.max(maxDifference, Math.abs(weka[i][c] - compiled[i][c]));
+                        }
+                    }
+                    boolean match = maxDifference <= ModelCompiler.TOLERANCE;
+                    allMatch &= match;
+                    System.out.printf("  %-70s %5d rows  max |diff| %.3e  weka %8.0f ns/row  compiled %7.0f ns/row  %s\n",
+                        inputPath, numRows, maxDifference, wekaNanos, compiledNanos, match ? "OK" : "MISMATCH");
+                }
+                System.out.println();
+            }
+            System.out.println(allMatch ? "All KNN backends match IBk." : "MISMATCHES FOUND.");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/* Note:
+
+IBk with LinearNNSearch compares every query against all stored training instances. The KD-tree
+is built over the raw coordinates and its bounding boxes are turned into lower bounds with the
+attribute widths of the current query, so IBk's range widening never invalidates it. Rows with a
+missing value, and queries with one, fall back to the exact comparison (EuclideanDistance gives
+missing values their own distance rule). Neighbours are added up nearest first, as the heap of
+LinearNNSearch hands them back; with equal instance weights, rows tied at the same distance carry
+the same weight, so their order does not change the sums.
+ *
+ *
+*/
@@ -0,0 +1,192 @@
+/**
+ * J48 tree compiled to flat node arrays
+ * Internal nodes keep the split attribute, split type and split point; every child slot keeps
+ * the child node (or -1 for an empty son), the weight it gets when the split value is missing
+ * and, for empty sons, the class probabilities of the parent's split distribution.
+ * Leaves keep their class probabilities (Laplace-corrected when the J48 uses -A).
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.j48.BinC45Split;
+import weka.classifiers.trees.j48.C45Split;
+import weka.classifiers.trees.j48.ClassifierSplitModel;
+import weka.classifiers.trees.j48.ClassifierTree;
+import weka.core.Instances;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompiledJ48 implements CompiledScorer {
+
+    private static final int LEAF = -1;
+    private static final byte NUMERIC = 0;          // value <= split point -> subset 0, else 1
+    private static final byte NOMINAL = 1;          // subset = value
+    private static final byte NOMINAL_BINARY = 2;   // value == split point -> subset 0, else 1
+
+    private final int numClasses;
+
+    // Per node
+    private final int[] attribute;         // feature index, LEAF for leaves
+    private final byte[] splitType;
+    private final double[] splitPoint;
+    private final int[] firstChild;        // into the child slot arrays
+    private final int[] numChildren;
+    private final double[] leafProbabilities;   // [node * numClasses + class]
+
+    // Per child slot
+    private final int[] childNode;         // -1 for an empty son
+    private final double[] missingWeight;
+    private final double[] emptyProbabilities;  // [slot * numClasses + class]
+
+    public CompiledJ48(J48 j48) throws Exception {
+        ClassifierTree root = (ClassifierTree) ModelCompiler.field(j48, J48.class, "m_root");
+        boolean useLaplace = j48.getUseLaplace();
+        Instances header = root.getTrainingData();
+        this.numClasses = header.numClasses();
+        if (header.classIndex() != header.numAttributes() - 1) {
+            throw new IllegalArgumentException("The class must be the last attribute");
+        }
+
+        // Number the nodes depth first, then fill the arrays
+        List<ClassifierTree> nodes = new ArrayList<>();
+        collect(root, nodes);
+        int numNodes = nodes.size();
+        this.attribute = new int[numNodes];
+        this.splitType = new byte[numNodes];
+        this.splitPoint = new double[numNodes];
+        this.firstChild = new int[numNodes];
+        this.numChildren = new int[numNodes];
+        this.leafProbabilities = new double[numNodes * numClasses];
+
+        int numSlots = 0;
+        for (ClassifierTree node : nodes) {
+            numSlots += node.isLeaf() ? 0 : node.getSons().length;
+        }
+        this.childNode = new int[numSlots];
+        this.missingWeight = new double[numSlots];
+        this.emptyProbabilities = new double[numSlots * numClasses];
+
+        int slot = 0;
+        for (int n = 0; n < numNodes; n++) {
+            ClassifierTree node = nodes.get(n);
+            ClassifierSplitModel model = node.getLocalModel();
+            if (node.isLeaf()) {
+                attribute[n] = LEAF;
+                for (int c = 0; c < numClasses; c++) {
+                    leafProbabilities[n * numClasses + c] = useLaplace
+                        ? model.classProbLaplace(c, null, -1)
+                        : model.classProb(c, null, -1);
+                }
+                continue;
+            }
+            int attIndex;
+            if (model instanceof C45Split) {
+                attIndex = ((C45Split) model).attIndex();
+                splitPoint[n] = ((C45Split) model).splitPoint();
+                splitType[n] = header.attribute(attIndex).isNominal() ? NOMINAL : NUMERIC;
+            } else if (model instanceof BinC45Split) {
+                attIndex = ((BinC45Split) model).attIndex();
+                splitPoint[n] = ((BinC45Split) model).splitPoint();
+                splitType[n] = header.attribute(attIndex).isNominal() ? NOMINAL_BINARY : NUMERIC;
+            } else {
+                throw new IllegalArgumentException("Cannot compile J48 split model " + model.getClass().getName());
+            }
+            attribute[n] = attIndex;
+            ClassifierTree[] sons = node.getSons();
+            firstChild[n] = slot;
+            numChildren[n] = sons.length;
+            for (int i = 0; i < sons.length; i++, slot++) {
+                boolean empty = (Boolean) ModelCompiler.field(sons[i], ClassifierTree.class, "m_isEmpty");
+                childNode[slot] = empty ? -1 : nodes.indexOf(sons[i]);
+                missingWeight[slot] = model.distribution().perBag(i) / model.distribution().total();
+                for (int c = 0; c < numClasses; c++) {
+                    emptyProbabilities[slot * numClasses + c] = useLaplace
+                        ? model.classProbLaplace(c, null, i)
+                        : model.classProb(c, null, i);
+                }
+            }
+        }
+    }
+
+    CompiledJ48(ModelFile.Reader in) throws IOException {
+        this.numClasses = in.readInt();
+        this.attribute = in.readInts();
+        this.splitType = in.readBytes();
+        this.splitPoint = in.readDoubles();
+        this.firstChild = in.readInts();
+        this.numChildren = in.readInts();
+        this.leafProbabilities = in.readDoubles();
+        this.childNode = in.readInts();
+        this.missingWeight = in.readDoubles();
+        this.emptyProbabilities = in.readDoubles();
+    }
+
+    void write(ModelFile.Writer out) {
+        out.writeInt(numClasses);
+        out.writeInts(attribute);
+        out.writeBytes(splitType);
+        out.writeDoubles(splitPoint);
+        out.writeInts(firstChild);
+        out.writeInts(numChildren);
+        out.writeDoubles(leafProbabilities);
+        out.writeInts(childNode);
+        out.writeDoubles(missingWeight);
+        out.writeDoubles(emptyProbabilities);
+    }
+
+    private static void collect(ClassifierTree node, List<ClassifierTree> nodes) {
+        nodes.add(node);
+        if (!node.isLeaf()) {
+            for (ClassifierTree son : node.getSons()) {
+                collect(son, nodes);
+            }
+        }
+    }
+
+    @Override
+    public int numClasses() {
+        return numClasses;
+    }
+
+    @Override
+    public void distribution(double[] features, double[] out) {
+        for (int c = 0; c < numClasses; c++) {
+            out[c] = probability(0, c, features, 1.0);
+        }
+    }
+
+    // Same recursion as ClassifierTree.getProbs, one class at a time
+    private double probability(int node, int classIndex, double[] features, double weight) {
+        if (attribute[node] == LEAF) {
+            return weight * leafProbabilities[node * numClasses + classIndex];
+        }
+        double value = features[attribute[node]];
+        if (Double.isNaN(value)) {
+            double probability = 0.0;
+            for (int slot = firstChild[node]; slot < firstChild[node] + numChildren[node]; slot++) {
+                if (childNode[slot] < 0) {
+                    continue;
+                }
+                probability += probability(childNode[slot], classIndex, features, missingWeight[slot] * weight);
+            }
+            return probability;
+        }
+        int subset;
+        if (splitType[node] == NUMERIC) {
+            subset = value <= splitPoint[node] ? 0 : 1;
+        } else if (splitType[node] == NOMINAL) {
+            subset = (int) value;
+        } else {
+            subset = (int) splitPoint[node] == (int) value ? 0 : 1;
+        }
+        int slot = firstChild[node] + subset;
+        if (childNode[slot] < 0) {
+            return weight * emptyProbabilities[slot * numClasses + classIndex];
+        }
+        return probability(childNode[slot], classIndex, features, weight);
+    }
+}
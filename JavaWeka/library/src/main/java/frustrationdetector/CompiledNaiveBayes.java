@@ -0,0 +1,127 @@
+/**
+ * NaiveBayes compiled to per-class priors and per-feature normal estimator parameters
+ * (mean, standard deviation, precision), evaluated with the same arithmetic as
+ * NaiveBayes.distributionForInstance and NormalEstimator.getProbability
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.bayes.NaiveBayes;
+import weka.core.Instances;
+import weka.core.Statistics;
+import weka.estimators.Estimator;
+import weka.estimators.NormalEstimator;
+
+import java.io.IOException;
+
+public class CompiledNaiveBayes implements CompiledScorer {
+
+    private final int numClasses;
+    private final int numFeatures;
+    private final double[] priors;            // [class]
+    private final double[] means;             // [feature * numClasses + class]
+    private final double[] standardDevs;
+    private final double[] precisions;
+    private final double[] attributeWeights;  // [feature]
+
+    public CompiledNaiveBayes(NaiveBayes naiveBayes) {
+        if (naiveBayes.getUseKernelEstimator() || naiveBayes.getUseSupervisedDiscretization()) {
+            throw new IllegalArgumentException("Only NaiveBayes with normal estimators can be compiled");
+        }
+        Instances header = naiveBayes.getHeader();
+        Estimator[][] estimators = naiveBayes.getConditionalEstimators();
+        this.numClasses = header.numClasses();
+        this.numFeatures = header.numAttributes() - 1;
+        if (header.classIndex() != numFeatures) {
+            throw new IllegalArgumentException("The class must be the last attribute");
+        }
+
+        this.priors = new double[numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            priors[c] = naiveBayes.getClassEstimator().getProbability(c);
+        }
+        this.means = new double[numFeatures * numClasses];
+        this.standardDevs = new double[numFeatures * numClasses];
+        this.precisions = new double[numFeatures * numClasses];
+        this.attributeWeights = new double[numFeatures];
+        for (int f = 0; f < numFeatures; f++) {
+            attributeWeights[f] = header.attribute(f).weight();
+            for (int c = 0; c < numClasses; c++) {
+                if (!(estimators[f][c] instanceof NormalEstimator)) {
+                    throw new IllegalArgumentException("Attribute " + header.attribute(f).name() + " is not modelled by a NormalEstimator");
+                }
+                NormalEstimator estimator = (NormalEstimator) estimators[f][c];
+                means[f * numClasses + c] = estimator.getMean();
+                standardDevs[f * numClasses + c] = estimator.getStdDev();
+                precisions[f * numClasses + c] = estimator.getPrecision();
+            }
+        }
+    }
+
+    CompiledNaiveBayes(ModelFile.Reader in) throws IOException {
+        this.numClasses = in.readInt();
+        this.numFeatures = in.readInt();
+        this.priors = in.readDoubles();
+        this.means = in.readDoubles();
+        this.standardDevs = in.readDoubles();
+        this.precisions = in.readDoubles();
+        this.attributeWeights = in.readDoubles();
+    }
+
+    void write(ModelFile.Writer out) {
+        out.writeInt(numClasses);
+        out.writeInt(numFeatures);
+        out.writeDoubles(priors);
+        out.writeDoubles(means);
+        out.writeDoubles(standardDevs);
+        out.writeDoubles(precisions);
+        out.writeDoubles(attributeWeights);
+    }
+
+    @Override
+    public int numClasses() {
+        return numClasses;
+    }
+
+    @Override
+    public void distribution(double[] features, double[] out) {
+        for (int c = 0; c < numClasses; c++) {
+            out[c] = priors[c];
+        }
+        for (int f = 0; f < numFeatures; f++) {
+            double value = features[f];
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            double max = 0.0;
+            for (int c = 0; c < numClasses; c++) {
+                double probability = normalProbability(f * numClasses + c, value);
+                if (attributeWeights[f] != 1.0) {
+                    probability = Math.pow(probability, attributeWeights[f]);
+                }
+                out[c] *= Math.max(1.0E-75, probability);
+                if (out[c] > max) {
+                    max = out[c];
+                }
+            }
+            // Rescale to avoid underflow, as NaiveBayes does
+            if (max > 0.0 && max < 1.0E-75) {
+                for (int c = 0; c < numClasses; c++) {
+                    out[c] *= 1.0E75;
+                }
+            }
+        }
+        ModelCompiler.normalize(out, numClasses);
+    }
+
+    private double normalProbability(int cell, double value) {
+        double precision = precisions[cell];
+        double data = Math.rint(value / precision) * precision;
+        double zLower = (data - means[cell] - precision / 2.0) / standardDevs[cell];
+        double zUpper = (data - means[cell] + precision / 2.0) / standardDevs[cell];
+        double pLower = Statistics.normalProbability(zLower);
+        double pUpper = Statistics.normalProbability(zUpper);
+        return (pUpper - pLower) / precision;
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ * A trained model compiled into flat primitive arrays
+ * Scores the seven features (double[7], missing values as NaN) straight into a caller-owned
+ * class distribution, without building Weka instances and without heap allocation.
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+public interface CompiledScorer {
+
+    int numClasses();
+
+    // Write the class distribution of one row into out[0 .. numClasses()-1]
+    void distribution(double[] features, double[] out);
+
+    // Score numRows rows; scorers that can do better than one row at a time override this
+    default void distributions(double[][] rows, int numRows, double[][] out) {
+        for (int r = 0; r < numRows; r++) {
+            distribution(rows[r], out[r]);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Percentile bootstrap confidence interval over a set of bootstrapped statistics
+ * (mean, standard deviation and the lower/upper percentile bounds)
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+public class ConfidenceInterval {
+
+    private final double[] samples;
+    private final double confidenceLevel;
+    private final double mean;
+    private final double standardDeviation;
+    private final double lowerCI;
+    private final double upperCI;
+
+    private ConfidenceInterval(double[] sortedSamples, double confidenceLevel) {
+        this.samples = sortedSamples;
+        this.confidenceLevel = confidenceLevel;
+
+        // Calculate the mean and standard deviation
+        double sum = 0.0;
+        for (double sample : sortedSamples) {
+            sum += sample;
+        }
+        this.mean = sum / sortedSamples.length;
+        double sumOfSquares = 0.0;
+        for (double sample : sortedSamples) {
+            double diff = sample - mean;
+            sumOfSquares += diff * diff;
+        }
+        double variance = sumOfSquares / (sortedSamples.length - 1);
+        this.standardDeviation = Math.sqrt(variance);
+
+        // Calculate the confidence intervals (percentile method)
+        int numSamples = sortedSamples.length;
+        int lowerIndex = (int) (numSamples * (1 - confidenceLevel) / 2);
+        int upperIndex = Math.min((int) (numSamples * (1 + confidenceLevel) / 2), numSamples - 1);
+        this.lowerCI = sortedSamples[lowerIndex];
+        this.upperCI = sortedSamples[upperIndex];
+    }
+
+    // Build the interval from the bootstrapped statistics (the array is copied before sorting)
+    public static ConfidenceInterval fromSamples(double[] samples, double confidenceLevel) {
+        if (samples.length < 2) {
+            throw new IllegalArgumentException("At least two bootstrap samples are needed, got " + samples.length);
+        }
+        if (confidenceLevel <= 0.0 || confidenceLevel >= 1.0) {
+            throw new IllegalArgumentException("Confidence level must be in (0, 1), got " + confidenceLevel);
+        }
+        double[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        return new ConfidenceInterval(sorted, confidenceLevel);
+    }
+
+    public double getConfidenceLevel() {
+        return confidenceLevel;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getStandardDeviation() {
+        return standardDeviation;
+    }
+
+    public double getLowerCI() {
+        return lowerCI;
+    }
+
+    public double getUpperCI() {
+        return upperCI;
+    }
+
+    public double getHalfWidth() {
+        return (upperCI - lowerCI) / 2.0;
+    }
+
+    // Sorted bootstrapped statistics
+    public double[] getSamples() {
+        return samples.clone();
+    }
+
+    public int numSamples() {
+        return samples.length;
+    }
+
+    // Print the results in the same layout as ModelPredictionCI / ModelTraining
+    public void print(PrintStream out) {
+        out.println("Sample Mean: " + mean);
+        out.println("Standard Deviation: " + standardDeviation);
+        out.println("Confidence Interval (" + (confidenceLevel * 100) + "%): [" + lowerCI + ", " + upperCI + "]");
+        out.printf("Confidence Interval (%.0f%%): %.2f ± %.2f\n", (confidenceLevel * 100), mean, getHalfWidth());
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * The bundled ARFF datasets (ASSISTments training sets, UTAS and EmoDetect test sets)
+ * Lists every ARFF file under data/Training and data/Test DataSets and loads them with the
+ * class set to the last attribute, as every program in this folder does. Loads go through the
+ * columnar cache of ColumnarDataset, which is rebuilt whenever an ARFF file changes.
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils.DataSource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public final class DatasetCatalog {
+
+    public static final String[] DATASET_DIRECTORIES = {
+        "data/Training",
+        "data/Test DataSets"
+    };
+
+    private DatasetCatalog() {
+    }
+
+    // Every ARFF file of the dataset directories, sorted by path
+    public static List<String> arffFiles() throws IOException {
+        List<String> files = new ArrayList<>();
+        for (String directory : DATASET_DIRECTORIES) {
+            files.addAll(arffFiles(directory));
+        }
+        return files;
+    }
+
+    public static List<String> arffFiles(String directory) throws IOException {
+        Path root = Paths.get(directory);
+        if (!Files.isDirectory(root)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths
+                .filter(path -> path.toString().toLowerCase().endsWith(".arff"))
+                .map(Path::toString)
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    // Load a dataset with the class attribute set to the last attribute, through its columnar cache
+    public static Instances load(String path) throws Exception {
+        return ColumnarDataset.load(path).instances();
+    }
+
+    // Parse a dataset file with DataSource, with the class attribute set to the last attribute
+    public static Instances parse(String path) throws Exception {
+        DataSource dataSource = new DataSource(path);
+        Instances data = dataSource.getDataSet();
+        data.setClassIndex(data.numAttributes() - 1);
+        return data;
+    }
+
+    // Short dataset name from its path, e.g. data/Test DataSets/UTAS/TEST-UTAS-FINAL-424.arff -> TEST-UTAS-FINAL-424
+    public static String datasetName(String path) {
+        String name = Paths.get(path).getFileName().toString();
+        return name.toLowerCase().endsWith(".arff") ? name.substring(0, name.length() - 5) : name;
+    }
+
+    // Hex SHA-256 of a file's bytes, to tell which version of a dataset something was built from
+    public static String sha256(String path) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(Files.readAllBytes(Paths.get(path)));
+            StringBuilder hex = new StringBuilder(2 * hash.length);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Path of a bundled dataset from its short name, e.g. TEST-UTAS-FINAL-424
+    public static String path(String datasetName) throws IOException {
+        for (String path : arffFiles()) {
+            if (datasetName(path).equals(datasetName)) {
+                return path;
+            }
+        }
+        throw new IllegalArgumentException("Unknown dataset " + datasetName);
+    }
+}
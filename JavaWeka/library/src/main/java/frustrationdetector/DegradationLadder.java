@@ -0,0 +1,302 @@
+/**
+ * Load-shedding ladder of progressively cheaper models
+ * Requests queue for a fixed pool of scoring workers and are scored by the model of the current
+ * level (e.g. RandomForest -> J48 -> CostSensitive_NB). A controller thread watches the queue
+ * depth and the p99 latency of every tick; it steps down one level when either exceeds its limit
+ * and steps back up only after both have stayed below half their limit for several ticks
+ * (hysteresis). Every result names the model that produced it.
+ * Options: -ladder <comma separated model names> -max-queue <queued requests> -max-p99 <us> -seconds <per load phase>
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class DegradationLadder implements AutoCloseable {
+
+    public static final String[] DEFAULT_LADDER = {"RandomForest", "J48", "CostSensitive_NB"};
+    public static final int DEFAULT_MAX_QUEUE = 64;
+    public static final long DEFAULT_MAX_P99_MICROS = 5000;
+    public static final long DEFAULT_TICK_MILLIS = 250;
+    public static final int DEFAULT_RECOVERY_TICKS = 8;
+
+    // Latency histogram: 4 buckets per power of two of microseconds, up to about 70 minutes
+    private static final int BUCKETS_PER_OCTAVE = 4;
+    private static final int HISTOGRAM_BUCKETS = 32 * BUCKETS_PER_OCTAVE;
+
+    /** A distribution and the name of the model that produced it. */
+    public static final class Result {
+        private final String model;
+        private final double[] distribution;
+
+        Result(String model, double[] distribution) {
+            this.model = model;
+            this.distribution = distribution;
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        public double[] getDistribution() {
+            return distribution;
+        }
+    }
+
+    private final String[] names;
+    private final CompiledScorer[] scorers;
+    private final int maxQueue;
+    private final long maxP99Nanos;
+    private final int recoveryTicks;
+
+    private volatile int level;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger peakQueued = new AtomicInteger();
+    // Cumulative latency histogram; each tick takes the difference from its previous reading
+    private final LongAdder[] latencies = new LongAdder[HISTOGRAM_BUCKETS];
+    private final long[] latenciesSeen = new long[HISTOGRAM_BUCKETS];   // controller thread only
+    private final AtomicLongArray served;
+    private int calmTicks;
+    private volatile long lastP99Nanos;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService controller;
+
+    public DegradationLadder(String[] names, CompiledScorer[] scorers, int numWorkers, int maxQueue, long maxP99Micros, long tickMillis, int recoveryTicks) {
+        if (names.length == 0 || names.length != scorers.length) {
+            throw new IllegalArgumentException("The ladder needs one name per scorer");
+        }
+        this.names = names.clone();
+        this.scorers = scorers.clone();
+        this.maxQueue = maxQueue;
+        this.maxP99Nanos = TimeUnit.MICROSECONDS.toNanos(maxP99Micros);
+        this.recoveryTicks = recoveryTicks;
+        this.served = new AtomicLongArray(names.length);
+        for (int b = 0; b < HISTOGRAM_BUCKETS; b++) {
+            latencies[b] = new LongAdder();
+        }
+        this.workers = Executors.newFixedThreadPool(numWorkers, runnable -> {
+            Thread thread = new Thread(runnable, "degradation-ladder-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.controller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "degradation-ladder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        controller.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Load the ladder's models by name and compile them (every rung must be compilable)
+    public static DegradationLadder load(String[] names, int maxQueue, long maxP99Micros) throws Exception {
+        CompiledScorer[] scorers = new CompiledScorer[names.length];
+        for (int i = 0; i < names.length; i++) {
+            scorers[i] = ModelCompiler.compile((Classifier) SerializationHelper.read(ModelInspector.modelPath(names[i])));
+        }
+        return new DegradationLadder(names, scorers, Runtime.getRuntime().availableProcessors(), maxQueue, maxP99Micros,
+                DEFAULT_TICK_MILLIS, DEFAULT_RECOVERY_TICKS);
+    }
+
+    /*
+     * Queue a request for the workers. The rung is chosen when a worker picks the request up, so a
+     * backlog built under a slow model drains with the cheaper one; the latency recorded runs from
+     * submission to completion and so includes the time spent waiting. The features are copied,
+     * so the caller may reuse its array as soon as this returns.
+     */
+    public CompletableFuture<Result> submit(double[] features) {
+        long start = System.nanoTime();
+        double[] row = features.clone();
+        peakQueued.accumulateAndGet(queued.incrementAndGet(), Math::max);
+        return CompletableFuture.supplyAsync(() -> {
+            queued.decrementAndGet();
+            int rung = level;
+            double[] distribution = new double[scorers[rung].numClasses()];
+            try {
+                scorers[rung].distribution(row, distribution);
+            } finally {
+                latencies[bucket(System.nanoTime() - start)].increment();
+            }
+            served.incrementAndGet(rung);
+            return new Result(names[rung], distribution);
+        }, workers);
+    }
+
+    public Result score(double[] features) {
+        return submit(features).join();
+    }
+
+    public String[] names() {
+        return names.clone();
+    }
+
+    public int queueDepth() {
+        return queued.get();
+    }
+
+    public String currentModel() {
+        return names[level];
+    }
+
+    public int level() {
+        return level;
+    }
+
+    public long lastP99Micros() {
+        return lastP99Nanos / 1000;
+    }
+
+    public long served(int rung) {
+        return served.get(rung);
+    }
+
+    /*
+     * One controller step over the tick that just ended: down a rung when the peak queue depth or
+     * the p99 broke its limit, up a rung after recoveryTicks consecutive ticks below half of both.
+     */
+    private void tick() {
+        // A latency recorded while this runs is counted by this tick or the next, never lost
+        long[] window = new long[HISTOGRAM_BUCKETS];
+        for (int b = 0; b < HISTOGRAM_BUCKETS; b++) {
+            long count = latencies[b].sum();
+            window[b] = count - latenciesSeen[b];
+            latenciesSeen[b] = count;
+        }
+        int peak = peakQueued.getAndSet(queued.get());
+        long p99 = percentile(window, 0.99);
+        lastP99Nanos = p99;
+
+        int rung = level;
+        if (peak > maxQueue || p99 > maxP99Nanos) {
+            calmTicks = 0;
+            if (rung < names.length - 1) {
+                level = rung + 1;
+                System.err.printf("Degraded to %s (queue %d, p99 %d us)%n", names[rung + 1], peak, p99 / 1000);
+            }
+        } else if (2 * peak <= maxQueue && 2 * p99 <= maxP99Nanos) {
+            if (++calmTicks >= recoveryTicks && rung > 0) {
+                calmTicks = 0;
+                level = rung - 1;
+                System.err.printf("Recovered to %s (queue %d, p99 %d us)%n", names[rung - 1], peak, p99 / 1000);
+            }
+        } else {
+            calmTicks = 0;
+        }
+    }
+
+    private static int bucket(long nanos) {
+        double micros = Math.max(1.0, nanos / 1000.0);
+        return Math.min(HISTOGRAM_BUCKETS - 1, (int) (Math.log(micros) / Math.log(2) * BUCKETS_PER_OCTAVE));
+    }
+
+    // Upper edge of the bucket holding the given quantile, in nanoseconds (0 for an empty window)
+    private static long percentile(long[] histogram, double quantile) {
+        long total = 0;
+        for (int b = 0; b < HISTOGRAM_BUCKETS; b++) {
+            total += histogram[b];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int b = 0; b < HISTOGRAM_BUCKETS; b++) {
+            seen += histogram[b];
+            if (seen >= rank) {
+                return (long) (1000 * Math.pow(2, (b + 1) / (double) BUCKETS_PER_OCTAVE));
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public void close() {
+        controller.shutdownNow();
+        workers.shutdown();
+    }
+
+    public static void main(String[] args) {
+        try {
+            String ladder = Utils.getOption("ladder", args);
+            String[] names = ladder.length() == 0 ? DEFAULT_LADDER : ladder.split(",");
+            String queue = Utils.getOption("max-queue", args);
+            int maxQueue = queue.length() == 0 ? DEFAULT_MAX_QUEUE : Integer.parseInt(queue);
+            String p99 = Utils.getOption("max-p99", args);
+            long maxP99 = p99.length() == 0 ? DEFAULT_MAX_P99_MICROS : Long.parseLong(p99);
+            String seconds = Utils.getOption("seconds", args);
+            double phaseSeconds = seconds.length() == 0 ? 3.0 : Double.parseDouble(seconds);
+
+            Instances data = DatasetCatalog.load("data/Test DataSets/UTAS/TEST-UTAS-FINAL-424.arff");
+            double[][] rows = new double[data.numInstances()][FrustrationFeatures.NUM_FEATURES];
+            for (int i = 0; i < rows.length; i++) {
+                FrustrationFeatures.toFeatures(data.instance(i), rows[i]);
+            }
+
+            try (DegradationLadder degradation = load(names, maxQueue, maxP99)) {
+                // Quiet, exam-period spike, quiet again
+                int[] phases = {1, 4 * maxQueue, 1};
+                for (int clients : phases) {
+                    System.out.println("--- " + clients + " concurrent clients for " + phaseSeconds + " s ---");
+                    long[] before = new long[names.length];
+                    for (int r = 0; r < names.length; r++) {
+                        before[r] = degradation.served(r);
+                    }
+                    run(degradation, rows, clients, phaseSeconds);
+                    for (int r = 0; r < names.length; r++) {
+                        System.out.printf("  %-18s %d responses%n", names[r], degradation.served(r) - before[r]);
+                    }
+                    System.out.println("  now serving " + degradation.currentModel() + ", last p99 " + degradation.lastP99Micros() + " us");
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void run(DegradationLadder degradation, double[][] rows, int numClients, double seconds) {
+        long end = System.nanoTime() + (long) (seconds * 1e9);
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < numClients; c++) {
+                final int client = c;
+                clients.submit(() -> {
+                    int i = client;
+                    while (System.nanoTime() < end) {
+                        degradation.score(rows[i++ % rows.length]);
+                    }
+                });
+            }
+        }
+    }
+}
+
+/* Note:
+
+The ladder is ordered from the most accurate and most expensive model to the cheapest. Pressure
+is measured by the controller every 250 ms: the largest number of requests waiting for a worker
+during the tick, and the p99 of the tick's latencies from a histogram with four buckets per
+power of two (so the p99 is known to within 19%). The histogram is cumulative (a LongAdder per
+bucket, so workers do not contend on one counter) and each tick subtracts the counts it saw
+last time: swapping in a fresh array lost the latencies of workers that had read the old one. One bad tick steps down one rung; stepping up needs eight
+calm ticks in a row with both signals under half their limits. The gap between the two
+thresholds and the dwell time keep the level from flapping around a limit.
+
+Each Result carries the name of the model that scored it, so metrics and stored predictions can
+be split by the model really used rather than the one the client asked for.
+
+Example:
+java DegradationLadder -ladder RandomForest,J48,CostSensitive_NB -max-queue 32 -max-p99 2000 -seconds 5
+ *
+ *
+*/
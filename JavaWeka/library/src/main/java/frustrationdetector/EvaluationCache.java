@@ -0,0 +1,524 @@
+/**
+ * Disk-backed memo of evaluation results keyed by model, dataset and bootstrap parameters
+ * An entry holds the per-instance class distributions of a model on a dataset and the bootstrap
+ * samples of the predict-once report (AUC, Kappa, weighted F-Measure). It is keyed by the
+ * SHA-256 of the model file, the SHA-256 of the dataset file and the -B/-C/-S options, so an
+ * unchanged combination is read back instead of recomputed. When the dataset changed and the
+ * model scores every row on its own (not IBk), the rows whose feature values an earlier entry of
+ * the same model already scored are reused and only the new or edited rows are classified. The
+ * store is bounded in bytes and evicts the least recently used entries (file modification time
+ * is the use time).
+ * Options: -model <model name> -i <arff file> -B <samples> -C <confidence> -S <seed> -max-mb <store size>
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.SingleClassifierEnhancer;
+import weka.classifiers.evaluation.Evaluation;
+import weka.classifiers.lazy.IBk;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+public class EvaluationCache {
+
+    public static final int MAGIC = 0x56454446;   // "FDEV"
+    public static final int VERSION = 1;
+    public static final String EXTENSION = ".fde";
+    public static final String DEFAULT_DIRECTORY = "data/cache/evaluations";
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    static final int HEADER_SIZE = 128;
+
+    /** A cached (or just computed) evaluation: the predictions and the bootstrap report. */
+    public static final class Entry {
+        private final PredictionCache predictions;
+        private final BootstrapReport report;
+        private final boolean hit;
+        private final int rowsClassified;
+
+        Entry(PredictionCache predictions, BootstrapReport report, boolean hit, int rowsClassified) {
+            this.predictions = predictions;
+            this.report = report;
+            this.hit = hit;
+            this.rowsClassified = rowsClassified;
+        }
+
+        public PredictionCache getPredictions() {
+            return predictions;
+        }
+
+        public BootstrapReport getReport() {
+            return report;
+        }
+
+        // True when the whole entry came from the store
+        public boolean isHit() {
+            return hit;
+        }
+
+        // Rows the model had to classify (0 on a hit or when every row was found in older entries)
+        public int getRowsClassified() {
+            return rowsClassified;
+        }
+
+        // Feed the cached distributions to a Weka Evaluation, as evaluateModel would have
+        public void replay(Evaluation evaluation, Instances data) throws Exception {
+            if (data.numInstances() != predictions.numInstances()) {
+                throw new IllegalArgumentException("The entry has " + predictions.numInstances() + " rows, the dataset " + data.numInstances());
+            }
+            double[] distribution = new double[predictions.numClasses()];
+            for (int i = 0; i < data.numInstances(); i++) {
+                for (int c = 0; c < distribution.length; c++) {
+                    distribution[c] = predictions.score(i, c);
+                }
+                evaluation.evaluateModelOnceAndRecordPrediction(distribution.clone(), data.instance(i));
+            }
+        }
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+
+    public EvaluationCache() {
+        this(Paths.get(DEFAULT_DIRECTORY), DEFAULT_MAX_BYTES);
+    }
+
+    public EvaluationCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /*
+     * The evaluation of a model file on a dataset file with the bootstrap's -B/-C/-S: read back
+     * when stored, otherwise computed (reusing row predictions of older entries of the same
+     * model when its rows are independent), stored and returned. The model is only deserialized
+     * when some row needs it.
+     */
+    public Entry evaluate(String modelPath, String datasetPath, BootstrapEngine bootstrap) throws Exception {
+        String modelSha256 = DatasetCatalog.sha256(modelPath);
+        String datasetSha256 = DatasetCatalog.sha256(datasetPath);
+        Path path = directory.resolve(key(modelSha256, datasetSha256, bootstrap) + EXTENSION);
+        try {
+            Stored stored = read(path);
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            return new Entry(stored.predictions(), stored.report(bootstrap.getConfidenceLevel()), true, 0);
+        } catch (NoSuchFileException e) {
+            // Not evaluated yet
+        } catch (IOException e) {
+            System.err.println("Recomputing evaluation " + path.getFileName() + ": " + e.getMessage());
+        }
+
+        Instances data = DatasetCatalog.load(datasetPath);
+        int numRows = data.numInstances();
+        int numClasses = data.numClasses();
+        long[] rowHashes = new long[numRows];
+        for (int i = 0; i < numRows; i++) {
+            rowHashes[i] = rowHash(data.instance(i));
+        }
+        // Only entries of row-independent models are returned, so a non-empty map vouches for this model
+        Map<Long, double[]> known = knownRows(modelSha256, numClasses);
+
+        double[] distributions = new double[numRows * numClasses];
+        int[] actual = new int[numRows];
+        Classifier classifier = null;
+        int rowsClassified = 0;
+        for (int i = 0; i < numRows; i++) {
+            Instance instance = data.instance(i);
+            double[] distribution = known.get(rowHashes[i]);
+            if (distribution == null) {
+                if (classifier == null) {
+                    classifier = (Classifier) SerializationHelper.read(modelPath);
+                }
+                distribution = classifier.distributionForInstance(instance);
+                rowsClassified++;
+            }
+            System.arraycopy(distribution, 0, distributions, i * numClasses, numClasses);
+            actual[i] = instance.classIsMissing() ? -1 : (int) instance.classValue();
+        }
+        String[] classValues = new String[numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            classValues[c] = data.classAttribute().value(c);
+        }
+        PredictionCache predictions = new PredictionCache(distributions, actual, classValues);
+        BootstrapReport report = bootstrap.bootstrapCached(predictions);
+        boolean rowsIndependent = classifier == null || !known.isEmpty() || rowsIndependent(classifier);
+
+        try {
+            write(path, modelSha256, datasetSha256, bootstrap, rowsIndependent, rowHashes, predictions, report);
+            evict(path);
+        } catch (IOException e) {
+            System.err.println("Evaluation " + path.getFileName() + " not stored: " + e.getMessage());
+        }
+        return new Entry(predictions, report, false, rowsClassified);
+    }
+
+    // Hex SHA-256 of both content hashes and the options that change the bootstrap samples
+    static String key(String modelSha256, String datasetSha256, BootstrapEngine bootstrap) throws Exception {
+        String text = modelSha256 + "|" + datasetSha256 + "|B=" + bootstrap.getNumBootstrapSamples()
+            + "|C=" + bootstrap.getConfidenceLevel() + "|S=" + bootstrap.getSeed();
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder(2 * hash.length);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /*
+     * Whether a model's distribution for a row depends on that row alone, so that it can be
+     * reused in another dataset: true for the compiled algorithms except IBk, bare or wrapped,
+     * which widens its attribute ranges with every row it scores (the distributions depend on
+     * the rows scored before). Models that do not compile are not vouched for.
+     */
+    static boolean rowsIndependent(Classifier classifier) {
+        if (!ModelCompiler.canCompile(classifier)) {
+            return false;
+        }
+        while (classifier instanceof SingleClassifierEnhancer) {
+            classifier = ((SingleClassifierEnhancer) classifier).getClassifier();
+        }
+        return !(classifier instanceof IBk);
+    }
+
+    // 64-bit hash of a row's non-class values: what the model's output depends on
+    static long rowHash(Instance instance) {
+        long hash = 0x9E3779B97F4A7C15L;
+        for (int a = 0; a < instance.numAttributes(); a++) {
+            if (a == instance.classIndex()) {
+                continue;
+            }
+            hash ^= Double.doubleToLongBits(instance.value(a));
+            hash *= 0xBF58476D1CE4E5B9L;
+            hash ^= hash >>> 31;
+        }
+        return hash;
+    }
+
+    /** The decoded contents of one entry file. */
+    static final class Stored {
+        final String modelSha256;
+        final boolean rowsIndependent;
+        final int numClasses;
+        final long[] rowHashes;
+        final double[] distributions;
+        final int[] actual;
+        final String[] classValues;
+        final double[][] samples;   // auc, kappa, weighted F-Measure
+
+        Stored(String modelSha256, boolean rowsIndependent, int numClasses, long[] rowHashes, double[] distributions, int[] actual,
+               String[] classValues, double[][] samples) {
+            this.modelSha256 = modelSha256;
+            this.rowsIndependent = rowsIndependent;
+            this.numClasses = numClasses;
+            this.rowHashes = rowHashes;
+            this.distributions = distributions;
+            this.actual = actual;
+            this.classValues = classValues;
+            this.samples = samples;
+        }
+
+        PredictionCache predictions() {
+            return new PredictionCache(distributions, actual, classValues);
+        }
+
+        BootstrapReport report(double confidenceLevel) {
+            return new BootstrapReport(
+                ConfidenceInterval.fromSamples(samples[0], confidenceLevel),
+                ConfidenceInterval.fromSamples(samples[1], confidenceLevel),
+                ConfidenceInterval.fromSamples(samples[2], confidenceLevel));
+        }
+    }
+
+    /*
+     * Header: magic, version, rows, classes, samples per statistic, class value text length,
+     * payload length, CRC32, confidence level, seed, model SHA-256, dataset SHA-256, and a byte
+     * that is 1 when the model's rows are independent (zero padding in older entries). Payload: row
+     * hashes, distributions (row-major), the three sample arrays, actual classes (int) and the
+     * class values as newline separated UTF-8 text, every section 8 byte aligned.
+     */
+    private static void write(Path path, String modelSha256, String datasetSha256, BootstrapEngine bootstrap,
+                              boolean rowsIndependent, long[] rowHashes, PredictionCache predictions, BootstrapReport report) throws IOException {
+        int numRows = predictions.numInstances();
+        int numClasses = predictions.numClasses();
+        double[][] samples = {report.getAUC().getSamples(), report.getKappa().getSamples(), report.getWeightedFMeasure().getSamples()};
+        int numSamples = samples[0].length;
+        StringBuilder names = new StringBuilder();
+        for (int c = 0; c < numClasses; c++) {
+            names.append(c > 0 ? "\n" : "").append(predictions.classValue(c));
+        }
+        byte[] classValues = names.toString().getBytes(StandardCharsets.UTF_8);
+        long payloadLength = 8L * numRows + 8L * numRows * numClasses + 3 * 8L * numSamples + align(4L * numRows) + classValues.length;
+
+        ByteBuffer payload = ByteBuffer.allocate(Math.toIntExact(payloadLength)).order(ByteOrder.LITTLE_ENDIAN);
+        for (long rowHash : rowHashes) {
+            payload.putLong(rowHash);
+        }
+        for (int i = 0; i < numRows; i++) {
+            for (int c = 0; c < numClasses; c++) {
+                payload.putDouble(predictions.score(i, c));
+            }
+        }
+        for (double[] statistic : samples) {
+            for (double sample : statistic) {
+                payload.putDouble(sample);
+            }
+        }
+        for (int i = 0; i < numRows; i++) {
+            payload.putInt(predictions.actual(i));
+        }
+        payload.position(Math.toIntExact(payloadLength - classValues.length));
+        payload.put(classValues);
+        payload.flip();
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(numRows).putInt(numClasses).putInt(numSamples).putInt(classValues.length);
+        header.putLong(payloadLength).putLong(crc.getValue());
+        header.putDouble(bootstrap.getConfidenceLevel()).putLong(bootstrap.getSeed());
+        header.put(hexToBytes(modelSha256)).put(hexToBytes(datasetSha256)).put((byte) (rowsIndependent ? 1 : 0));
+        header.position(HEADER_SIZE).flip();
+
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        // Not createTempFile, whose files are private (0600): the store is shared, so the entry
+        // gets the umask's permissions like any other new file
+        Path temporary = path.toAbsolutePath().resolveSibling(path.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while (payload.hasRemaining()) {
+                    channel.write(payload);
+                }
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    // Map an entry file and check its header, length and checksum
+    private static Stored read(Path path) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(path + ": not an evaluation cache file (too short)");
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException(path + ": not an evaluation cache file (bad magic number)");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException(path + ": unsupported format version " + version + " (expected " + VERSION + ")");
+        }
+        int numRows = buffer.getInt(8);
+        int numClasses = buffer.getInt(12);
+        int numSamples = buffer.getInt(16);
+        int classValuesLength = buffer.getInt(20);
+        long payloadLength = buffer.getLong(24);
+        if (payloadLength != buffer.capacity() - HEADER_SIZE
+            || payloadLength != 8L * numRows + 8L * numRows * numClasses + 3 * 8L * numSamples + align(4L * numRows) + classValuesLength) {
+            throw new IOException(path + ": truncated (payload of " + payloadLength + " bytes expected)");
+        }
+        ByteBuffer payload = buffer.duplicate().position(HEADER_SIZE).slice().order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if (crc.getValue() != buffer.getLong(32)) {
+            throw new IOException(path + ": checksum mismatch");
+        }
+        byte[] modelHash = new byte[32];
+        buffer.get(56, modelHash);
+
+        long[] rowHashes = new long[numRows];
+        payload.asLongBuffer().get(rowHashes);
+        int offset = 8 * numRows;
+        double[] distributions = new double[numRows * numClasses];
+        payload.position(offset).slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(distributions);
+        offset += 8 * numRows * numClasses;
+        double[][] samples = new double[3][numSamples];
+        for (double[] statistic : samples) {
+            payload.position(offset).slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(statistic);
+            offset += 8 * numSamples;
+        }
+        int[] actual = new int[numRows];
+        payload.position(offset).slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(actual);
+        offset += (int) align(4L * numRows);
+        byte[] classValues = new byte[classValuesLength];
+        payload.get(offset, classValues);
+        String[] names = new String(classValues, StandardCharsets.UTF_8).split("\n", -1);
+        if (names.length != numClasses) {
+            throw new IOException(path + ": expected " + numClasses + " class values, found " + names.length);
+        }
+        return new Stored(bytesToHex(modelHash), buffer.get(120) == 1, numClasses, rowHashes, distributions, actual, names, samples);
+    }
+
+    /*
+     * Distributions by row hash from every stored entry of the same model whose rows are
+     * independent (none for IBk), newest last so they win. The entries are small (a few hundred
+     * KB for the biggest dataset), so this is a scan of the directory; it only runs on a miss.
+     */
+    private Map<Long, double[]> knownRows(String modelSha256, int numClasses) throws IOException {
+        Map<Long, double[]> known = new HashMap<>();
+        for (Path path : entriesOldestFirst()) {
+            Stored stored;
+            try {
+                stored = read(path);
+            } catch (IOException e) {
+                continue;
+            }
+            if (!stored.rowsIndependent || !stored.modelSha256.equals(modelSha256) || stored.numClasses != numClasses) {
+                continue;
+            }
+            for (int i = 0; i < stored.rowHashes.length; i++) {
+                double[] distribution = new double[numClasses];
+                System.arraycopy(stored.distributions, i * numClasses, distribution, 0, numClasses);
+                known.put(stored.rowHashes[i], distribution);
+            }
+        }
+        return known;
+    }
+
+    // Delete the least recently used entries until the store fits in maxBytes; keep the new one
+    private void evict(Path keep) throws IOException {
+        List<Path> entries = entriesOldestFirst();
+        long total = 0;
+        for (Path entry : entries) {
+            total += Files.size(entry);
+        }
+        for (Path entry : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (!entry.equals(keep)) {
+                total -= Files.size(entry);
+                Files.deleteIfExists(entry);
+            }
+        }
+    }
+
+    private List<Path> entriesOldestFirst() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return entries;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path entry : stream) {
+                entries.add(entry);
+            }
+        }
+        Map<Path, FileTime> used = new HashMap<>();
+        for (Path entry : entries) {
+            used.put(entry, Files.getLastModifiedTime(entry));
+        }
+        entries.sort((a, b) -> used.get(a).compareTo(used.get(b)));
+        return entries;
+    }
+
+    private static long align(long length) {
+        return (length + 7) & ~7L;
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String bytesToHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    public static void main(String[] args) {
+        try {
+            String modelName = Utils.getOption("model", args);
+            String modelPath = ModelInspector.modelPath(modelName.length() == 0 ? "RandomForest" : modelName);
+            String datasetPath = Utils.getOption("i", args);
+            if (datasetPath.length() == 0) {
+                datasetPath = "data/Test DataSets/UTAS/TEST-UTAS-FINAL-424.arff";
+            }
+            String maxMb = Utils.getOption("max-mb", args);
+            EvaluationCache cache = new EvaluationCache(Paths.get(DEFAULT_DIRECTORY),
+                maxMb.length() == 0 ? DEFAULT_MAX_BYTES : Long.parseLong(maxMb) << 20);
+            BootstrapEngine bootstrap = new BootstrapEngine();
+            bootstrap.setOptions(args);
+
+            for (int run = 1; run <= 2; run++) {
+                long start = System.nanoTime();
+                Entry entry = cache.evaluate(modelPath, datasetPath, bootstrap);
+                System.out.printf("Run %d: %s, %d rows classified, %.1f ms%n", run, entry.isHit() ? "hit" : "computed",
+                    entry.getRowsClassified(), (System.nanoTime() - start) / 1e6);
+                if (run == 2) {
+                    entry.getReport().print(System.out);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/* Note:
+
+The key covers everything the stored numbers depend on: the model and dataset bytes (a retrained
+model or an edited ARFF file gets a new key) and -B, -C and -S. -num-slots is left out because
+BootstrapEngine splits the random streams per round up front, so the samples do not depend on
+the thread count. The bootstrap is the predict-once one (bootstrapCached).
+
+Partial reuse: each row is identified by a 64-bit hash of its feature values. On a miss the
+entries of the same model are scanned and every row whose hash is already known takes its stored
+distribution, so appending rows to a test set or correcting a few values classifies only those
+rows; the bootstrap is rerun (it is cheap over cached predictions). The model file is not even
+deserialized when no row needs it.
+This only holds for models that score each row on its own. IBk (the KNN model, also inside
+CostSensitiveClassifier) updates its attribute ranges with every test row, so a row's
+distribution depends on the rows scored before it: stitching stored rows together gave an AUC
+of 0.611 where scoring the file fresh gives 0.710. Each entry records whether its model's rows
+are independent (the compiled algorithms other than IBk), and only such entries are reused;
+everything else is scored from the first row of the file on every miss.
+
+Eviction happens after every store: entries are removed oldest use first until the directory
+fits in the bound (64 MB by default; an entry is about 8 * rows * (classes + 1) + 24 * B bytes).
+A hit refreshes the entry's modification time.
+
+Example:
+java EvaluationCache -model KNN -i "data/Test DataSets/EmoDetect/TEST-EmoDetect-FINAL-300.arff" -B 1000 -C 0.95 -S 1
+java ModelPredictionCI -cache -predict-once -B 1000
+ *
+ *
+*/
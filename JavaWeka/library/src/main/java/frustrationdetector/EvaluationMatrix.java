@@ -0,0 +1,319 @@
+/**
+ * Evaluates every model of ModelInspector on every bundled ARFF dataset concurrently
+ * Each model file and each dataset is read exactly once and shared read-only by a fixed worker
+ * pool; every (model, dataset) pair is then scored, evaluated and bootstrapped as its own task.
+ * The results are written as one consolidated table (AUC with CI, kappa with CI, weighted P/R/F).
+ * Options: -output <file, default stdout> -format <csv|json> -num-slots <workers> -B <samples> -C <confidence> -S <seed>
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.lazy.IBk;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class EvaluationMatrix {
+
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_JSON = "json";
+
+    private static final String[] COLUMNS = {
+        "model", "dataset", "instances",
+        "auc", "auc_lower", "auc_upper",
+        "kappa", "kappa_lower", "kappa_upper",
+        "weighted_precision", "weighted_recall", "weighted_f_measure", "f_measure_lower", "f_measure_upper",
+        "millis"
+    };
+
+    /** A model read once from disk; the compiled scorer (if any) is shared by every task. */
+    private static class LoadedModel {
+        final String name;
+        final Classifier classifier;
+        final CompiledScorer scorer;
+
+        LoadedModel(String name, Classifier classifier, CompiledScorer scorer) {
+            this.name = name;
+            this.classifier = classifier;
+            this.scorer = scorer;
+        }
+    }
+
+    /** One row of the table. */
+    public static class Result {
+        final String model;
+        final String dataset;
+        final int numInstances;
+        final double auc;
+        final double kappa;
+        final double weightedPrecision;
+        final double weightedRecall;
+        final double weightedFMeasure;
+        final BootstrapReport report;
+        final long millis;
+
+        Result(String model, String dataset, int numInstances, double auc, double kappa,
+               double weightedPrecision, double weightedRecall, double weightedFMeasure,
+               BootstrapReport report, long millis) {
+            this.model = model;
+            this.dataset = dataset;
+            this.numInstances = numInstances;
+            this.auc = auc;
+            this.kappa = kappa;
+            this.weightedPrecision = weightedPrecision;
+            this.weightedRecall = weightedRecall;
+            this.weightedFMeasure = weightedFMeasure;
+            this.report = report;
+            this.millis = millis;
+        }
+
+        Object[] values() {
+            return new Object[] {
+                model, dataset, numInstances,
+                auc, report.getAUC().getLowerCI(), report.getAUC().getUpperCI(),
+                kappa, report.getKappa().getLowerCI(), report.getKappa().getUpperCI(),
+                weightedPrecision, weightedRecall, weightedFMeasure,
+                report.getWeightedFMeasure().getLowerCI(), report.getWeightedFMeasure().getUpperCI(),
+                millis
+            };
+        }
+    }
+
+    private final int numWorkers;
+    private final String[] bootstrapOptions;
+
+    public EvaluationMatrix(int numWorkers, String[] bootstrapOptions) {
+        this.numWorkers = Math.max(1, numWorkers);
+        this.bootstrapOptions = bootstrapOptions.clone();
+    }
+
+    public static void main(String[] args) {
+        try {
+            String outputPath = Utils.getOption("output", args);
+            String format = Utils.getOption("format", args);
+            if (format.length() == 0) {
+                format = FORMAT_CSV;
+            }
+            if (!FORMAT_CSV.equals(format) && !FORMAT_JSON.equals(format)) {
+                throw new IllegalArgumentException("Unknown output format: " + format + " (use csv or json)");
+            }
+            // The workers are the parallelism; every bootstrap runs single-threaded inside its task
+            String slots = Utils.getOption("num-slots", args);
+            int numWorkers = slots.length() == 0 ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(slots);
+
+            // Validate -B/-C/-S once up front
+            BootstrapEngine bootstrap = new BootstrapEngine();
+            bootstrap.setOptions(args);
+            bootstrap.setNumThreads(1);
+
+            EvaluationMatrix matrix = new EvaluationMatrix(numWorkers, bootstrap.getOptions());
+            long start = System.nanoTime();
+            List<Result> results = matrix.evaluate(ModelInspector.MODEL_PATHS, DatasetCatalog.arffFiles());
+            System.err.println("Evaluated " + results.size() + " model/dataset pairs on " + numWorkers
+                + " workers in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+            OutputStream outputStream = outputPath.length() == 0 ? System.out : new FileOutputStream(outputPath);
+            Writer out = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            try {
+                write(results, out, format);
+            } finally {
+                out.flush();
+                if (outputStream != System.out) {
+                    out.close();
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Load every model and every dataset once (as pool tasks) and evaluate each pair as soon as
+     * both of its inputs are ready. The rows come back in model order, then dataset order.
+     */
+    public List<Result> evaluate(String[] modelPaths, List<String> datasetPaths) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(numWorkers);
+        try {
+            List<CompletableFuture<LoadedModel>> models = new ArrayList<>();
+            for (String modelPath : modelPaths) {
+                models.add(CompletableFuture.supplyAsync(() -> loadModel(modelPath), pool));
+            }
+            List<CompletableFuture<Instances>> datasets = new ArrayList<>();
+            for (String datasetPath : datasetPaths) {
+                datasets.add(CompletableFuture.supplyAsync(() -> loadDataset(datasetPath), pool));
+            }
+
+            List<CompletableFuture<Result>> pairs = new ArrayList<>();
+            for (CompletableFuture<LoadedModel> model : models) {
+                for (int d = 0; d < datasetPaths.size(); d++) {
+                    String datasetName = DatasetCatalog.datasetName(datasetPaths.get(d));
+                    pairs.add(model.thenCombineAsync(datasets.get(d),
+                        (loaded, data) -> evaluatePair(loaded, datasetName, data), pool));
+                }
+            }
+
+            List<Result> results = new ArrayList<>(pairs.size());
+            try {
+                for (CompletableFuture<Result> pair : pairs) {
+                    results.add(pair.join());
+                }
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static LoadedModel loadModel(String modelPath) {
+        try {
+            Classifier classifier = (Classifier) SerializationHelper.read(modelPath);
+            CompiledScorer scorer = null;
+            try {
+                scorer = ModelCompiler.compile(classifier);
+            } catch (IllegalArgumentException e) {
+                // Not compilable: every task scores with its own copy of the classifier
+            }
+            return new LoadedModel(ModelInspector.modelName(modelPath), classifier, scorer);
+        } catch (Exception e) {
+            throw new CompletionException(new IOException("Cannot load model " + modelPath, e));
+        }
+    }
+
+    private static Instances loadDataset(String datasetPath) {
+        try {
+            return DatasetCatalog.load(datasetPath);
+        } catch (Exception e) {
+            throw new CompletionException(new IOException("Cannot load dataset " + datasetPath, e));
+        }
+    }
+
+    private Result evaluatePair(LoadedModel model, String datasetName, Instances data) {
+        try {
+            long start = System.nanoTime();
+            PredictionCache cache = predict(model, data);
+
+            int numClasses = cache.numClasses();
+            double[] confusion = new double[numClasses * numClasses];
+            double total = cache.confusionMatrix(null, confusion);
+
+            BootstrapEngine bootstrap = new BootstrapEngine();
+            bootstrap.setOptions(bootstrapOptions.clone());
+            bootstrap.setNumThreads(1);
+            BootstrapReport report = bootstrap.bootstrapCached(cache);
+
+            return new Result(model.name, datasetName, cache.numInstances(),
+                cache.averageAUC(null),
+                ClassificationMetrics.kappa(confusion, numClasses, total),
+                ClassificationMetrics.weightedPrecision(confusion, numClasses),
+                ClassificationMetrics.weightedRecall(confusion, numClasses),
+                ClassificationMetrics.weightedFMeasure(confusion, numClasses),
+                report, (System.nanoTime() - start) / 1000000);
+        } catch (Exception e) {
+            throw new CompletionException(new Exception("Evaluation of " + model.name + " on " + datasetName + " failed", e));
+        }
+    }
+
+    /*
+     * Neither the shared Instances nor the shared model is written to. A compiled IBk widens its
+     * attribute ranges as it is queried, so each pair gets a fresh one built from the untouched
+     * IBk, which scores the dataset exactly as a freshly loaded model would.
+     */
+    private static PredictionCache predict(LoadedModel model, Instances data) throws Exception {
+        if (model.classifier instanceof IBk) {
+            return PredictionCache.predict(new CompiledIBk((IBk) model.classifier), data);
+        }
+        if (model.scorer != null) {
+            return PredictionCache.predict(model.scorer, data);
+        }
+        return PredictionCache.predict(AbstractClassifier.makeCopy(model.classifier), data);
+    }
+
+    public static void write(List<Result> results, Writer out, String format) throws IOException {
+        if (FORMAT_CSV.equals(format)) {
+            out.write(String.join(",", COLUMNS));
+            out.write('\n');
+            for (Result result : results) {
+                Object[] values = result.values();
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) {
+                        out.write(',');
+                    }
+                    out.write(csvValue(values[i]));
+                }
+                out.write('\n');
+            }
+            return;
+        }
+        out.write("[\n");
+        for (int r = 0; r < results.size(); r++) {
+            Object[] values = results.get(r).values();
+            out.write("  {");
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    out.write(", ");
+                }
+                out.write('"');
+                out.write(COLUMNS[i]);
+                out.write("\": ");
+                out.write(jsonValue(values[i]));
+            }
+            out.write(r + 1 < results.size() ? "},\n" : "}\n");
+        }
+        out.write("]\n");
+    }
+
+    private static String csvValue(Object value) {
+        String text = String.valueOf(value);
+        if (text.indexOf(',') >= 0 || text.indexOf('"') >= 0) {
+            return '"' + text.replace("\"", "\"\"") + '"';
+        }
+        return text;
+    }
+
+    private static String jsonValue(Object value) {
+        if (value instanceof String) {
+            return '"' + ((String) value).replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+        }
+        if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())) {
+            return "null";
+        }
+        return String.valueOf(value);
+    }
+}
+
+/* Note:
+
+ModelPredictionCI evaluates one model on one dataset per run and reads both from disk each time.
+Here the seven model files and all the ARFF files are read once, as tasks on the same pool, and
+each (model, dataset) pair starts as soon as its two inputs are loaded (thenCombineAsync).
+The loaded models and datasets are only ever read: compiled scorers are pure functions of the
+features, and a model that cannot be compiled is copied per task with AbstractClassifier.makeCopy.
+Each pair is scored once into a PredictionCache; AUC, kappa and the weighted P/R/F come from the
+cached predictions and the intervals from BootstrapEngine.bootstrapCached with one thread per task,
+so the worker pool (-num-slots) is the only parallelism and a fixed -S gives the same table on any
+number of workers.
+
+Example:
+java EvaluationMatrix -format json -output matrix.json -B 1000 -num-slots 4
+ *
+ *
+*/
@@ -0,0 +1,320 @@
+/**
+ * Incremental extraction of the seven frustration features from raw per-attempt events
+ * Each event (student, skill, correct, hints, timestamp) updates the student's running history
+ * (attempts so far, correctness per skill) and the aggregates of the student's current clip, so
+ * the feature vector the models expect can be read at any moment in O(1), without a batch job.
+ * Run as a program it reads an event log (CSV) and writes the features, and optionally the
+ * prediction of a model, after every event.
+ * Options: -input <event csv> -output <file, default stdout> -model <model file> -clip <clip length in ms> -state <snapshot directory>
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.Classifier;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class FeatureExtractor {
+
+    // The affect observations behind the training clips were taken every 20 seconds
+    public static final long DEFAULT_CLIP_MILLIS = 20000;
+
+    // Fields of a student record
+    private static final int ATTEMPTS = 0;              // long: attempts before the latest one
+    private static final int CLIP_START = 1;            // long: start of the current clip
+    private static final int CLIP_ACTIONS = 2;          // long: attempts in the current clip
+    private static final int SUM_CORRECT = 3;
+    private static final int MIN_CORRECT = 4;
+    private static final int SUM_PERCENT_CORRECT_PER_SKILL = 5;
+    private static final int SUM_HINTS = 6;
+    private static final int MIN_TOTAL_ATTEMPTED = 7;
+    private static final int STUDENT_RECORD_WIDTH = 8;
+
+    // Fields of a (student, skill) record
+    private static final int SKILL_CORRECT = 0;
+    private static final int SKILL_ATTEMPTS = 1;
+    private static final int SKILL_RECORD_WIDTH = 2;
+
+    // A (student, skill) key packs the student id in the high 40 bits and the skill in the low 24
+    private static final int SKILL_BITS = 24;
+    private static final long MAX_STUDENT = (1L << (63 - SKILL_BITS)) - 1;
+
+    static final String STUDENT_FILE = "students.fds";
+    static final String SKILL_FILE = "skills.fds";
+
+    private final long clipMillis;
+    private final StudentStateStore students;
+    private final StudentStateStore skills;
+
+    public FeatureExtractor() {
+        this(DEFAULT_CLIP_MILLIS);
+    }
+
+    public FeatureExtractor(long clipMillis) {
+        this(clipMillis, new StudentStateStore(STUDENT_RECORD_WIDTH), new StudentStateStore(SKILL_RECORD_WIDTH));
+    }
+
+    private FeatureExtractor(long clipMillis, StudentStateStore students, StudentStateStore skills) {
+        if (clipMillis <= 0) {
+            throw new IllegalArgumentException("Clip length must be positive, got " + clipMillis);
+        }
+        this.clipMillis = clipMillis;
+        this.students = students;
+        this.skills = skills;
+    }
+
+    // Reopen the running aggregates saved by snapshot(directory)
+    public static FeatureExtractor restore(Path directory, long clipMillis) throws IOException {
+        return new FeatureExtractor(clipMillis,
+            StudentStateStore.restore(directory.resolve(STUDENT_FILE), STUDENT_RECORD_WIDTH),
+            StudentStateStore.restore(directory.resolve(SKILL_FILE), SKILL_RECORD_WIDTH));
+    }
+
+    public void snapshot(Path directory) throws IOException {
+        students.snapshot(directory.resolve(STUDENT_FILE));
+        skills.snapshot(directory.resolve(SKILL_FILE));
+    }
+
+    public long numStudents() {
+        return students.size();
+    }
+
+    private static long skillKey(long student, int skill) {
+        if (student < 0 || student > MAX_STUDENT) {
+            throw new IllegalArgumentException("Student id out of range [0, " + MAX_STUDENT + "]: " + student);
+        }
+        if (skill < 0 || skill >= 1 << SKILL_BITS) {
+            throw new IllegalArgumentException("Skill id out of range [0, " + ((1 << SKILL_BITS) - 1) + "]: " + skill);
+        }
+        return (student << SKILL_BITS) | skill;
+    }
+
+    /*
+     * Record one attempt. The per-action values of the clip are taken before the attempt is added
+     * to the history: percent correct on the skill so far (0 on a new skill) and the number of
+     * earlier attempts, which is what the training clips show (a student's first clip has
+     * mintotalfrattempted 0). Events of different students can be recorded concurrently; the
+     * student's shard is locked before the skill's, so two locks are never taken the other way.
+     */
+    public void record(long student, int skill, double correct, int hints, long timeMillis) {
+        long skillKey = skillKey(student, skill);
+        StudentStateStore.Shard studentShard = students.shard(student);
+        studentShard.lock();
+        try {
+            int s = studentShard.insert(student);
+            long clipStart = timeMillis - Math.floorMod(timeMillis, clipMillis);
+            if (studentShard.getLong(s, CLIP_ACTIONS) == 0 || clipStart > studentShard.getLong(s, CLIP_START)) {
+                studentShard.putLong(s, CLIP_START, clipStart);
+                studentShard.putLong(s, CLIP_ACTIONS, 0);
+                studentShard.putDouble(s, SUM_CORRECT, 0.0);
+                studentShard.putDouble(s, MIN_CORRECT, Double.POSITIVE_INFINITY);
+                studentShard.putDouble(s, SUM_PERCENT_CORRECT_PER_SKILL, 0.0);
+                studentShard.putDouble(s, SUM_HINTS, 0.0);
+                studentShard.putDouble(s, MIN_TOTAL_ATTEMPTED, Double.POSITIVE_INFINITY);
+            }
+
+            double percentCorrect;
+            StudentStateStore.Shard skillShard = skills.shard(skillKey);
+            skillShard.lock();
+            try {
+                int k = skillShard.insert(skillKey);
+                double skillAttempts = skillShard.getDouble(k, SKILL_ATTEMPTS);
+                double skillCorrect = skillShard.getDouble(k, SKILL_CORRECT);
+                percentCorrect = skillAttempts == 0 ? 0.0 : skillCorrect / skillAttempts;
+                skillShard.putDouble(k, SKILL_CORRECT, skillCorrect + correct);
+                skillShard.putDouble(k, SKILL_ATTEMPTS, skillAttempts + 1);
+            } finally {
+                skillShard.unlock();
+            }
+
+            long attempts = studentShard.getLong(s, ATTEMPTS);
+            studentShard.putLong(s, CLIP_ACTIONS, studentShard.getLong(s, CLIP_ACTIONS) + 1);
+            studentShard.putDouble(s, SUM_CORRECT, studentShard.getDouble(s, SUM_CORRECT) + correct);
+            studentShard.putDouble(s, MIN_CORRECT, Math.min(studentShard.getDouble(s, MIN_CORRECT), correct));
+            studentShard.putDouble(s, SUM_PERCENT_CORRECT_PER_SKILL, studentShard.getDouble(s, SUM_PERCENT_CORRECT_PER_SKILL) + percentCorrect);
+            studentShard.putDouble(s, SUM_HINTS, studentShard.getDouble(s, SUM_HINTS) + hints);
+            studentShard.putDouble(s, MIN_TOTAL_ATTEMPTED, Math.min(studentShard.getDouble(s, MIN_TOTAL_ATTEMPTED), attempts));
+            studentShard.putLong(s, ATTEMPTS, attempts + 1);
+        } finally {
+            studentShard.unlock();
+        }
+    }
+
+    /*
+     * Write the seven features of the student's current clip into out, in ATTRIBUTE_NAMES order.
+     * Returns false (and leaves out untouched) for a student with no attempts yet.
+     */
+    public boolean features(long student, double[] out) {
+        StudentStateStore.Shard shard = students.shard(student);
+        shard.lock();
+        try {
+            int s = shard.find(student);
+            if (s < 0) {
+                return false;
+            }
+            double clipActions = shard.getLong(s, CLIP_ACTIONS);
+            out[0] = shard.getDouble(s, SUM_CORRECT) / clipActions;                      // averagecorrect
+            out[1] = shard.getDouble(s, MIN_CORRECT);                                    // mincorrect
+            out[2] = shard.getDouble(s, SUM_CORRECT);                                    // sumcorrect
+            out[3] = shard.getDouble(s, SUM_PERCENT_CORRECT_PER_SKILL) / clipActions;    // averagepercentcorrectperskill
+            out[4] = shard.getDouble(s, SUM_HINTS);                                      // sumhinttotal
+            out[5] = shard.getDouble(s, SUM_HINTS) / clipActions;                        // averagehinttotal
+            out[6] = shard.getDouble(s, MIN_TOTAL_ATTEMPTED);                            // mintotalfrattempted
+            return true;
+        } finally {
+            shard.unlock();
+        }
+    }
+
+    /*
+     * Forget the student's clip, history and per-skill records. The (student, skill) keys are
+     * spread over every shard of the skill store, so this scans them all: cheap next to the
+     * events, but not meant for every event.
+     */
+    public void clear(long student) {
+        StudentStateStore.Shard shard = students.shard(student);
+        shard.lock();
+        try {
+            shard.remove(student);
+        } finally {
+            shard.unlock();
+        }
+        skills.removeIf(key -> key >>> SKILL_BITS == student);
+    }
+
+    public static void main(String[] args) {
+        try {
+            String inputPath = Utils.getOption("input", args);
+            if (inputPath.length() == 0) {
+                throw new IllegalArgumentException("No event log given (-input events.csv)");
+            }
+            String outputPath = Utils.getOption("output", args);
+            String modelPath = Utils.getOption("model", args);
+            String clip = Utils.getOption("clip", args);
+            long clipMillis = clip.length() == 0 ? DEFAULT_CLIP_MILLIS : Long.parseLong(clip);
+            // -state <directory>: continue from the aggregates saved there and save them again at the end
+            String state = Utils.getOption("state", args);
+            FeatureExtractor extractor = state.length() > 0 && Files.exists(Paths.get(state, STUDENT_FILE))
+                ? restore(Paths.get(state), clipMillis)
+                : new FeatureExtractor(clipMillis);
+
+            CompiledScorer scorer = null;
+            if (modelPath.length() > 0) {
+                scorer = ModelCompiler.compile((Classifier) SerializationHelper.read(modelPath));
+            }
+
+            OutputStream outputStream = outputPath.length() == 0 ? System.out : new FileOutputStream(outputPath);
+            Writer out = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            try {
+                long start = System.nanoTime();
+                long count = replay(extractor, inputPath, scorer, out);
+                System.err.printf("%d events of %d students in %.2f ms%n", count, extractor.numStudents(), (System.nanoTime() - start) / 1e6);
+                if (state.length() > 0) {
+                    extractor.snapshot(Paths.get(state));
+                }
+            } finally {
+                out.flush();
+                if (outputStream != System.out) {
+                    out.close();
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Event log: one attempt per line as student,skill,correct,hints,timestamp (ms), with an
+     * optional header line. After every event the student's features are written, followed by
+     * the probability of "yes" when a scorer is given.
+     */
+    private static long replay(FeatureExtractor extractor, String inputPath, CompiledScorer scorer, Writer out) throws IOException {
+        out.write("student,timestamp," + String.join(",", FrustrationFeatures.ATTRIBUTE_NAMES));
+        out.write(scorer == null ? "\n" : ",yes\n");
+        double[] features = new double[FrustrationFeatures.NUM_FEATURES];
+        double[] distribution = scorer == null ? null : new double[scorer.numClasses()];
+
+        long count = 0;
+        long lineNumber = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(inputPath), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] tokens = line.split(",");
+                if (tokens.length < 5) {
+                    throw new IOException("Line " + lineNumber + ": expected student,skill,correct,hints,timestamp");
+                }
+                long student;
+                try {
+                    student = Long.parseLong(tokens[0].trim());
+                } catch (NumberFormatException e) {
+                    if (lineNumber == 1) {
+                        continue;
+                    }
+                    throw new IOException("Line " + lineNumber + ": bad student id " + tokens[0]);
+                }
+                long timeMillis = Long.parseLong(tokens[4].trim());
+                extractor.record(student, Integer.parseInt(tokens[1].trim()), Double.parseDouble(tokens[2].trim()),
+                    Integer.parseInt(tokens[3].trim()), timeMillis);
+                extractor.features(student, features);
+                count++;
+
+                out.write(student + "," + timeMillis);
+                for (double value : features) {
+                    out.write(',');
+                    out.write(Double.toString(value));
+                }
+                if (scorer != null) {
+                    scorer.distribution(features, distribution);
+                    out.write(',');
+                    out.write(Double.toString(distribution[FrustrationFeatures.YES]));
+                }
+                out.write('\n');
+            }
+        }
+        return count;
+    }
+}
+
+/* Note:
+
+The seven features of the training files are aggregates over a clip, the 20 second stretch of a
+student's actions around each affect observation:
+ averagecorrect, mincorrect, sumcorrect   over the correctness of the clip's actions
+ averagepercentcorrectperskill            the student's percent correct on the action's skill
+                                          before the action, averaged over the clip
+ sumhinttotal, averagehinttotal           over the hints requested in each action
+ mintotalfrattempted                      the number of attempts the student had made before
+                                          the clip's first action
+Clips here are aligned to multiples of the clip length (-clip); an event older than the current
+clip is added to the current clip.
+
+The running aggregates live off-heap in two StudentStateStores: one fixed-width record per
+student (history and current clip) and one {correct, attempts} record per (student, skill), keyed
+by a long that packs both ids. Reading the vector is one probe; an event costs two probes and
+locks only the two shards involved. With -state the stores are restored from, and snapshotted to,
+a directory, so a restart continues with every student's running aggregates.
+
+Example:
+java FeatureExtractor -input events.csv -model models/CostSensitive_BN_model_Trained.model -output features.csv -state models/binary/state
+ *
+ *
+*/
@@ -0,0 +1,493 @@
+/**
+ * Flattened RandomForest inference engine
+ * Packs every RandomTree of the forest into struct-of-arrays node tables (split attribute,
+ * split point, first child, missing-value proportion and leaf distributions in one double[])
+ * and scores tree-major over blocks of rows so the node tables stay in cache.
+ * Single rows can also be scored with the trees split across cores.
+ * Run as a program it checks the engine against RandomForest.distributionForInstance on every
+ * bundled ARFF file and reports the throughput of each scoring mode.
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.IteratedSingleClassifierEnhancer;
+import weka.classifiers.trees.RandomForest;
+import weka.classifiers.trees.RandomTree;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class FlatRandomForest implements CompiledScorer {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64;
+
+    private static final int LEAF = -1;
+    private static final int NO_DISTRIBUTION = -1;
+
+    private final int numClasses;
+    private final int numTrees;
+    private final int[] treeRoot;
+
+    /*
+     * Node tables, all trees concatenated; the children of a node are contiguous. They are
+     * buffers so that a forest loaded from a ModelFile scores straight over the mapped file;
+     * a forest flattened from Weka wraps its arrays.
+     */
+    private final IntBuffer attribute;          // split attribute, LEAF for leaves
+    private final ByteBuffer nominalSplit;      // 1: child = (int) value instead of value < splitPoint
+    private final DoubleBuffer splitPoint;
+    private final IntBuffer firstChild;
+    private final IntBuffer numChildren;
+    private final DoubleBuffer proportion;      // weight of the edge into this node when the parent's value is missing
+    private final IntBuffer distributionOffset; // into distributions, NO_DISTRIBUTION when the node has none
+    private final DoubleBuffer distributions;   // normalized class distributions
+
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+
+    // Node tables under construction
+    private int numNodes;
+    private int distributionSize;
+
+    public FlatRandomForest(RandomForest forest) throws Exception {
+        Classifier[] trees = (Classifier[]) ModelCompiler.field(forest, IteratedSingleClassifierEnhancer.class, "m_Classifiers");
+        this.numTrees = forest.getNumIterations();
+        Instances header = (Instances) ModelCompiler.field(trees[0], RandomTree.class, "m_Info");
+        this.numClasses = header.numClasses();
+        if (!header.classAttribute().isNominal() || header.classIndex() != header.numAttributes() - 1) {
+            throw new IllegalArgumentException("Only a nominal class as the last attribute is supported");
+        }
+
+        // First pass: count nodes and distribution cells
+        List<List<Object>> treeNodes = new ArrayList<>();
+        int totalNodes = 0;
+        for (int t = 0; t < numTrees; t++) {
+            List<Object> nodes = treeNodes((RandomTree) trees[t]);
+            treeNodes.add(nodes);
+            totalNodes += Math.max(1, nodes.size());
+        }
+        int totalCells = totalNodes * numClasses;
+        this.treeRoot = new int[numTrees];
+        int[] attribute = new int[totalNodes];
+        byte[] nominalSplit = new byte[totalNodes];
+        double[] splitPoint = new double[totalNodes];
+        int[] firstChild = new int[totalNodes];
+        int[] numChildren = new int[totalNodes];
+        double[] proportion = new double[totalNodes];
+        int[] distributionOffset = new int[totalNodes];
+        double[] cells = new double[totalCells];
+
+        // Second pass: fill the tables in breadth-first order
+        for (int t = 0; t < numTrees; t++) {
+            RandomTree tree = (RandomTree) trees[t];
+            treeRoot[t] = numNodes;
+            Classifier zeroR = (Classifier) ModelCompiler.field(tree, RandomTree.class, "m_zeroR");
+            if (zeroR != null) {
+                // No tree could be built: the ZeroR distribution is a single leaf
+                int node = numNodes++;
+                attribute[node] = LEAF;
+                Instance empty = new DenseInstance(header.numAttributes());
+                empty.setDataset(header);
+                distributionOffset[node] = addDistribution(cells, zeroR.distributionForInstance(empty));
+                continue;
+            }
+            boolean allowUnclassified = tree.getAllowUnclassifiedInstances();
+            List<Object> nodes = treeNodes.get(t);
+            int base = numNodes;
+            numNodes += nodes.size();
+            int nextChild = base + 1;
+            for (int i = 0; i < nodes.size(); i++) {
+                Object treeNode = nodes.get(i);
+                int node = base + i;
+                int splitAttribute = (Integer) ModelCompiler.field(treeNode, treeNode.getClass(), "m_Attribute");
+                double[] classDistribution = (double[]) ModelCompiler.field(treeNode, treeNode.getClass(), "m_ClassDistribution");
+                attribute[node] = splitAttribute;
+                if (classDistribution != null) {
+                    double[] normalized = classDistribution.clone();
+                    Utils.normalize(normalized);
+                    distributionOffset[node] = addDistribution(cells, normalized);
+                } else if (splitAttribute == LEAF && allowUnclassified) {
+                    distributionOffset[node] = addDistribution(cells, new double[numClasses]);
+                } else {
+                    distributionOffset[node] = NO_DISTRIBUTION;
+                }
+                if (splitAttribute == LEAF) {
+                    continue;
+                }
+                Object[] successors = (Object[]) ModelCompiler.field(treeNode, treeNode.getClass(), "m_Successors");
+                double[] prop = (double[]) ModelCompiler.field(treeNode, treeNode.getClass(), "m_Prop");
+                nominalSplit[node] = header.attribute(splitAttribute).isNominal() ? (byte) 1 : (byte) 0;
+                splitPoint[node] = (Double) ModelCompiler.field(treeNode, treeNode.getClass(), "m_SplitPoint");
+                firstChild[node] = nextChild;
+                numChildren[node] = successors.length;
+                for (int s = 0; s < successors.length; s++) {
+                    proportion[nextChild + s] = prop[s];
+                }
+                nextChild += successors.length;
+            }
+        }
+        this.attribute = IntBuffer.wrap(attribute);
+        this.nominalSplit = ByteBuffer.wrap(nominalSplit);
+        this.splitPoint = DoubleBuffer.wrap(splitPoint);
+        this.firstChild = IntBuffer.wrap(firstChild);
+        this.numChildren = IntBuffer.wrap(numChildren);
+        this.proportion = DoubleBuffer.wrap(proportion);
+        this.distributionOffset = IntBuffer.wrap(distributionOffset);
+        this.distributions = DoubleBuffer.wrap(Arrays.copyOf(cells, distributionSize));
+    }
+
+    // Views over a mapped ModelFile, nothing is copied but the tree roots
+    FlatRandomForest(ModelFile.Reader in) throws IOException {
+        this.numClasses = in.readInt();
+        this.numTrees = in.readInt();
+        this.treeRoot = in.readInts();
+        this.attribute = in.intView();
+        this.nominalSplit = in.byteView();
+        this.splitPoint = in.doubleView();
+        this.firstChild = in.intView();
+        this.numChildren = in.intView();
+        this.proportion = in.doubleView();
+        this.distributionOffset = in.intView();
+        this.distributions = in.doubleView();
+    }
+
+    void write(ModelFile.Writer out) {
+        out.writeInt(numClasses);
+        out.writeInt(numTrees);
+        out.writeInts(treeRoot);
+        out.writeInts(attribute);
+        out.writeBytes(nominalSplit);
+        out.writeDoubles(splitPoint);
+        out.writeInts(firstChild);
+        out.writeInts(numChildren);
+        out.writeDoubles(proportion);
+        out.writeInts(distributionOffset);
+        out.writeDoubles(distributions);
+    }
+
+    // Breadth-first list of the RandomTree.Tree nodes, so that siblings end up next to each other
+    private static List<Object> treeNodes(RandomTree tree) throws Exception {
+        List<Object> nodes = new ArrayList<>();
+        Object root = ModelCompiler.field(tree, RandomTree.class, "m_Tree");
+        if (ModelCompiler.field(tree, RandomTree.class, "m_zeroR") != null || root == null) {
+            return nodes;
+        }
+        ArrayDeque<Object> queue = new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            Object node = queue.poll();
+            nodes.add(node);
+            Object[] successors = (Object[]) ModelCompiler.field(node, node.getClass(), "m_Successors");
+            int splitAttribute = (Integer) ModelCompiler.field(node, node.getClass(), "m_Attribute");
+            if (splitAttribute > -1 && successors != null) {
+                for (Object successor : successors) {
+                    queue.add(successor);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    private int addDistribution(double[] cells, double[] distribution) {
+        int offset = distributionSize;
+        System.arraycopy(distribution, 0, cells, offset, numClasses);
+        distributionSize += numClasses;
+        return offset;
+    }
+
+    public int numTrees() {
+        return numTrees;
+    }
+
+    public int numNodes() {
+        return attribute.limit();
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = Math.max(1, blockSize);
+    }
+
+    @Override
+    public int numClasses() {
+        return numClasses;
+    }
+
+    @Override
+    public void distribution(double[] features, double[] out) {
+        for (int c = 0; c < numClasses; c++) {
+            out[c] = 0.0;
+        }
+        addTrees(0, numTrees, features, out);
+        normalize(out);
+    }
+
+    // Tree-major batch scoring: every tree is applied to a whole block of rows before the next one
+    @Override
+    public void distributions(double[][] rows, int numRows, double[][] out) {
+        for (int blockStart = 0; blockStart < numRows; blockStart += blockSize) {
+            int blockEnd = Math.min(numRows, blockStart + blockSize);
+            for (int r = blockStart; r < blockEnd; r++) {
+                for (int c = 0; c < numClasses; c++) {
+                    out[r][c] = 0.0;
+                }
+            }
+            for (int t = 0; t < numTrees; t++) {
+                int root = treeRoot[t];
+                for (int r = blockStart; r < blockEnd; r++) {
+                    addTree(root, rows[r], out[r]);
+                }
+            }
+            for (int r = blockStart; r < blockEnd; r++) {
+                normalize(out[r]);
+            }
+        }
+    }
+
+    /*
+     * Low-latency single row: the trees are split into one range per worker of the pool and the
+     * partial sums are added up afterwards. The summation order differs from Weka's, so results
+     * agree with distribution() to within floating point rounding rather than bit for bit.
+     */
+    public ParallelScorer parallelScorer(ForkJoinPool pool) {
+        return new ParallelScorer(pool);
+    }
+
+    /**
+     * The fork-join tasks and partial sums of the split single-row scoring for one pool, allocated once
+     * and reused by every call. One caller at a time; give each scoring thread its own.
+     */
+    public final class ParallelScorer {
+        private final ForkJoinPool pool;
+        private final double[][] partials;
+        private final RecursiveAction[] parts;
+        private final RecursiveAction all;
+        private double[] features;
+
+        private ParallelScorer(ForkJoinPool pool) {
+            this.pool = pool;
+            int numParts = Math.min(pool.getParallelism(), numTrees);
+            this.partials = new double[numParts][numClasses];
+            this.parts = new RecursiveAction[numParts];
+            for (int p = 0; p < numParts; p++) {
+                final double[] partial = partials[p];
+                final int from = (int) ((long) numTrees * p / numParts);
+                final int to = (int) ((long) numTrees * (p + 1) / numParts);
+                parts[p] = new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        Arrays.fill(partial, 0.0);
+                        addTrees(from, to, features, partial);
+                    }
+                };
+            }
+            this.all = new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(parts);
+                }
+            };
+        }
+
+        public void distribution(double[] features, double[] out) {
+            // Submitting the task publishes the field to the workers
+            this.features = features;
+            all.reinitialize();
+            for (RecursiveAction part : parts) {
+                part.reinitialize();
+            }
+            pool.invoke(all);
+            for (int c = 0; c < numClasses; c++) {
+                out[c] = 0.0;
+                for (double[] partial : partials) {
+                    out[c] += partial[c];
+                }
+            }
+            normalize(out);
+            this.features = null;
+        }
+    }
+
+    private void addTrees(int fromTree, int toTree, double[] features, double[] sums) {
+        for (int t = fromTree; t < toTree; t++) {
+            addTree(treeRoot[t], features, sums);
+        }
+    }
+
+    // Add the distribution of one tree to sums (Bagging adds the trees up in order)
+    private void addTree(int root, double[] features, double[] sums) {
+        int node = root;
+        int fallback = NO_DISTRIBUTION;
+        while (attribute.get(node) != LEAF) {
+            if (distributionOffset.get(node) != NO_DISTRIBUTION) {
+                fallback = distributionOffset.get(node);
+            }
+            double value = features[attribute.get(node)];
+            if (Double.isNaN(value)) {
+                for (int c = 0; c < numClasses; c++) {
+                    sums[c] += missingValueProbability(node, c, features);
+                }
+                return;
+            }
+            node = firstChild.get(node) + (nominalSplit.get(node) != 0 ? (int) value : (value < splitPoint.get(node) ? 0 : 1));
+        }
+        // A leaf without a distribution hands back to the deepest ancestor that has one
+        int offset = distributionOffset.get(node) != NO_DISTRIBUTION ? distributionOffset.get(node) : fallback;
+        if (offset == NO_DISTRIBUTION) {
+            return;
+        }
+        for (int c = 0; c < numClasses; c++) {
+            sums[c] += distributions.get(offset + c);
+        }
+    }
+
+    /*
+     * Missing split value: the successors' distributions weighted by the training proportions,
+     * computed one class at a time with the same recursion as RandomTree.Tree.
+     */
+    private double missingValueProbability(int node, int classIndex, double[] features) {
+        double probability = 0.0;
+        for (int child = firstChild.get(node); child < firstChild.get(node) + numChildren.get(node); child++) {
+            if (!hasDistribution(child, features)) {
+                continue;
+            }
+            probability = probability + proportion.get(child) * nodeProbability(child, classIndex, features);
+        }
+        return probability;
+    }
+
+    private double nodeProbability(int node, int classIndex, double[] features) {
+        if (attribute.get(node) == LEAF) {
+            return distributions.get(distributionOffset.get(node) + classIndex);
+        }
+        double value = features[attribute.get(node)];
+        if (Double.isNaN(value)) {
+            return missingValueProbability(node, classIndex, features);
+        }
+        int child = firstChild.get(node) + (nominalSplit.get(node) != 0 ? (int) value : (value < splitPoint.get(node) ? 0 : 1));
+        if (hasDistribution(child, features)) {
+            return nodeProbability(child, classIndex, features);
+        }
+        return distributions.get(distributionOffset.get(node) + classIndex);
+    }
+
+    // Whether RandomTree.Tree.distributionForInstance would return a distribution (not null) here
+    private boolean hasDistribution(int node, double[] features) {
+        if (attribute.get(node) == LEAF) {
+            return distributionOffset.get(node) != NO_DISTRIBUTION;
+        }
+        double value = features[attribute.get(node)];
+        if (Double.isNaN(value)) {
+            return true;
+        }
+        int child = firstChild.get(node) + (nominalSplit.get(node) != 0 ? (int) value : (value < splitPoint.get(node) ? 0 : 1));
+        return hasDistribution(child, features) || distributionOffset.get(node) != NO_DISTRIBUTION;
+    }
+
+    // Bagging: leave an all-zero sum alone, otherwise divide by the sum
+    private void normalize(double[] sums) {
+        double sum = 0.0;
+        for (int c = 0; c < numClasses; c++) {
+            sum += sums[c];
+        }
+        if (Utils.eq(sum, 0.0)) {
+            return;
+        }
+        for (int c = 0; c < numClasses; c++) {
+            sums[c] /= sum;
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            String modelPath = "models/RandomForest_model_trained.model";
+            RandomForest forest = (RandomForest) SerializationHelper.read(modelPath);
+            long start = System.nanoTime();
+            FlatRandomForest flat = new FlatRandomForest(forest);
+            System.out.printf("%s: %d trees, %d nodes, flattened in %.1f ms\n",
+                modelPath, flat.numTrees(), flat.numNodes(), (System.nanoTime() - start) / 1e6);
+
+            ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            ParallelScorer scorer = flat.parallelScorer(pool);
+            boolean allMatch = true;
+            for (String inputPath : DatasetCatalog.arffFiles()) {
+                Instances data = DatasetCatalog.load(inputPath);
+                allMatch &= ModelCompiler.verify(forest, flat, data, inputPath);
+
+                int numRows = data.numInstances();
+                double[][] rows = new double[numRows][FrustrationFeatures.NUM_FEATURES];
+                for (int i = 0; i < numRows; i++) {
+                    FrustrationFeatures.toFeatures(data.instance(i), rows[i]);
+                }
+                double[][] batch = new double[numRows][flat.numClasses()];
+                start = System.nanoTime();
+                flat.distributions(rows, numRows, batch);
+                double batchNanos = (double) (System.nanoTime() - start) / numRows;
+
+                // Single row, one thread against split across the pool; a warm-up pass each, then timed alone
+                double[] single = new double[flat.numClasses()];
+                double[] parallel = new double[flat.numClasses()];
+                for (int i = 0; i < numRows; i++) {
+                    flat.distribution(rows[i], single);
+                    scorer.distribution(rows[i], parallel);
+                }
+                start = System.nanoTime();
+                for (int i = 0; i < numRows; i++) {
+                    flat.distribution(rows[i], single);
+                }
+                double singleNanos = (double) (System.nanoTime() - start) / numRows;
+                start = System.nanoTime();
+                for (int i = 0; i < numRows; i++) {
+                    scorer.distribution(rows[i], parallel);
+                }
+                double parallelNanos = (double) (System.nanoTime() - start) / numRows;
+
+                double maxDifference = 0.0;
+                for (int i = 0; i < numRows; i++) {
+                    scorer.distribution(rows[i], parallel);
+                    double[] weka = forest.distributionForInstance(data.instance(i));
+                    for (int c = 0; c < weka.length; c++) {
+                        maxDifference = Math.max(maxDifference, Math.abs(weka[c] - parallel[c]));
+                        allMatch &= weka[c] == batch[i][c];
+                    }
+                }
+                System.out.printf("      batch %6.0f ns/row  (matches Weka exactly: %s)%n", batchNanos, allMatch);
+                System.out.printf("      single row %6.0f ns, split across %d cores %6.0f ns  (max |diff| %.1e)%n",
+                    singleNanos, pool.getParallelism(), parallelNanos, maxDifference);
+                allMatch &= maxDifference <= 1e-12;
+            }
+            pool.shutdown();
+            System.out.println(allMatch ? "Flattened forest matches Weka." : "MISMATCHES FOUND.");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/* Note:
+
+Weka scores a RandomForest through Bagging.distributionForInstance, which asks each RandomTree
+for its distribution by walking the Tree object graph (one object and one array per node).
+Here every node is a slot in a handful of parallel primitive arrays; the nodes of a tree are laid
+out breadth first so that the two children of a numeric split sit next to each other and the
+descent is one index computation per level (value < splitPoint ? 0 : 1, as in RandomTree).
+Leaf distributions are normalized once at load time with Utils.normalize, and tree sums are added
+up in tree order, so single-row and batch scoring are bit-for-bit equal to Weka.
+Splitting one row across cores only pays when a fork-join round trip (a few microseconds) is
+small next to the walk over all trees; main times it against distribution() on one thread.
+ *
+ *
+*/
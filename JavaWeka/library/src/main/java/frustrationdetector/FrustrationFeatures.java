@@ -0,0 +1,83 @@
+/**
+ * The seven frustration features and the {no,yes} class, as declared in the ARFF headers
+ * under data/Training and data/Test DataSets
+ * Builds the Weka header and instances the trained models expect from a plain double[7].
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public final class FrustrationFeatures {
+
+    public static final String[] ATTRIBUTE_NAMES = {
+        "averagecorrect",
+        "mincorrect",
+        "sumcorrect",
+        "averagepercentcorrectperskill",
+        "sumhinttotal",
+        "averagehinttotal",
+        "mintotalfrattempted"
+    };
+
+    public static final int NUM_FEATURES = ATTRIBUTE_NAMES.length;
+
+    public static final String CLASS_NAME = "class";
+    public static final String[] CLASS_VALUES = {"no", "yes"};
+    public static final int NO = 0;
+    public static final int YES = 1;
+
+    private FrustrationFeatures() {
+    }
+
+    // Empty dataset with the seven numeric features and the nominal class as the last attribute
+    public static Instances newHeader(String relationName) {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        for (String name : ATTRIBUTE_NAMES) {
+            attributes.add(new Attribute(name));
+        }
+        attributes.add(new Attribute(CLASS_NAME, new ArrayList<>(Arrays.asList(CLASS_VALUES))));
+        Instances header = new Instances(relationName, attributes, 0);
+        header.setClassIndex(header.numAttributes() - 1);
+        return header;
+    }
+
+    // Unlabelled instance (class missing) attached to the given header
+    public static Instance toInstance(double[] features, Instances header) {
+        if (features.length != NUM_FEATURES) {
+            throw new IllegalArgumentException("Expected " + NUM_FEATURES + " features, got " + features.length);
+        }
+        double[] values = new double[NUM_FEATURES + 1];
+        System.arraycopy(features, 0, values, 0, NUM_FEATURES);
+        values[NUM_FEATURES] = Utils.missingValue();
+        Instance instance = new DenseInstance(1.0, values);
+        instance.setDataset(header);
+        return instance;
+    }
+
+    // Copy the seven feature values of an instance into out (missing values stay NaN)
+    public static double[] toFeatures(Instance instance, double[] out) {
+        for (int i = 0; i < NUM_FEATURES; i++) {
+            out[i] = instance.value(i);
+        }
+        return out;
+    }
+
+    // Position of a feature by attribute name, -1 if it is not one of the seven
+    public static int indexOf(String attributeName) {
+        for (int i = 0; i < NUM_FEATURES; i++) {
+            if (ATTRIBUTE_NAMES[i].equalsIgnoreCase(attributeName.trim())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
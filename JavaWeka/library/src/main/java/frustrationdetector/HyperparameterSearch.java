@@ -0,0 +1,388 @@
+/**
+ * Parallel hyperparameter search with successive halving
+ * Candidates are the bundled model's getOptions() with some of its options replaced (the IBk k,
+ * the J48 confidence, the RandomForest tree count, the CostSensitiveClassifier -cost-matrix ...)
+ * and are built through forName/setOptions. Every rung trains the surviving candidates in
+ * parallel on a larger stratified fraction of the training rows, scores them on a fixed
+ * validation split and keeps the best 1/eta. The winner is retrained on the whole dataset and
+ * written as a model file next to the search log.
+ * Options: -model <comma separated model names> -i <comma separated arff files> -N <max candidates> -eta <keep 1/eta per rung> -rungs <number of rungs>
+ * -metric <auc|kappa, default auc (kappa for cost matrices)> -S <seed> -num-slots <workers> -output <directory, default models/search>
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.OptionHandler;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import java.io.BufferedWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class HyperparameterSearch {
+
+    public static final String METRIC_AUC = "auc";
+    public static final String METRIC_KAPPA = "kappa";
+    public static final String DEFAULT_OUTPUT = "models/search";
+    public static final int DEFAULT_MAX_CANDIDATES = 64;
+    public static final int DEFAULT_ETA = 3;
+    public static final int DEFAULT_RUNGS = 3;
+
+    // A flag option (no argument) is either left out or given
+    public static final String FLAG_OFF = "<off>";
+    public static final String FLAG_ON = "<on>";
+
+    /*
+     * Per bundled model: the top-level options to vary and their values. The rest of each
+     * model's options (and of a wrapped base classifier) stay as they were trained.
+     */
+    public static final Map<String, String[][]> SEARCH_SPACES = new LinkedHashMap<>();
+    static {
+        String[] costMatrices = {"-cost-matrix", "[0.0 1.0; 1.0 0.0]", "[0.0 1.0; 2.0 0.0]", "[0.0 1.0; 3.0 0.0]",
+            "[0.0 1.0; 5.0 0.0]", "[0.0 1.0; 8.0 0.0]", "[0.0 1.0; 13.0 0.0]", "[0.0 1.0; 21.0 0.0]"};
+        SEARCH_SPACES.put("CostSensitive_BN", new String[][] {costMatrices});
+        SEARCH_SPACES.put("CostSensitive_NB", new String[][] {costMatrices});
+        SEARCH_SPACES.put("J48", new String[][] {
+            {"-C", "0.05", "0.1", "0.25", "0.4"},
+            {"-M", "1", "2", "5", "10", "20"}});
+        SEARCH_SPACES.put("RandomForest", new String[][] {
+            {"-I", "25", "50", "100", "200"},
+            {"-K", "0", "2", "3", "5"},
+            {"-depth", "0", "5", "10", "20"}});
+        SEARCH_SPACES.put("KNN", new String[][] {
+            {"-K", "1", "3", "5", "10", "20", "40"},
+            {"-I", FLAG_OFF, FLAG_ON}});
+        SEARCH_SPACES.put("NB", new String[][] {
+            {"-K", FLAG_OFF, FLAG_ON},
+            {"-D", FLAG_OFF, FLAG_ON}});
+    }
+
+    /*
+     * The metric a model's search is scored by: -metric when given, otherwise AUC, except for
+     * spaces that vary a cost matrix, which only moves the decision threshold and is judged by
+     * kappa. An explicit auc for those is refused.
+     */
+    static String metricFor(String modelName, String[][] space, String metric) {
+        boolean costMatrix = false;
+        for (String[] parameter : space) {
+            costMatrix |= "-cost-matrix".equals(parameter[0]);
+        }
+        if (!costMatrix) {
+            return metric.length() == 0 ? METRIC_AUC : metric;
+        }
+        if (METRIC_AUC.equals(metric)) {
+            throw new IllegalArgumentException(modelName + ": the cost matrix only reweights the classes, which leaves "
+                + "the ranking and so the AUC unchanged; search it with -metric kappa");
+        }
+        return metric.length() == 0 ? METRIC_KAPPA : metric;
+    }
+
+    /** One configuration and its latest score. */
+    static final class Candidate {
+        final String[] options;
+        final String description;
+        double score = Double.NaN;
+        long millis;
+
+        Candidate(String[] options) {
+            this.options = options;
+            this.description = Utils.joinOptions(options);
+        }
+    }
+
+    private final String className;
+    private final String metric;
+    private final int eta;
+    private final int numRungs;
+    private final ExecutorService pool;
+
+    public HyperparameterSearch(String className, String metric, int eta, int numRungs, ExecutorService pool) {
+        if (!METRIC_AUC.equals(metric) && !METRIC_KAPPA.equals(metric)) {
+            throw new IllegalArgumentException("Unknown metric: " + metric + " (use auc or kappa)");
+        }
+        if (eta < 2 || numRungs < 1) {
+            throw new IllegalArgumentException("Successive halving needs eta >= 2 and at least one rung");
+        }
+        this.className = className;
+        this.metric = metric;
+        this.eta = eta;
+        this.numRungs = numRungs;
+        this.pool = pool;
+    }
+
+    public static void main(String[] args) {
+        try {
+            String modelList = Utils.getOption("model", args);
+            List<String> modelNames = new ArrayList<>();
+            if (modelList.length() == 0) {
+                modelNames.addAll(SEARCH_SPACES.keySet());
+            } else {
+                modelNames.addAll(List.of(modelList.split(",")));
+            }
+            String inputList = Utils.getOption("i", args);
+            List<String> inputPaths = inputList.length() == 0 ? DatasetCatalog.arffFiles("data/Training") : List.of(inputList.split(","));
+            String candidates = Utils.getOption("N", args);
+            int maxCandidates = candidates.length() == 0 ? DEFAULT_MAX_CANDIDATES : Integer.parseInt(candidates);
+            String eta = Utils.getOption("eta", args);
+            String rungs = Utils.getOption("rungs", args);
+            String metric = Utils.getOption("metric", args);
+            String seed = Utils.getOption("S", args);
+            long s = seed.length() == 0 ? 1 : Long.parseLong(seed);
+            String slots = Utils.getOption("num-slots", args);
+            int numWorkers = slots.length() == 0 ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(slots);
+            String output = Utils.getOption("output", args);
+            Path outputDirectory = Paths.get(output.length() == 0 ? DEFAULT_OUTPUT : output);
+            Files.createDirectories(outputDirectory);
+
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, numWorkers));
+            try {
+                System.out.printf("%-18s %-60s %-6s %10s %10s  %s%n", "Model", "Dataset", "metric", "bundled", "best", "best options");
+                for (String inputPath : inputPaths) {
+                    Instances data = DatasetCatalog.load(inputPath);
+                    String datasetName = DatasetCatalog.datasetName(inputPath);
+                    for (String modelName : modelNames) {
+                        String[][] space = SEARCH_SPACES.get(modelName);
+                        if (space == null) {
+                            System.out.println(modelName + ": no search space, skipped");
+                            continue;
+                        }
+                        String modelMetric;
+                        try {
+                            modelMetric = metricFor(modelName, space, metric);
+                        } catch (IllegalArgumentException e) {
+                            System.out.println(e.getMessage() + ", skipped");
+                            continue;
+                        }
+                        Classifier bundled = (Classifier) SerializationHelper.read(ModelInspector.modelPath(modelName));
+                        String[] baseOptions = ((OptionHandler) bundled).getOptions();
+                        HyperparameterSearch search = new HyperparameterSearch(bundled.getClass().getName(), modelMetric,
+                            eta.length() == 0 ? DEFAULT_ETA : Integer.parseInt(eta),
+                            rungs.length() == 0 ? DEFAULT_RUNGS : Integer.parseInt(rungs), pool);
+
+                        String stem = modelName + "_" + datasetName;
+                        List<Candidate> grid = candidates(baseOptions, space, maxCandidates, s);
+                        Candidate best;
+                        try (Writer log = new BufferedWriter(Files.newBufferedWriter(outputDirectory.resolve(stem + ".search.csv"), StandardCharsets.UTF_8))) {
+                            best = search.search(grid, data, s, log);
+                        }
+                        Candidate base = grid.get(0);
+                        Classifier winner = AbstractClassifier.forName(search.className, best.options.clone());
+                        winner.buildClassifier(new Instances(data));
+                        RetrainingPipeline.writeModel(outputDirectory.resolve(stem + ".model"), winner);
+                        System.out.printf("%-18s %-60s %-6s %10s %10.4f  %s%n", modelName, datasetName, modelMetric,
+                            Double.isNaN(base.score) ? "failed" : String.format("%.4f", base.score), best.score, best.description);
+                    }
+                }
+            } finally {
+                pool.shutdown();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * The grid of the search space applied to the base options. The base configuration is always
+     * the first candidate; when the grid is larger than maxCandidates a seeded random subset of
+     * the rest is kept.
+     */
+    public static List<Candidate> candidates(String[] baseOptions, String[][] space, int maxCandidates, long seed) {
+        List<String[]> grid = new ArrayList<>();
+        grid.add(baseOptions.clone());
+        for (String[] parameter : space) {
+            List<String[]> next = new ArrayList<>();
+            for (String[] options : grid) {
+                for (int v = 1; v < parameter.length; v++) {
+                    next.add(withOption(options, parameter[0], parameter[v]));
+                }
+            }
+            grid = next;
+        }
+
+        List<Candidate> candidates = new ArrayList<>();
+        Candidate base = new Candidate(baseOptions.clone());
+        candidates.add(base);
+        List<Candidate> rest = new ArrayList<>();
+        for (String[] options : grid) {
+            Candidate candidate = new Candidate(options);
+            if (!candidate.description.equals(base.description)) {
+                rest.add(candidate);
+            }
+        }
+        Collections.shuffle(rest, new Random(seed));
+        candidates.addAll(rest.subList(0, Math.min(rest.size(), Math.max(0, maxCandidates - 1))));
+        return candidates;
+    }
+
+    /*
+     * Set one top-level option (before the first "--", which starts a base classifier's options):
+     * replace the value after the flag, or add the flag; FLAG_OFF/FLAG_ON drop or add a flag
+     * without a value.
+     */
+    static String[] withOption(String[] options, String flag, String value) {
+        List<String> list = new ArrayList<>(List.of(options));
+        int end = list.indexOf("--");
+        if (end < 0) {
+            end = list.size();
+        }
+        int at = list.subList(0, end).indexOf(flag);
+        if (FLAG_OFF.equals(value)) {
+            if (at >= 0) {
+                list.remove(at);
+            }
+        } else if (FLAG_ON.equals(value)) {
+            if (at < 0) {
+                list.add(0, flag);
+            }
+        } else if (at >= 0) {
+            list.set(at + 1, value);
+        } else {
+            list.add(0, value);
+            list.add(0, flag);
+        }
+        return list.toArray(new String[0]);
+    }
+
+    /*
+     * Successive halving. A third of every class is held out for validation; the rest is shuffled
+     * per class and rung r trains on the first eta^(r + 1 - rungs) of each class (nested subsets,
+     * the last rung uses all of them). Every candidate of a rung is its own pool task; after a
+     * rung the best ceil(n / eta) go on. The first candidate (the bundled configuration) is carried
+     * through every rung as the reference, so its final score is comparable with the winner's.
+     * Candidates whose options are rejected or whose training fails score NaN and are dropped.
+     * Every evaluation is one line of the log.
+     */
+    public Candidate search(List<Candidate> candidates, Instances data, long seed, Writer log) throws Exception {
+        List<List<Integer>> byClass = new ArrayList<>();
+        for (int c = 0; c < data.numClasses(); c++) {
+            byClass.add(new ArrayList<>());
+        }
+        for (int i = 0; i < data.numInstances(); i++) {
+            if (!data.instance(i).classIsMissing()) {
+                byClass.get((int) data.instance(i).classValue()).add(i);
+            }
+        }
+        Random random = new Random(seed);
+        Instances validation = new Instances(data, 0);
+        List<List<Integer>> training = new ArrayList<>();
+        for (List<Integer> rows : byClass) {
+            Collections.shuffle(rows, random);
+            int numValidation = rows.size() / 3;
+            for (int i = 0; i < numValidation; i++) {
+                validation.add(data.instance(rows.get(i)));
+            }
+            training.add(rows.subList(numValidation, rows.size()));
+        }
+
+        log.write("rung,fraction,train_rows,score,millis,kept,options\n");
+        List<Candidate> alive = new ArrayList<>(candidates);
+        for (int rung = 0; rung < numRungs; rung++) {
+            double fraction = Math.pow(eta, rung + 1 - numRungs);
+            Instances subset = new Instances(data, 0);
+            for (List<Integer> rows : training) {
+                int count = Math.max(1, (int) Math.ceil(fraction * rows.size()));
+                for (int i = 0; i < count && i < rows.size(); i++) {
+                    subset.add(data.instance(rows.get(i)));
+                }
+            }
+
+            List<CompletableFuture<Void>> tasks = new ArrayList<>();
+            for (Candidate candidate : alive) {
+                tasks.add(CompletableFuture.runAsync(() -> evaluate(candidate, subset, validation), pool));
+            }
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+
+            List<Candidate> ranked = new ArrayList<>();
+            for (Candidate candidate : alive) {
+                if (!Double.isNaN(candidate.score)) {
+                    ranked.add(candidate);
+                }
+            }
+            if (ranked.isEmpty()) {
+                throw new IllegalStateException("Every candidate of " + className + " failed at rung " + rung);
+            }
+            // Stable sort: ties keep the grid order, so the base configuration wins a tie
+            ranked.sort(Comparator.comparingDouble((Candidate candidate) -> candidate.score).reversed());
+            int keep = rung == numRungs - 1 ? 1 : (int) Math.ceil(ranked.size() / (double) eta);
+            List<Candidate> survivors = ranked.subList(0, keep);
+            for (Candidate candidate : alive) {
+                log.write(rung + "," + fraction + "," + subset.numInstances() + "," + candidate.score + "," + candidate.millis + ","
+                    + survivors.contains(candidate) + ",\"" + candidate.description.replace("\"", "\"\"") + "\"\n");
+            }
+            alive = new ArrayList<>(survivors);
+            Candidate reference = candidates.get(0);
+            if (rung < numRungs - 1 && !alive.contains(reference) && !Double.isNaN(reference.score)) {
+                alive.add(reference);
+            }
+        }
+        return alive.get(0);
+    }
+
+    // Train one candidate on the rung's rows and score it on the validation split
+    private void evaluate(Candidate candidate, Instances subset, Instances validation) {
+        long start = System.nanoTime();
+        try {
+            Classifier classifier = AbstractClassifier.forName(className, candidate.options.clone());
+            classifier.buildClassifier(new Instances(subset));
+            PredictionCache cache = PredictionCache.predict(classifier, validation);
+            if (METRIC_AUC.equals(metric)) {
+                candidate.score = cache.averageAUC(null);
+            } else {
+                double[] confusion = new double[cache.numClasses() * cache.numClasses()];
+                double total = cache.confusionMatrix(null, confusion);
+                candidate.score = ClassificationMetrics.kappa(confusion, cache.numClasses(), total);
+            }
+        } catch (Exception e) {
+            candidate.score = Double.NaN;
+        }
+        candidate.millis = (System.nanoTime() - start) / 1000000;
+    }
+}
+
+/* Note:
+
+Search spaces are lists of top-level option values; the grid is their product applied to the
+bundled model's own getOptions(), so anything not listed (the RandomForest seed, the BayesNet
+search algorithm inside CostSensitive_BN) stays as it was. BN has no top-level option that
+changes the model and is not searched. NaiveBayes with both -K and -D is rejected by setOptions
+and simply scores NaN.
+NaiveBayes and BayesNet handle instance weights, so CostSensitiveClassifier reweights the
+training rows by the cost matrix, which only scales the prior odds of "yes": every row's score
+moves by the same factor and the ranking, hence the AUC, is the same for every matrix. The
+cost-matrix searches are therefore scored by kappa (the decisions do change), and -metric auc is
+refused for them rather than returning the bundled matrix as the "best" one.
+
+Successive halving with eta = 3 and 3 rungs: every candidate is trained on 1/9 of the training
+rows, the best third on 1/3 and the best ninth on all of them, so 64 candidates cost about
+64/9 + 22/3 + 8 = 22 full trainings instead of 64. The validation third is fixed for all rungs so
+scores of one rung are comparable; the fractions are nested per class so the class balance of
+each subset is that of the dataset. The kept model is retrained on the whole dataset.
+
+Output per (model, dataset): <model>_<dataset>.model and <model>_<dataset>.search.csv (one row
+per evaluation: rung, fraction, rows, score, ms, kept, options). models/search is not under
+version control.
+
+Example:
+java HyperparameterSearch -model J48,KNN -N 32 -eta 3 -rungs 3 -metric auc
+java HyperparameterSearch -model CostSensitive_NB -i "data/Training/Affect_Clip_Labels_important-7-features.arff"
+ *
+ *
+*/
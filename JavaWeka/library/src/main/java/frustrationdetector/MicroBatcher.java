@@ -0,0 +1,374 @@
+/**
+ * Adaptive micro-batching in front of a compiled scorer
+ * Concurrent scoring requests are queued and a dispatcher thread collects them into batches,
+ * closed when the batch limit is reached or the oldest request has waited maxWait, scores each
+ * batch with one CompiledScorer.distributions call and completes every request's future.
+ * The batch limit adapts to the observed request latency; queue depth and batch size
+ * distributions are kept for monitoring.
+ * Run as a program it drives one model with many concurrent clients, batched and unbatched.
+ * Options: -model <model file> -input <arff file> -clients <threads> -seconds <per run> -batch <max batch size> -wait <max wait, us> -target <target latency, us>
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import java.io.PrintStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class MicroBatcher implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static final long DEFAULT_MAX_WAIT_MICROS = 500;
+    public static final long DEFAULT_TARGET_LATENCY_MICROS = 2000;
+
+    // Histograms have one bucket per power of two: 0, 1, 2-3, 4-7, ...
+    private static final int HISTOGRAM_BUCKETS = 32;
+
+    private static final class Request {
+        final double[] features;
+        final CompletableFuture<double[]> future = new CompletableFuture<>();
+        final long enqueuedNanos = System.nanoTime();
+
+        Request(double[] features) {
+            this.features = features;
+        }
+    }
+
+    private final CompiledScorer scorer;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final long targetLatencyNanos;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    private volatile boolean closed;
+
+    private volatile int batchLimit;
+    private final AtomicLongArray batchSizes = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    private final AtomicLongArray queueDepths = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    public MicroBatcher(String name, CompiledScorer scorer) {
+        this(name, scorer, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_WAIT_MICROS, DEFAULT_TARGET_LATENCY_MICROS);
+    }
+
+    public MicroBatcher(String name, CompiledScorer scorer, int maxBatchSize, long maxWaitMicros, long targetLatencyMicros) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + maxBatchSize);
+        }
+        if (maxWaitMicros < 0 || targetLatencyMicros <= 0) {
+            throw new IllegalArgumentException("Wait and target latency must be positive");
+        }
+        this.scorer = scorer;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.targetLatencyNanos = TimeUnit.MICROSECONDS.toNanos(targetLatencyMicros);
+        this.batchLimit = maxBatchSize;
+        this.dispatcher = new Thread(this::dispatch, "micro-batcher-" + name);
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    // Queue one row (seven features, NaN for missing); the future completes with its distribution
+    public CompletableFuture<double[]> submit(double[] features) {
+        if (features.length != FrustrationFeatures.NUM_FEATURES) {
+            throw new IllegalArgumentException("Expected " + FrustrationFeatures.NUM_FEATURES + " features, got " + features.length);
+        }
+        Request request = new Request(features.clone());
+        if (closed) {
+            request.future.completeExceptionally(new IllegalStateException("Batcher is closed"));
+            return request.future;
+        }
+        queue.add(request);
+        // close() may have drained the queue between the check and the add
+        if (closed && queue.remove(request)) {
+            request.future.completeExceptionally(new IllegalStateException("Batcher is closed"));
+        }
+        return request.future;
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    public int batchLimit() {
+        return batchLimit;
+    }
+
+    private void dispatch() {
+        Request[] batch = new Request[maxBatchSize];
+        double[][] rows = new double[maxBatchSize][];
+        while (!closed) {
+            int size = 0;
+            boolean interrupted = false;
+            try {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                queueDepths.incrementAndGet(bucket(queue.size() + 1));
+                batch[0] = first;
+                size = 1;
+                int limit = batchLimit;
+                long deadline = first.enqueuedNanos + maxWaitNanos;
+                // Take what is already queued, then wait for more until the oldest request's deadline
+                size += drain(batch, size, limit);
+                while (size < limit) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Request next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch[size++] = next;
+                    size += drain(batch, size, limit);
+                }
+            } catch (InterruptedException e) {
+                // close(): the requests already taken off the queue are still scored below
+                interrupted = true;
+                if (size == 0) {
+                    break;
+                }
+            }
+
+            double[][] out = new double[size][];
+            for (int r = 0; r < size; r++) {
+                rows[r] = batch[r].features;
+                out[r] = new double[scorer.numClasses()];
+            }
+            try {
+                long scoreStart = System.nanoTime();
+                scorer.distributions(rows, size, out);
+                long now = System.nanoTime();
+                long worstLatency = 0;
+                for (int r = 0; r < size; r++) {
+                    long latency = now - batch[r].enqueuedNanos;
+                    totalLatencyNanos.addAndGet(latency);
+                    worstLatency = Math.max(worstLatency, latency);
+                    batch[r].future.complete(out[r]);
+                }
+                maxLatencyNanos.accumulateAndGet(worstLatency, Math::max);
+                adapt(size, now - scoreStart);
+            } catch (RuntimeException e) {
+                for (int r = 0; r < size; r++) {
+                    batch[r].future.completeExceptionally(e);
+                }
+            }
+            requests.addAndGet(size);
+            batches.incrementAndGet();
+            batchSizes.incrementAndGet(bucket(size));
+            for (int r = 0; r < size; r++) {
+                batch[r] = null;
+                rows[r] = null;
+            }
+            if (interrupted) {
+                break;
+            }
+        }
+        Request request;
+        while ((request = queue.poll()) != null) {
+            request.future.completeExceptionally(new IllegalStateException("Batcher is closed"));
+        }
+    }
+
+    private int drain(Request[] batch, int size, int limit) {
+        int added = 0;
+        Request next;
+        while (size + added < limit && (next = queue.poll()) != null) {
+            batch[size + added++] = next;
+        }
+        return added;
+    }
+
+    /*
+     * AIMD on the batch limit, driven by the time spent scoring the batch (the latency batching
+     * adds; time spent queued behind other requests is load, which larger batches relieve):
+     * halve the limit when scoring took longer than the target, grow it by a quarter when a full
+     * batch took less than half the target.
+     */
+    private void adapt(int size, long scoringNanos) {
+        int limit = batchLimit;
+        if (scoringNanos > targetLatencyNanos) {
+            batchLimit = Math.max(1, limit / 2);
+        } else if (size >= limit && limit < maxBatchSize && 2 * scoringNanos < targetLatencyNanos) {
+            batchLimit = Math.min(maxBatchSize, limit + Math.max(1, limit / 4));
+        }
+    }
+
+    private static int bucket(long value) {
+        return Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        dispatcher.interrupt();
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long numRequests() {
+        return requests.get();
+    }
+
+    public long numBatches() {
+        return batches.get();
+    }
+
+    public void printMetrics(PrintStream out) {
+        long numRequests = requests.get();
+        long numBatches = batches.get();
+        out.printf("Requests: %d in %d batches (mean batch %.1f, current limit %d)%n", numRequests, numBatches,
+            numBatches == 0 ? 0.0 : (double) numRequests / numBatches, batchLimit);
+        out.printf("Latency: mean %.1f us, max %.1f us%n",
+            numRequests == 0 ? 0.0 : totalLatencyNanos.get() / 1e3 / numRequests, maxLatencyNanos.get() / 1e3);
+        printHistogram(out, "Batch size", batchSizes);
+        printHistogram(out, "Queue depth at dispatch", queueDepths);
+    }
+
+    // JSON for the scoring server: {"requests":..,"batches":..,"batchLimit":..,"batchSizes":{"1":..,"2-3":..},...}
+    public String metricsJson() {
+        StringBuilder json = new StringBuilder("{\"requests\":").append(requests.get())
+            .append(",\"batches\":").append(batches.get())
+            .append(",\"batchLimit\":").append(batchLimit)
+            .append(",\"queueDepth\":").append(queue.size());
+        appendHistogram(json.append(",\"batchSizes\":"), batchSizes);
+        appendHistogram(json.append(",\"queueDepths\":"), queueDepths);
+        return json.append('}').toString();
+    }
+
+    private static String bucketLabel(int bucket) {
+        if (bucket <= 1) {
+            return Integer.toString(bucket);
+        }
+        long low = 1L << (bucket - 1);
+        return low + "-" + (2 * low - 1);
+    }
+
+    private static void printHistogram(PrintStream out, String title, AtomicLongArray histogram) {
+        out.println(title + ":");
+        for (int b = 0; b < HISTOGRAM_BUCKETS; b++) {
+            long count = histogram.get(b);
+            if (count > 0) {
+                out.printf("  %12s  %d%n", bucketLabel(b), count);
+            }
+        }
+    }
+
+    private static void appendHistogram(StringBuilder json, AtomicLongArray histogram) {
+        json.append('{');
+        boolean first = true;
+        for (int b = 0; b < HISTOGRAM_BUCKETS; b++) {
+            long count = histogram.get(b);
+            if (count > 0) {
+                json.append(first ? "" : ",").append('"').append(bucketLabel(b)).append("\":").append(count);
+                first = false;
+            }
+        }
+        json.append('}');
+    }
+
+    public static void main(String[] args) {
+        try {
+            String modelPath = Utils.getOption("model", args);
+            if (modelPath.length() == 0) {
+                modelPath = "models/RandomForest_model_trained.model";
+            }
+            String inputPath = Utils.getOption("input", args);
+            if (inputPath.length() == 0) {
+                inputPath = "data/Test DataSets/UTAS/TEST-UTAS-FINAL-424.arff";
+            }
+            String clients = Utils.getOption("clients", args);
+            int numClients = clients.length() == 0 ? 256 : Integer.parseInt(clients);
+            String seconds = Utils.getOption("seconds", args);
+            double runSeconds = seconds.length() == 0 ? 3.0 : Double.parseDouble(seconds);
+            String batch = Utils.getOption("batch", args);
+            int maxBatchSize = batch.length() == 0 ? DEFAULT_MAX_BATCH_SIZE : Integer.parseInt(batch);
+            String wait = Utils.getOption("wait", args);
+            long maxWait = wait.length() == 0 ? DEFAULT_MAX_WAIT_MICROS : Long.parseLong(wait);
+            String target = Utils.getOption("target", args);
+            long targetLatency = target.length() == 0 ? DEFAULT_TARGET_LATENCY_MICROS : Long.parseLong(target);
+
+            CompiledScorer scorer = ModelCompiler.compile((Classifier) SerializationHelper.read(modelPath));
+            Instances inputData = DatasetCatalog.load(inputPath);
+            double[][] rows = new double[inputData.numInstances()][FrustrationFeatures.NUM_FEATURES];
+            for (int i = 0; i < rows.length; i++) {
+                FrustrationFeatures.toFeatures(inputData.instance(i), rows[i]);
+            }
+
+            System.out.println("=== " + ModelInspector.modelName(modelPath) + ", " + numClients + " concurrent clients ===");
+            System.out.println("\n--- One row per dispatch (batch size 1) ---");
+            run(new MicroBatcher("unbatched", scorer, 1, 0, targetLatency), rows, numClients, runSeconds);
+            System.out.println("\n--- Adaptive micro-batches (up to " + maxBatchSize + ", wait " + maxWait + " us) ---");
+            run(new MicroBatcher("batched", scorer, maxBatchSize, maxWait, targetLatency), rows, numClients, runSeconds);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Every client (a virtual thread) submits one row at a time and waits for its answer
+    private static void run(MicroBatcher batcher, double[][] rows, int numClients, double runSeconds) throws Exception {
+        long end = System.nanoTime() + (long) (runSeconds * 1e9);
+        long start = System.nanoTime();
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < numClients; c++) {
+                final int client = c;
+                clients.submit(() -> {
+                    int i = client;
+                    while (System.nanoTime() < end) {
+                        batcher.submit(rows[i % rows.length]).get();
+                        i += numClients;
+                    }
+                    return null;
+                });
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        batcher.close();
+        System.out.printf("Throughput: %.0f requests/s%n", batcher.numRequests() / elapsed);
+        batcher.printMetrics(System.out);
+    }
+}
+
+/* Note:
+
+ModelPrediction classifies one instance per classifyInstance call. The RandomForest and KNN
+scorers are faster per row when they get many rows at once (the forest walks each tree for a
+block of rows while the tree is in cache, the KNN scan screens a block of queries per pass over
+the training set), so under concurrent load the dispatcher groups the waiting requests.
+
+A batch closes when it reaches the current limit or when its oldest request has waited -wait
+microseconds, so a lone request is never held longer than that. The limit starts at the maximum
+and is adapted per batch (AIMD) on the time the batch took to score: halved when that exceeded the
+target latency, grown by a quarter when a full batch took less than half of it. End-to-end
+latency (mean and max, reported in the metrics) also includes time queued behind earlier batches,
+which only grows when the limit is cut. Queue depth is sampled at every dispatch; both
+histograms use power-of-two buckets.
+
+One dispatcher thread runs every batch, so a scorer never sees two batches at once; this also
+keeps the history-dependent KNN scorer in one deterministic order per batch.
+
+Example:
+java MicroBatcher -model models/KNN_model_trained.model -clients 512 -batch 128 -wait 1000 -target 5000
+ *
+ *
+*/
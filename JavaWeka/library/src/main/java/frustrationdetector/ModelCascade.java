@@ -0,0 +1,381 @@
+/**
+ * Two-stage cost-aware cascade of compiled scorers
+ * Every row is scored by a cheap first stage (CostSensitive_NB or CostSensitive_BN); only rows
+ * whose first-stage probability of "yes" falls inside an uncertainty band are scored again by the
+ * expensive second stage (RandomForest or KNN), whose P(yes) is mapped into the band and returned
+ * instead, so the cascade's scores keep one ranking and the escalated rows the second stage's decision.
+ * The band is chosen offline on out-of-fold predictions of a training ARFF as the narrowest one
+ * that keeps the AUC within a target loss of the better stage alone.
+ * Options: -first <model name> -second <model name> -train <arff file> -loss <target AUC loss> -folds <folds> -S <seed>
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ModelCascade implements CompiledScorer {
+
+    public static final double DEFAULT_TARGET_AUC_LOSS = 0.005;
+    public static final int DEFAULT_FOLDS = 10;
+
+    // Candidate band edges are this many quantiles of the first-stage scores
+    private static final int NUM_QUANTILES = 40;
+
+    private final CompiledScorer first;
+    private final CompiledScorer second;
+    private final double low;
+    private final double high;
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder escalations = new LongAdder();
+
+    public ModelCascade(CompiledScorer first, CompiledScorer second, double low, double high) {
+        if (first.numClasses() != second.numClasses()) {
+            throw new IllegalArgumentException("Both stages must have the same classes");
+        }
+        if (low > high) {
+            throw new IllegalArgumentException("Empty uncertainty band [" + low + ", " + high + "]");
+        }
+        this.first = first;
+        this.second = second;
+        this.low = low;
+        this.high = high;
+    }
+
+    @Override
+    public int numClasses() {
+        return first.numClasses();
+    }
+
+    public double getLow() {
+        return low;
+    }
+
+    public double getHigh() {
+        return high;
+    }
+
+    private boolean uncertain(double[] distribution) {
+        double yes = distribution[FrustrationFeatures.YES];
+        return yes >= low && yes <= high;
+    }
+
+    @Override
+    public void distribution(double[] features, double[] out) {
+        first.distribution(features, out);
+        rows.increment();
+        if (uncertain(out)) {
+            escalations.increment();
+            second.distribution(features, out);
+            mapIntoBand(out, low, high);
+        }
+    }
+
+    /*
+     * Rescale the second stage's P(yes) into [low, high], piecewise linearly so that its 0.5 lands
+     * on 0.5 (or the nearer band edge); the other classes share the rest in their original
+     * proportions. Rows the first stage was sure about then stay below or above every escalated
+     * row, the escalated rows are ordered by the second stage, and when the band contains 0.5 (as
+     * chooseBand's always do) they keep the second stage's decision.
+     */
+    static void mapIntoBand(double[] distribution, double low, double high) {
+        double yes = distribution[FrustrationFeatures.YES];
+        double rest = 1.0 - yes;
+        double middle = Math.max(low, Math.min(high, 0.5));
+        double mappedYes = yes <= 0.5 ? low + 2 * yes * (middle - low) : middle + 2 * (yes - 0.5) * (high - middle);
+        for (int c = 0; c < distribution.length; c++) {
+            if (c != FrustrationFeatures.YES) {
+                distribution[c] = rest > 0.0 ? distribution[c] * (1.0 - mappedYes) / rest : (1.0 - mappedYes) / (distribution.length - 1);
+            }
+        }
+        distribution[FrustrationFeatures.YES] = mappedYes;
+    }
+
+    // First stage on every row, then the escalated rows as one batch through the second stage
+    @Override
+    public void distributions(double[][] rows, int numRows, double[][] out) {
+        first.distributions(rows, numRows, out);
+        int[] escalated = new int[numRows];
+        int numEscalated = 0;
+        for (int r = 0; r < numRows; r++) {
+            if (uncertain(out[r])) {
+                escalated[numEscalated++] = r;
+            }
+        }
+        this.rows.add(numRows);
+        escalations.add(numEscalated);
+        if (numEscalated == 0) {
+            return;
+        }
+        double[][] batch = new double[numEscalated][];
+        double[][] batchOut = new double[numEscalated][];
+        for (int e = 0; e < numEscalated; e++) {
+            batch[e] = rows[escalated[e]];
+            batchOut[e] = out[escalated[e]];
+        }
+        second.distributions(batch, numEscalated, batchOut);
+        for (double[] distribution : batchOut) {
+            mapIntoBand(distribution, low, high);
+        }
+    }
+
+    public long numRows() {
+        return rows.sum();
+    }
+
+    public double escalationRate() {
+        long n = rows.sum();
+        return n == 0 ? 0.0 : (double) escalations.sum() / n;
+    }
+
+    /*
+     * The cascade's predictions from the two stages' cached predictions: rows with a
+     * first-stage P(yes) in [low, high] take the second stage's distribution, mapped into the band.
+     */
+    public static PredictionCache combine(PredictionCache first, PredictionCache second, double low, double high) {
+        int numInstances = first.numInstances();
+        int numClasses = first.numClasses();
+        double[] distributions = new double[numInstances * numClasses];
+        int[] actual = new int[numInstances];
+        String[] classValues = new String[numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            classValues[c] = first.classValue(c);
+        }
+        double[] distribution = new double[numClasses];
+        for (int i = 0; i < numInstances; i++) {
+            double yes = first.score(i, FrustrationFeatures.YES);
+            boolean escalated = yes >= low && yes <= high;
+            for (int c = 0; c < numClasses; c++) {
+                distribution[c] = (escalated ? second : first).score(i, c);
+            }
+            if (escalated) {
+                mapIntoBand(distribution, low, high);
+            }
+            System.arraycopy(distribution, 0, distributions, i * numClasses, numClasses);
+            actual[i] = first.actual(i);
+        }
+        return new PredictionCache(distributions, actual, classValues);
+    }
+
+    /*
+     * Choose the band from out-of-fold predictions of both stages: every pair of quantiles of the
+     * first-stage P(yes) around 0.5 is a candidate; the one escalating the fewest rows whose
+     * cascade AUC is at least the better stage's AUC minus targetLoss wins. Returns {low, high};
+     * the full range when nothing narrower qualifies, {NaN, NaN} when the first stage alone does.
+     */
+    public static double[] chooseBand(PredictionCache first, PredictionCache second, double targetLoss) {
+        int numInstances = first.numInstances();
+        double[] scores = new double[numInstances];
+        for (int i = 0; i < numInstances; i++) {
+            scores[i] = first.score(i, FrustrationFeatures.YES);
+        }
+        Arrays.sort(scores);
+        double[] edges = new double[NUM_QUANTILES + 1];
+        for (int q = 0; q <= NUM_QUANTILES; q++) {
+            edges[q] = scores[Math.min(numInstances - 1, (int) ((long) q * numInstances / NUM_QUANTILES))];
+        }
+
+        double requiredAUC = Math.max(first.averageAUC(null), second.averageAUC(null)) - targetLoss;
+        double[] best = {0.0, 1.0};
+        int bestEscalated = numInstances + 1;
+        // An empty band (first stage only) is a candidate too
+        if (first.averageAUC(null) >= requiredAUC) {
+            return new double[] {Double.NaN, Double.NaN};
+        }
+        for (int i = 0; i <= NUM_QUANTILES && edges[i] <= 0.5; i++) {
+            for (int j = i; j <= NUM_QUANTILES; j++) {
+                if (edges[j] < 0.5) {
+                    continue;
+                }
+                int escalated = countInBand(scores, edges[i], edges[j]);
+                if (escalated >= bestEscalated) {
+                    continue;
+                }
+                if (combine(first, second, edges[i], edges[j]).averageAUC(null) >= requiredAUC) {
+                    best = new double[] {edges[i], edges[j]};
+                    bestEscalated = escalated;
+                }
+            }
+        }
+        return best;
+    }
+
+    /*
+     * Out-of-fold predictions of a model's algorithm and options on a training set: each fold is
+     * scored by a copy trained on the other folds, the way RetrainingPipeline cross-validates. A
+     * model scoring the rows it was trained on (RandomForest's AUC there is about 1) would make
+     * every band look too costly to leave out.
+     */
+    static PredictionCache outOfFold(Classifier trained, RetrainingPipeline.TrainingSet set) throws Exception {
+        Classifier template = RetrainingPipeline.template(trained);
+        int numClasses = set.data.numClasses();
+        double[] distributions = new double[set.data.numInstances() * numClasses];
+        int[] actual = new int[set.data.numInstances()];
+        double[] features = new double[FrustrationFeatures.NUM_FEATURES];
+        double[] distribution = new double[numClasses];
+        for (int fold = 0; fold < set.foldTest.length; fold++) {
+            Classifier classifier = AbstractClassifier.makeCopy(template);
+            classifier.buildClassifier(new Instances(set.foldTrain[fold]));
+            CompiledScorer scorer = ModelCompiler.compile(classifier);
+            Instances test = set.foldTest[fold];
+            for (int i = 0; i < test.numInstances(); i++) {
+                int row = set.foldOffset[fold] + i;
+                scorer.distribution(FrustrationFeatures.toFeatures(test.instance(i), features), distribution);
+                System.arraycopy(distribution, 0, distributions, row * numClasses, numClasses);
+                actual[row] = test.instance(i).classIsMissing() ? -1 : (int) test.instance(i).classValue();
+            }
+        }
+        String[] classValues = new String[numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            classValues[c] = set.data.classAttribute().value(c);
+        }
+        return new PredictionCache(distributions, actual, classValues);
+    }
+
+    private static double kappa(PredictionCache predictions) {
+        int numClasses = predictions.numClasses();
+        double[] confusion = new double[numClasses * numClasses];
+        double total = predictions.confusionMatrix(null, confusion);
+        return ClassificationMetrics.kappa(confusion, numClasses, total);
+    }
+
+    private static int countInBand(double[] sortedScores, double low, double high) {
+        int from = lowerBound(sortedScores, low);
+        int to = lowerBound(sortedScores, Math.nextUp(high));
+        return to - from;
+    }
+
+    private static int lowerBound(double[] sorted, double value) {
+        int from = 0;
+        int to = sorted.length;
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (sorted[mid] < value) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    // Best of a few timed passes over the rows, in nanoseconds per row
+    private static double nanosPerRow(CompiledScorer scorer, double[][] rows) {
+        double[] out = new double[scorer.numClasses()];
+        long best = Long.MAX_VALUE;
+        for (int repeat = 0; repeat < 5; repeat++) {
+            long start = System.nanoTime();
+            for (double[] row : rows) {
+                scorer.distribution(row, out);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) best / rows.length;
+    }
+
+    private static double[][] rows(Instances data) {
+        double[][] rows = new double[data.numInstances()][FrustrationFeatures.NUM_FEATURES];
+        for (int i = 0; i < rows.length; i++) {
+            FrustrationFeatures.toFeatures(data.instance(i), rows[i]);
+        }
+        return rows;
+    }
+
+    public static void main(String[] args) {
+        try {
+            String firstName = Utils.getOption("first", args);
+            if (firstName.length() == 0) {
+                firstName = "CostSensitive_NB";
+            }
+            String secondName = Utils.getOption("second", args);
+            if (secondName.length() == 0) {
+                secondName = "RandomForest";
+            }
+            String trainPath = Utils.getOption("train", args);
+            if (trainPath.length() == 0) {
+                trainPath = "data/Training/Affect_Clip_Labels_important-7-features.arff";
+            }
+            String loss = Utils.getOption("loss", args);
+            double targetLoss = loss.length() == 0 ? DEFAULT_TARGET_AUC_LOSS : Double.parseDouble(loss);
+            String folds = Utils.getOption("folds", args);
+            String seed = Utils.getOption("S", args);
+
+            Classifier firstClassifier = (Classifier) SerializationHelper.read(ModelInspector.modelPath(firstName));
+            Classifier secondClassifier = (Classifier) SerializationHelper.read(ModelInspector.modelPath(secondName));
+            CompiledScorer first = ModelCompiler.compile(firstClassifier);
+
+            RetrainingPipeline.TrainingSet train = new RetrainingPipeline.TrainingSet(trainPath,
+                folds.length() == 0 ? DEFAULT_FOLDS : Integer.parseInt(folds), seed.length() == 0 ? 1 : Long.parseLong(seed));
+            PredictionCache firstOutOfFold = outOfFold(firstClassifier, train);
+            PredictionCache secondOutOfFold = outOfFold(secondClassifier, train);
+            double[] band = chooseBand(firstOutOfFold, secondOutOfFold, targetLoss);
+            System.out.println("=== Cascade " + firstName + " -> " + secondName + " ===");
+            System.out.printf("Out-of-fold AUC on %s: %s %.4f, %s %.4f%n", train.name,
+                firstName, firstOutOfFold.averageAUC(null), secondName, secondOutOfFold.averageAUC(null));
+            if (Double.isNaN(band[0])) {
+                System.out.println(firstName + " alone is within " + targetLoss + " AUC of the better stage; nothing to escalate");
+                return;
+            }
+            System.out.printf("Uncertainty band on P(yes), chosen for an AUC loss of at most %s: [%.6g, %.6g]%n%n",
+                targetLoss, band[0], band[1]);
+
+            System.out.printf("%-55s %8s %8s %8s %8s %8s %8s %10s %10s%n", "Dataset", "AUC 1st", "AUC 2nd", "AUC casc",
+                "kap 1st", "kap 2nd", "kap casc", "escalated", "CPU saved");
+            for (String inputPath : DatasetCatalog.arffFiles()) {
+                Instances data = DatasetCatalog.load(inputPath);
+                double[][] rows = rows(data);
+                // A fresh second stage per dataset, so history-dependent scorers (KNN) start clean
+                CompiledScorer secondStage = ModelCompiler.compile(secondClassifier);
+                PredictionCache firstCache = PredictionCache.predict(first, data);
+                PredictionCache secondCache = PredictionCache.predict(secondStage, data);
+                ModelCascade cascade = new ModelCascade(first, ModelCompiler.compile(secondClassifier), band[0], band[1]);
+                PredictionCache cascadeCache = PredictionCache.predict(cascade, data);
+
+                double firstCost = nanosPerRow(first, rows);
+                double secondCost = nanosPerRow(secondStage, rows);
+                double cascadeCost = firstCost + cascade.escalationRate() * secondCost;
+                System.out.printf("%-55s %8.4f %8.4f %8.4f %8.4f %8.4f %8.4f %9.1f%% %9.1f%%%n", DatasetCatalog.datasetName(inputPath),
+                    firstCache.averageAUC(null), secondCache.averageAUC(null), cascadeCache.averageAUC(null),
+                    kappa(firstCache), kappa(secondCache), kappa(cascadeCache),
+                    100 * cascade.escalationRate(), 100 * (1 - cascadeCost / secondCost));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/* Note:
+
+Cost: the compiled NaiveBayes/BayesNet scorers take tens of nanoseconds per row, the RandomForest
+walks 100 trees and the KNN scans the training set. The cascade costs
+cost(first) + escalation rate * cost(second), so when most students are clearly "no" (or clearly
+"yes") the expensive model runs on a small share of the rows. "CPU saved" is that estimate
+against running the second stage on every row, with both costs measured on the dataset itself.
+
+Band selection: both stages are cross-validated on the training ARFF (the bundled models'
+algorithms and options, RetrainingPipeline's folds), because the bundled models were trained on
+those rows: scored in-sample the RandomForest's AUC is about 1, no band short of [0, 1] came
+within the loss, and every row was escalated. The candidate edges are 41 quantiles of the first
+stage's out-of-fold P(yes), and only bands containing 0.5 are tried; for each (low, high) pair
+the cascade's predictions are assembled from the two cached prediction sets (no re-scoring) and
+its class-averaged AUC compared with the better stage's (the cheap model is sometimes the better
+one on these data). The narrowest band (fewest rows escalated) within -loss wins, and the test
+sets check it.
+Returning the second stage's own probabilities would interleave them with the first stage's
+confident ones and lose the ranking the AUC measures; mapping them into the band keeps it. The
+map is piecewise linear around 0.5, so an escalated row is "yes" exactly when the second stage
+says so; kappa is printed next to the AUC to show the decisions.
+
+Example:
+java ModelCascade -first CostSensitive_BN -second KNN -loss 0.01
+ *
+ *
+*/
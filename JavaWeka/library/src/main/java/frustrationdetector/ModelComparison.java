@@ -0,0 +1,234 @@
+/**
+ * Paired comparison of the models' AUCs on one dataset
+ * Every model scores the dataset once; each bootstrap round then draws one set of resample
+ * indices and applies it to the cached predictions of all models, so the AUC differences are
+ * paired. Reports, for every pair of models, the AUC difference with its percentile CI and
+ * bootstrap p-value, and the DeLong estimate of the same difference (standard error, p-value).
+ * Options: -input <arff file> -models <comma separated model names, default all> -B <samples> -C <confidence> -S <seed> -num-slots <threads>
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Statistics;
+import weka.core.Utils;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ModelComparison {
+
+    /** One pair of models: AUC(a) - AUC(b), by paired bootstrap and by DeLong. */
+    public static class Comparison {
+        final String modelA;
+        final String modelB;
+        final double aucA;
+        final double aucB;
+        final ConfidenceInterval difference;
+        final double bootstrapPValue;
+        final double delongDifference;
+        final double delongStandardError;
+        final double delongPValue;
+
+        Comparison(String modelA, String modelB, double aucA, double aucB, ConfidenceInterval difference,
+                   double bootstrapPValue, double[] delong) {
+            this.modelA = modelA;
+            this.modelB = modelB;
+            this.aucA = aucA;
+            this.aucB = aucB;
+            this.difference = difference;
+            this.bootstrapPValue = bootstrapPValue;
+            this.delongDifference = delong[0];
+            this.delongStandardError = delong[1];
+            this.delongPValue = delong[2];
+        }
+
+        public double getDifference() {
+            return aucA - aucB;
+        }
+
+        public ConfidenceInterval getDifferenceInterval() {
+            return difference;
+        }
+
+        public double getBootstrapPValue() {
+            return bootstrapPValue;
+        }
+
+        public double getDelongDifference() {
+            return delongDifference;
+        }
+
+        public double getDelongPValue() {
+            return delongPValue;
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            String inputPath = Utils.getOption("input", args);
+            if (inputPath.length() == 0) {
+                inputPath = "data/Test DataSets/UTAS/TEST-UTAS-FINAL-424.arff";
+            }
+            String modelList = Utils.getOption("models", args);
+            String[] modelPaths = ModelInspector.MODEL_PATHS;
+            if (modelList.length() > 0) {
+                String[] names = modelList.split(",");
+                modelPaths = new String[names.length];
+                for (int m = 0; m < names.length; m++) {
+                    modelPaths[m] = ModelInspector.modelPath(names[m].trim());
+                }
+            }
+            BootstrapEngine bootstrap = new BootstrapEngine();
+            bootstrap.setOptions(args);
+
+            Instances inputData = DatasetCatalog.load(inputPath);
+            String[] modelNames = new String[modelPaths.length];
+            PredictionCache[] caches = new PredictionCache[modelPaths.length];
+            for (int m = 0; m < modelPaths.length; m++) {
+                modelNames[m] = ModelInspector.modelName(modelPaths[m]);
+                caches[m] = predict((Classifier) SerializationHelper.read(modelPaths[m]), inputData);
+            }
+
+            long start = System.nanoTime();
+            List<Comparison> comparisons = compare(modelNames, caches, bootstrap);
+            System.err.println(bootstrap.getNumBootstrapSamples() + " paired resamples of " + caches.length
+                + " models in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+            System.out.println("=== Paired AUC comparison on " + DatasetCatalog.datasetName(inputPath) + " ===");
+            print(comparisons, bootstrap.getConfidenceLevel(), System.out);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Score with the compiled model when there is one, otherwise with the classifier itself
+    private static PredictionCache predict(Classifier classifier, Instances data) throws Exception {
+        CompiledScorer scorer;
+        try {
+            scorer = ModelCompiler.compile(classifier);
+        } catch (IllegalArgumentException e) {
+            return PredictionCache.predict(classifier, data);
+        }
+        return PredictionCache.predict(scorer, data);
+    }
+
+    /*
+     * Compare every pair of models. The cost is one pass over the cached predictions of each
+     * model per resample; no model is evaluated again.
+     */
+    public static List<Comparison> compare(String[] modelNames, PredictionCache[] caches, BootstrapEngine bootstrap) throws Exception {
+        double[][] auc = bootstrap.bootstrapPairedAUC(caches);
+        int numSamples = bootstrap.getNumBootstrapSamples();
+
+        double[][] placements = new double[caches.length][];
+        for (int m = 0; m < caches.length; m++) {
+            placements[m] = caches[m].placements(FrustrationFeatures.YES);
+        }
+
+        List<Comparison> comparisons = new ArrayList<>();
+        double[] difference = new double[numSamples];
+        for (int a = 0; a < caches.length; a++) {
+            for (int b = a + 1; b < caches.length; b++) {
+                int atOrBelowZero = 0;
+                int atOrAboveZero = 0;
+                for (int r = 0; r < numSamples; r++) {
+                    difference[r] = auc[a][r] - auc[b][r];
+                    if (difference[r] <= 0.0) {
+                        atOrBelowZero++;
+                    }
+                    if (difference[r] >= 0.0) {
+                        atOrAboveZero++;
+                    }
+                }
+                // Two-sided: twice the share of resamples on the far side of zero
+                double pValue = Math.min(1.0, 2.0 * Math.min(atOrBelowZero, atOrAboveZero) / numSamples);
+                comparisons.add(new Comparison(modelNames[a], modelNames[b],
+                    caches[a].averageAUC(null), caches[b].averageAUC(null),
+                    ConfidenceInterval.fromSamples(difference, bootstrap.getConfidenceLevel()), pValue,
+                    delong(caches[a], placements[a], placements[b])));
+            }
+        }
+        return comparisons;
+    }
+
+    /*
+     * DeLong test for two correlated AUCs (DeLong, DeLong & Clarke-Pearson, 1988) from the
+     * placement values of both models: returns {AUC(a) - AUC(b), standard error, two-sided p}.
+     */
+    public static double[] delong(PredictionCache labels, double[] placementsA, double[] placementsB) {
+        int numPositives = 0;
+        int numNegatives = 0;
+        double sumPositiveA = 0.0, sumPositiveB = 0.0, sumNegativeA = 0.0, sumNegativeB = 0.0;
+        for (int i = 0; i < labels.numInstances(); i++) {
+            if (labels.actual(i) == FrustrationFeatures.YES) {
+                numPositives++;
+                sumPositiveA += placementsA[i];
+                sumPositiveB += placementsB[i];
+            } else if (labels.actual(i) >= 0) {
+                numNegatives++;
+                sumNegativeA += placementsA[i];
+                sumNegativeB += placementsB[i];
+            }
+        }
+        double aucA = sumPositiveA / numPositives;
+        double aucB = sumPositiveB / numPositives;
+
+        // Variance of the difference of the placements, over the positives and over the negatives
+        double positiveVariance = 0.0;
+        double negativeVariance = 0.0;
+        for (int i = 0; i < labels.numInstances(); i++) {
+            if (labels.actual(i) == FrustrationFeatures.YES) {
+                double d = (placementsA[i] - aucA) - (placementsB[i] - aucB);
+                positiveVariance += d * d;
+            } else if (labels.actual(i) >= 0) {
+                double d = (placementsA[i] - sumNegativeA / numNegatives) - (placementsB[i] - sumNegativeB / numNegatives);
+                negativeVariance += d * d;
+            }
+        }
+        positiveVariance /= numPositives - 1;
+        negativeVariance /= numNegatives - 1;
+
+        double difference = aucA - aucB;
+        double standardError = Math.sqrt(positiveVariance / numPositives + negativeVariance / numNegatives);
+        double pValue = standardError > 0.0
+            ? 2.0 * Statistics.normalProbability(-Math.abs(difference) / standardError)
+            : (difference == 0.0 ? 1.0 : 0.0);
+        return new double[] {difference, standardError, pValue};
+    }
+
+    public static void print(List<Comparison> comparisons, double confidenceLevel, PrintStream out) {
+        out.printf("%-18s %-18s %8s %8s %9s %21s %9s %9s %9s%n",
+            "Model A", "Model B", "AUC A", "AUC B", "A - B",
+            String.format("CI (%.0f%%)", confidenceLevel * 100), "p (boot)", "SE (DL)", "p (DL)");
+        for (Comparison c : comparisons) {
+            out.printf("%-18s %-18s %8.4f %8.4f %9.4f  [%8.4f, %8.4f] %9.4f %9.4f %9.4f%n",
+                c.modelA, c.modelB, c.aucA, c.aucB, c.getDifference(),
+                c.difference.getLowerCI(), c.difference.getUpperCI(), c.bootstrapPValue,
+                c.delongStandardError, c.delongPValue);
+        }
+    }
+}
+
+/* Note:
+
+ModelPredictionCI bootstraps each model on its own, so two intervals that overlap say nothing
+about whether one model beats the other on the same students. Here all the models see the same
+resample in every round (one drawCounts per round, applied to every PredictionCache), and the
+statistic is the per-round difference of the class-averaged AUCs. With -S fixed the table is
+the same for any -num-slots.
+
+The DeLong column is the closed-form alternative: no resampling, one pass over the sorted
+scores per model for the placement values and one pass per pair for the covariance. It is
+computed on the AUC of the "yes" class, which for these two-class datasets is the
+class-averaged AUC.
+
+Example:
+java ModelComparison -input "data/Test DataSets/UTAS/TEST-UTAS-FINAL-424.arff" -models CostSensitive_BN,RandomForest -B 2000 -S 1
+ *
+ *
+*/
@@ -0,0 +1,169 @@
+/**
+ * Compiles the deserialized Weka models into allocation-free CompiledScorers
+ * (J48, NaiveBayes, BayesNet, RandomForest, IBk and CostSensitiveClassifier around any of them)
+ * Run as a program it verifies every compiled model against Weka on every bundled ARFF file.
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.bayes.BayesNet;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.lazy.IBk;
+import weka.classifiers.meta.CostSensitiveClassifier;
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+import java.lang.reflect.Field;
+
+public final class ModelCompiler {
+
+    // Largest absolute probability difference accepted by the verification
+    public static final double TOLERANCE = 1e-12;
+
+    private ModelCompiler() {
+    }
+
+    public static CompiledScorer compile(Classifier classifier) throws Exception {
+        if (classifier instanceof CostSensitiveClassifier) {
+            CostSensitiveClassifier costClassifier = (CostSensitiveClassifier) classifier;
+            return new CompiledCostSensitive(costClassifier, compile(costClassifier.getClassifier()));
+        }
+        if (classifier instanceof J48) {
+            return new CompiledJ48((J48) classifier);
+        }
+        if (classifier instanceof NaiveBayes) {
+            return new CompiledNaiveBayes((NaiveBayes) classifier);
+        }
+        if (classifier instanceof BayesNet) {
+            return new CompiledBayesNet((BayesNet) classifier);
+        }
+        if (classifier instanceof RandomForest) {
+            return new FlatRandomForest((RandomForest) classifier);
+        }
+        if (classifier instanceof IBk) {
+            return new CompiledIBk((IBk) classifier);
+        }
+        throw new IllegalArgumentException("No compiled scorer for " + classifier.getClass().getName());
+    }
+
+    public static boolean canCompile(Classifier classifier) {
+        try {
+            compile(classifier);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            boolean allMatch = true;
+            for (String modelPath : ModelInspector.MODEL_PATHS) {
+                Classifier classifier = (Classifier) SerializationHelper.read(modelPath);
+                CompiledScorer scorer;
+                try {
+                    scorer = compile(classifier);
+                } catch (IllegalArgumentException e) {
+                    System.out.println(modelPath + ": not compiled (" + e.getMessage() + ")");
+                    continue;
+                }
+                System.out.println(modelPath + " (" + scorer.getClass().getSimpleName() + ")");
+                for (String inputPath : DatasetCatalog.arffFiles()) {
+                    boolean match = verify(classifier, scorer, DatasetCatalog.load(inputPath), inputPath);
+                    allMatch &= match;
+                }
+                System.out.println();
+            }
+            System.out.println(allMatch ? "All compiled scorers match Weka." : "MISMATCHES FOUND.");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Compare the compiled distribution with Weka's on every instance, then time both paths
+    public static boolean verify(Classifier classifier, CompiledScorer scorer, Instances data, String inputPath) throws Exception {
+        int numClasses = data.numClasses();
+        double[] features = new double[FrustrationFeatures.NUM_FEATURES];
+        double[] compiled = new double[numClasses];
+        double maxDifference = 0.0;
+        int labelMismatches = 0;
+        for (int i = 0; i < data.numInstances(); i++) {
+            double[] weka = classifier.distributionForInstance(data.instance(i));
+            scorer.distribution(FrustrationFeatures.toFeatures(data.instance(i), features), compiled);
+            for (int c = 0; c < numClasses; c++) {
+                maxDifference = Math.max(maxDifference, Math.abs(weka[c] - compiled[c]));
+            }
+            if (weka.length > 0 && argMax(weka) != argMax(compiled)) {
+                labelMismatches++;
+            }
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < data.numInstances(); i++) {
+            classifier.distributionForInstance(data.instance(i));
+        }
+        double wekaNanos = (double) (System.nanoTime() - start) / data.numInstances();
+        double[][] rows = new double[data.numInstances()][FrustrationFeatures.NUM_FEATURES];
+        for (int i = 0; i < rows.length; i++) {
+            FrustrationFeatures.toFeatures(data.instance(i), rows[i]);
+        }
+        start = System.nanoTime();
+        for (double[] row : rows) {
+            scorer.distribution(row, compiled);
+        }
+        double compiledNanos = (double) (System.nanoTime() - start) / rows.length;
+
+        boolean match = maxDifference <= TOLERANCE && labelMismatches == 0;
+        System.out.printf("  %-70s %5d rows  max |diff| %.3e  label mismatches %d  weka %8.0f ns/row  compiled %6.0f ns/row  %s\n",
+            inputPath, data.numInstances(), maxDifference, labelMismatches, wekaNanos, compiledNanos, match ? "OK" : "MISMATCH");
+        return match;
+    }
+
+    private static int argMax(double[] values) {
+        int best = 0;
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] > values[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    // Divide by the sum, as weka.core.Utils.normalize does
+    static void normalize(double[] values, int length) {
+        double sum = 0.0;
+        for (int i = 0; i < length; i++) {
+            sum += values[i];
+        }
+        if (Double.isNaN(sum) || sum == 0.0) {
+            throw new IllegalArgumentException("Can't normalize array. Sum is " + sum);
+        }
+        for (int i = 0; i < length; i++) {
+            values[i] /= sum;
+        }
+    }
+
+    // Read a non-public field of a Weka model (the compiled layouts need the fitted internals)
+    static Object field(Object target, Class<?> declaringClass, String name) throws Exception {
+        Field field = declaringClass.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(target);
+    }
+}
+
+/* Note:
+
+Scoring a row through Classifier.distributionForInstance means building a DenseInstance tied to an
+Instances header; BayesNet additionally pushes it through two filters and NaiveBayes enumerates the
+attributes. The compiled scorers read the fitted parameters once (through reflection where Weka
+keeps them protected: J48.m_root, ClassifierTree.m_isEmpty, BayesNet.m_DiscretizeFilter and
+m_MissingValuesFilter) and replay the same floating point operations in the same order over
+primitive arrays, so the verification expects bit-for-bit equal distributions.
+RandomForest is flattened by FlatRandomForest and IBk is searched through CompiledIBk.
+ *
+ *
+*/
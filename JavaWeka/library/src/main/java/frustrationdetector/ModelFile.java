@@ -0,0 +1,469 @@
+/**
+ * Compact binary model format for the compiled scorers
+ * A file is a 32 byte header (magic, format version, scorer kind, payload length and the CRC32
+ * of the payload) followed by the scorer's primitive arrays, little-endian and 8 byte aligned.
+ * Loading maps the file with FileChannel.map and checks it; the RandomForest then scores straight
+ * over the mapped buffers, the other (small) models copy their arrays out with bulk gets.
+ * Run as a program it exports every model of the models folder and reports the startup time of
+ * loading the binary files against SerializationHelper.read.
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+public final class ModelFile {
+
+    public static final int MAGIC = 0x424D4446;   // "FDMB"
+    public static final int VERSION = 1;
+    public static final String EXTENSION = ".fdm";
+    public static final String DEFAULT_DIRECTORY = "models/binary";
+
+    static final int HEADER_SIZE = 32;
+
+    // Scorer kinds
+    static final int NAIVE_BAYES = 1;
+    static final int BAYES_NET = 2;
+    static final int J48 = 3;
+    static final int RANDOM_FOREST = 4;
+    static final int IBK = 5;
+    static final int COST_SENSITIVE = 6;
+
+    private ModelFile() {
+    }
+
+    // Write a compiled scorer; the file is written next to the target and moved into place
+    public static void write(CompiledScorer scorer, Path path) throws IOException {
+        Writer out = new Writer();
+        writeScorer(out, scorer);
+        ByteBuffer payload = out.finish();
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(kind(scorer)).putInt(0);
+        header.putLong(payload.remaining()).putLong(crc.getValue());
+        header.flip();
+
+        Path parent = path.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temporary = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (payload.hasRemaining()) {
+                channel.write(payload);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Map a model file, check its header and checksum and build the scorer over the mapping
+    public static CompiledScorer load(Path path) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(path + ": not a model file (too short)");
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException(path + ": not a model file (bad magic number)");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException(path + ": unsupported format version " + version + " (expected " + VERSION + ")");
+        }
+        long payloadLength = buffer.getLong(16);
+        if (payloadLength != buffer.capacity() - HEADER_SIZE) {
+            throw new IOException(path + ": truncated (payload of " + payloadLength + " bytes expected)");
+        }
+        ByteBuffer payload = buffer.duplicate().position(HEADER_SIZE).slice().order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if (crc.getValue() != buffer.getLong(24)) {
+            throw new IOException(path + ": checksum mismatch");
+        }
+        Reader in = new Reader(payload);
+        CompiledScorer scorer = readScorer(in);
+        if (kind(scorer) != buffer.getInt(8)) {
+            throw new IOException(path + ": header and payload disagree on the model kind");
+        }
+        return scorer;
+    }
+
+    // Binary file of a serialized model, e.g. models/J48_model_trained.model -> models/binary/J48.fdm
+    public static Path binaryPath(String modelPath) {
+        return Paths.get(DEFAULT_DIRECTORY, ModelInspector.modelName(modelPath) + EXTENSION);
+    }
+
+    static int kind(CompiledScorer scorer) {
+        if (scorer instanceof CompiledNaiveBayes) {
+            return NAIVE_BAYES;
+        }
+        if (scorer instanceof CompiledBayesNet) {
+            return BAYES_NET;
+        }
+        if (scorer instanceof CompiledJ48) {
+            return J48;
+        }
+        if (scorer instanceof FlatRandomForest) {
+            return RANDOM_FOREST;
+        }
+        if (scorer instanceof CompiledIBk) {
+            return IBK;
+        }
+        if (scorer instanceof CompiledCostSensitive) {
+            return COST_SENSITIVE;
+        }
+        throw new IllegalArgumentException("No binary format for " + scorer.getClass().getName());
+    }
+
+    static void writeScorer(Writer out, CompiledScorer scorer) {
+        int kind = kind(scorer);
+        out.writeInt(kind);
+        switch (kind) {
+            case NAIVE_BAYES:
+                ((CompiledNaiveBayes) scorer).write(out);
+                break;
+            case BAYES_NET:
+                ((CompiledBayesNet) scorer).write(out);
+                break;
+            case J48:
+                ((CompiledJ48) scorer).write(out);
+                break;
+            case RANDOM_FOREST:
+                ((FlatRandomForest) scorer).write(out);
+                break;
+            case IBK:
+                ((CompiledIBk) scorer).write(out);
+                break;
+            default:
+                ((CompiledCostSensitive) scorer).write(out);
+                break;
+        }
+    }
+
+    static CompiledScorer readScorer(Reader in) throws IOException {
+        int kind = in.readInt();
+        switch (kind) {
+            case NAIVE_BAYES:
+                return new CompiledNaiveBayes(in);
+            case BAYES_NET:
+                return new CompiledBayesNet(in);
+            case J48:
+                return new CompiledJ48(in);
+            case RANDOM_FOREST:
+                return new FlatRandomForest(in);
+            case IBK:
+                return new CompiledIBk(in);
+            case COST_SENSITIVE:
+                return new CompiledCostSensitive(in);
+            default:
+                throw new IOException("Unknown model kind " + kind);
+        }
+    }
+
+    /*
+     * Payload writer. Scalars are 4 or 8 bytes; an array is its length followed by its elements,
+     * starting on an 8 byte boundary so the loader can view it in place.
+     */
+    static final class Writer {
+
+        private ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+        void writeInt(int value) {
+            ensure(4).putInt(value);
+        }
+
+        void writeBoolean(boolean value) {
+            writeInt(value ? 1 : 0);
+        }
+
+        void writeDouble(double value) {
+            align();
+            ensure(8).putDouble(value);
+        }
+
+        void writeInts(int[] values) {
+            writeInts(IntBuffer.wrap(values));
+        }
+
+        void writeInts(IntBuffer values) {
+            int length = values.limit();
+            writeInt(length);
+            align();
+            ensure(4L * length);
+            for (int i = 0; i < length; i++) {
+                buffer.putInt(values.get(i));
+            }
+        }
+
+        void writeDoubles(double[] values) {
+            writeDoubles(DoubleBuffer.wrap(values));
+        }
+
+        void writeDoubles(DoubleBuffer values) {
+            int length = values.limit();
+            writeInt(length);
+            align();
+            ensure(8L * length);
+            for (int i = 0; i < length; i++) {
+                buffer.putDouble(values.get(i));
+            }
+        }
+
+        void writeFloats(float[] values) {
+            writeInt(values.length);
+            align();
+            ensure(4L * values.length);
+            for (float value : values) {
+                buffer.putFloat(value);
+            }
+        }
+
+        void writeBytes(byte[] values) {
+            writeBytes(ByteBuffer.wrap(values));
+        }
+
+        void writeBytes(ByteBuffer values) {
+            int length = values.limit();
+            writeInt(length);
+            align();
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                buffer.put(values.get(i));
+            }
+        }
+
+        private void align() {
+            while ((buffer.position() & 7) != 0) {
+                ensure(1).put((byte) 0);
+            }
+        }
+
+        private ByteBuffer ensure(long bytes) {
+            if (buffer.remaining() < bytes) {
+                long capacity = Math.max(2L * buffer.capacity(), buffer.position() + bytes);
+                if (capacity > Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("Model too large for the binary format");
+                }
+                ByteBuffer larger = ByteBuffer.allocate((int) capacity).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            return buffer;
+        }
+
+        ByteBuffer finish() {
+            align();
+            ByteBuffer payload = buffer.duplicate();
+            payload.flip();
+            return payload;
+        }
+    }
+
+    // Payload reader over the mapped file: arrays are either copied out or viewed in place
+    static final class Reader {
+
+        private final ByteBuffer buffer;
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        int readInt() throws IOException {
+            check(4);
+            return buffer.getInt();
+        }
+
+        boolean readBoolean() throws IOException {
+            return readInt() != 0;
+        }
+
+        double readDouble() throws IOException {
+            align();
+            check(8);
+            return buffer.getDouble();
+        }
+
+        int[] readInts() throws IOException {
+            int[] values = new int[readLength(4)];
+            buffer.asIntBuffer().get(values);
+            skip(4L * values.length);
+            return values;
+        }
+
+        double[] readDoubles() throws IOException {
+            double[] values = new double[readLength(8)];
+            buffer.asDoubleBuffer().get(values);
+            skip(8L * values.length);
+            return values;
+        }
+
+        float[] readFloats() throws IOException {
+            float[] values = new float[readLength(4)];
+            buffer.asFloatBuffer().get(values);
+            skip(4L * values.length);
+            return values;
+        }
+
+        byte[] readBytes() throws IOException {
+            byte[] values = new byte[readLength(1)];
+            buffer.get(values);
+            return values;
+        }
+
+        // Views of the mapped file, no copy
+        IntBuffer intView() throws IOException {
+            int length = readLength(4);
+            IntBuffer view = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().limit(length);
+            skip(4L * length);
+            return view.slice();
+        }
+
+        DoubleBuffer doubleView() throws IOException {
+            int length = readLength(8);
+            DoubleBuffer view = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().limit(length);
+            skip(8L * length);
+            return view.slice();
+        }
+
+        ByteBuffer byteView() throws IOException {
+            int length = readLength(1);
+            ByteBuffer view = buffer.slice().limit(length).slice();
+            skip(length);
+            return view;
+        }
+
+        private int readLength(int elementSize) throws IOException {
+            int length = readInt();
+            align();
+            if (length < 0) {
+                throw new IOException("Corrupt model file: negative array length");
+            }
+            check((long) length * elementSize);
+            return length;
+        }
+
+        private void align() throws IOException {
+            int padding = (8 - (buffer.position() & 7)) & 7;
+            skip(padding);
+        }
+
+        private void skip(long bytes) throws IOException {
+            check(bytes);
+            buffer.position(buffer.position() + (int) bytes);
+        }
+
+        private void check(long bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                throw new IOException("Corrupt model file: unexpected end of payload");
+            }
+        }
+    }
+
+    /*
+     * Exports every model of the models folder (-output <directory>, default models/binary),
+     * then compares loading each model both ways: the first load in this JVM (class loading
+     * included) and the best of the repeated loads. The loaded binary scorers are checked
+     * against the Weka models on the UTAS and EmoDetect test sets.
+     */
+    public static void main(String[] args) {
+        try {
+            String outputDirectory = Utils.getOption("output", args);
+            String repeatOption = Utils.getOption("repeat", args);
+            int repeat = repeatOption.isEmpty() ? 5 : Integer.parseInt(repeatOption);
+
+            System.out.printf("%-42s %10s %10s %12s %12s %12s %12s  %s\n", "Model", "model KB", "binary KB",
+                "read first", "read best", "load first", "load best", "predictions");
+            for (String modelPath : ModelInspector.MODEL_PATHS) {
+                Path binary = outputDirectory.isEmpty() ? binaryPath(modelPath)
+                    : Paths.get(outputDirectory, ModelInspector.modelName(modelPath) + EXTENSION);
+
+                long start = System.nanoTime();
+                Classifier classifier = (Classifier) SerializationHelper.read(modelPath);
+                double readFirst = (System.nanoTime() - start) / 1e6;
+                double readBest = readFirst;
+                for (int i = 1; i < repeat; i++) {
+                    start = System.nanoTime();
+                    SerializationHelper.read(modelPath);
+                    readBest = Math.min(readBest, (System.nanoTime() - start) / 1e6);
+                }
+
+                write(ModelCompiler.compile(classifier), binary);
+
+                start = System.nanoTime();
+                CompiledScorer scorer = load(binary);
+                double loadFirst = (System.nanoTime() - start) / 1e6;
+                double loadBest = loadFirst;
+                for (int i = 1; i < repeat; i++) {
+                    start = System.nanoTime();
+                    load(binary);
+                    loadBest = Math.min(loadBest, (System.nanoTime() - start) / 1e6);
+                }
+
+                // One reference model for all test sets: IBk widens its ranges with every row it scores
+                Classifier reference = (Classifier) SerializationHelper.read(modelPath);
+                boolean match = true;
+                for (String inputPath : DatasetCatalog.arffFiles("data/Test DataSets")) {
+                    match &= samePredictions(reference, scorer, DatasetCatalog.load(inputPath));
+                }
+                System.out.printf("%-42s %10.1f %10.1f %9.2f ms %9.2f ms %9.2f ms %9.2f ms  %s\n", modelPath,
+                    new File(modelPath).length() / 1024.0, Files.size(binary) / 1024.0,
+                    readFirst, readBest, loadFirst, loadBest, match ? "same as Weka" : "DIFFERENT");
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean samePredictions(Classifier classifier, CompiledScorer scorer, Instances data) throws Exception {
+        double[] features = new double[FrustrationFeatures.NUM_FEATURES];
+        double[] distribution = new double[scorer.numClasses()];
+        for (int i = 0; i < data.numInstances(); i++) {
+            double[] weka = classifier.distributionForInstance(data.instance(i));
+            scorer.distribution(FrustrationFeatures.toFeatures(data.instance(i), features), distribution);
+            for (int c = 0; c < weka.length; c++) {
+                if (Math.abs(weka[c] - distribution[c]) > ModelCompiler.TOLERANCE) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
+
+/* Note:
+
+SerializationHelper.read rebuilds the whole object graph of a model (for the RandomForest: 100
+RandomTree objects, one Tree object and several arrays per node, plus the Instances headers) and
+depends on the Weka class versions the model was saved with. The binary files only hold the
+compiled primitive tables, so they are independent of Weka's serialVersionUIDs; a format change
+bumps VERSION and old files are rejected rather than misread.
+ *
+ *
+*/
@@ -2,25 +2,29 @@
  * To print configuration of the seven Weka classifiers together.
  * @author Mohammad Mustaneer Rahman
  */
+
+package frustrationdetector;
 import weka.classifiers.Classifier;
 import weka.core.SerializationHelper;
 
+import java.io.File;
+
 public class ModelInspector {
+    // Array of model paths
+    public static final String[] MODEL_PATHS = {
+        "models/CostSensitive_BN_model_Trained.model",
+        "models/CostSensitive_NB_model_trained.model",
+        "models/J48_model_trained.model",
+        "models/RandomForest_model_trained.model",
+        "models/KNN_model_trained.model",
+        "models/BN_model_trained.model",
+        "models/NB_model_trained.model"
+    };
+
     public static void main(String[] args) {
         try {
-            // Array of model paths
-            String[] modelPaths = {
-                "models/CostSensitive_BN_model_Trained.model",
-                "models/CostSensitive_NB_model_trained.model",
-                "models/J48_model_trained.model",
-                "models/RandomForest_model_trained.model",
-                "models/KNN_model_trained.model",
-                "models/BN_model_trained.model",
-                "models/NB_model_trained.model"
-            };
-
             // Iterate over each model path
-            for (String modelPath : modelPaths) {
+            for (String modelPath : MODEL_PATHS) {
                 // Deserialize the model from the file
                 Classifier model = (Classifier) SerializationHelper.read(modelPath);
 
@@ -34,6 +38,26 @@ public class ModelInspector {
             e.printStackTrace();
         }
     }
+    // Short model name from its path, e.g. models/CostSensitive_BN_model_Trained.model -> CostSensitive_BN
+    public static String modelName(String modelPath) {
+        String name = new File(modelPath).getName();
+        int suffix = name.toLowerCase().indexOf("_model");
+        if (suffix < 0) {
+            suffix = name.lastIndexOf('.');
+        }
+        return suffix > 0 ? name.substring(0, suffix) : name;
+    }
+
+    // Path of a bundled model from its short name, e.g. J48 -> models/J48_model_trained.model
+    public static String modelPath(String modelName) {
+        for (String modelPath : MODEL_PATHS) {
+            if (modelName(modelPath).equals(modelName)) {
+                return modelPath;
+            }
+        }
+        throw new IllegalArgumentException("Unknown model " + modelName);
+    }
+
     // Method to inspect the model and return a string representation of the result
     private static String inspectModel(Classifier model) {
         // Depending on the type of model, we may need to cast it to the appropriate class
@@ -4,6 +4,8 @@
  * To display the configuration settings of a CostSensitiveClassifier and the textual output of the classifier model in Weka, specifically for a CostSensitiveClassifier with a BayesNet base classifier
  * @author Mohammad Mustaneer Rahman
  */
+
+package frustrationdetector;
 import weka.classifiers.Classifier;
 import weka.classifiers.meta.CostSensitiveClassifier;
 import weka.core.SerializationHelper;
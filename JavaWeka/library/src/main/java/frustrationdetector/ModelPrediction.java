@@ -3,6 +3,8 @@
  * @author Mohammad Mustaneer Rahman
  */
 
+package frustrationdetector;
+
 import weka.classifiers.Classifier;
 import weka.core.Instance;
 import weka.core.Instances;
@@ -3,16 +3,15 @@
  * @author Mohammad Mustaneer Rahman
  */
 
+package frustrationdetector;
+
 import weka.classifiers.Classifier;
 import weka.core.Instances;
 import weka.core.SerializationHelper;
+import weka.core.Utils;
 import weka.core.converters.ConverterUtils.DataSource;
 import weka.classifiers.evaluation.Evaluation;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Random;
-
 public class ModelPredictionCI {
 
     public static void main(String[] args) {
@@ -39,7 +38,15 @@ public class ModelPredictionCI {
              // Load the pre-trained classifier NB Traditional
              //String modelPath = "models/NB_model_trained.model";
             
-            Classifier classifier = (Classifier) SerializationHelper.read(modelPath);
+            // -predict-once bootstraps over cached predictions instead of re-classifying every resample
+            boolean predictOnce = Utils.getFlag("predict-once", args);
+            // -cache reads the predictions and the predict-once bootstrap back from data/cache/evaluations
+            // when this model file and dataset file were evaluated with the same -B, -C and -S (EvaluationCache)
+            boolean useCache = Utils.getFlag("cache", args);
+            if (useCache && !predictOnce) {
+                throw new IllegalArgumentException("-cache stores the predict-once bootstrap only: add -predict-once, or drop -cache for the re-evaluating one");
+            }
+            Classifier classifier = useCache ? null : (Classifier) SerializationHelper.read(modelPath);
             
         /*Please load test datasets (UTAS & EmoDetect) one by one */
         /* Load the input data UTAS dataset === Evaluation on test set == UTAS dataset */
@@ -70,9 +77,20 @@ public class ModelPredictionCI {
             Instances inputData = dataSource.getDataSet();
             inputData.setClassIndex(inputData.numAttributes() - 1);
 
-            // Evaluate the classifier on the test dataset
+            // Initialize parameters for bootstrapping (-B samples, -C confidence level, -S seed, -num-slots threads)
+            BootstrapEngine bootstrap = new BootstrapEngine();
+            bootstrap.setOptions(args);
+
+            // Evaluate the classifier on the test dataset (with -cache: replay the stored predictions)
             Evaluation evaluation = new Evaluation(inputData);
-            evaluation.evaluateModel(classifier, inputData);
+            EvaluationCache.Entry cached = null;
+            if (useCache) {
+                cached = new EvaluationCache().evaluate(modelPath, inputPath, bootstrap);
+                System.err.println("Evaluation cache: " + (cached.isHit() ? "hit" : "stored, " + cached.getRowsClassified() + " rows classified"));
+                cached.replay(evaluation, inputData);
+            } else {
+                evaluation.evaluateModel(classifier, inputData);
+            }
 
             // Calculate the average AUC
             // https://weka.sourceforge.io/doc.dev/weka/classifiers/Evaluation.html
@@ -89,57 +107,16 @@ public class ModelPredictionCI {
             System.err.println("----------Cost Sensitive Analysis----------");
             System.out.println("Average AUC: " + averageAUC);
 
-            // Initialize parameters for bootstrapping
-            int numBootstrapSamples = 1000;
-            double confidenceLevel = 0.95;
-            Random random = new Random();
-
-            // Perform bootstrapping
-            ArrayList<Double> aucList = new ArrayList<>();
-            for (int b = 0; b < numBootstrapSamples; b++) {
-                Instances resampledData = inputData.resample(random);
-                Evaluation resampledEvaluation = new Evaluation(resampledData);
-                resampledEvaluation.evaluateModel(classifier, resampledData);
-                double resampledSumAUC = 0.0;
-                for (int i = 0; i < numClasses; i++) {
-                    double resampledAUC = resampledEvaluation.areaUnderROC(i);
-                    resampledSumAUC += resampledAUC;
-                }
-                double resampledAverageAUC = resampledSumAUC / numClasses;
-                aucList.add(resampledAverageAUC);
-            }
-
-            // Sort the AUCs
-            Collections.sort(aucList);
-
-            // Calculate the mean and standard deviation
-            double sum = 0.0;
-            for (double auc : aucList) {
-                sum += auc;
-            }
-            double mean = sum / aucList.size();
-            double sumOfSquares = 0.0;
-            for (double auc : aucList) {
-                double diff = auc - mean;
-                sumOfSquares += diff * diff;
+            // Perform bootstrapping in parallel, calculate the confidence intervals and print the results
+            if (cached != null) {
+                cached.getReport().print(System.out);
+            } else if (predictOnce) {
+                BootstrapReport report = bootstrap.bootstrapCached(PredictionCache.predict(classifier, inputData));
+                report.print(System.out);
+            } else {
+                ConfidenceInterval aucInterval = bootstrap.bootstrapAUC(classifier, inputData);
+                aucInterval.print(System.out);
             }
-            double variance = sumOfSquares / (aucList.size() - 1);
-            double standardDeviation = Math.sqrt(variance);
-
-            // Calculate the confidence intervals
-            int lowerIndex = (int) (numBootstrapSamples * (1 - confidenceLevel) / 2);
-            int upperIndex = (int) (numBootstrapSamples * (1 + confidenceLevel) / 2);
-            double lowerCI = aucList.get(lowerIndex);
-            double upperCI = aucList.get(upperIndex);
-
-            // Print the results
-            System.out.println("Sample Mean: " + mean);
-            System.out.println("Standard Deviation: " + standardDeviation);
-            System.out.println("Confidence Interval (" + (confidenceLevel * 100) + "%): [" + lowerCI + ", " + upperCI + "]");
-
-            // Calculate the confidence intervals
-            double halfWidth = (upperCI - lowerCI) / 2.0;
-            System.out.printf("Confidence Interval (%.0f%%): %.2f ± %.2f\n", (confidenceLevel * 100), mean, halfWidth);
 
         
             // Print the confusion matrix with proper alignment and labels
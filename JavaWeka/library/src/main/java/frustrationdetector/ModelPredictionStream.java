@@ -0,0 +1,276 @@
+/**
+ * Streaming predictions for each instance
+ * Reads the ARFF (or CSV) file one instance at a time after its header, scores it and writes the
+ * predicted label with the class distribution to a buffered CSV/JSONL sink, so memory stays
+ * constant however large the scoring file is. The first prediction is flushed at once and the
+ * sink is flushed again every FLUSH_MILLIS, so a consumer of stdout sees rows as they are scored.
+ * Options: -model <model file> -input <arff/csv file> -output <file, default stdout> -format <csv|jsonl>
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.core.converters.ArffLoader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class ModelPredictionStream {
+
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_JSONL = "jsonl";
+
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+    private static final long FLUSH_MILLIS = 100;
+
+    public static void main(String[] args) {
+        try {
+            String modelPath = Utils.getOption("model", args);
+            if (modelPath.length() == 0) {
+                modelPath = "models/CostSensitive_BN_model_Trained.model";
+            }
+            String inputPath = Utils.getOption("input", args);
+            if (inputPath.length() == 0) {
+                inputPath = "data/Test DataSets/EmoDetect/TEST-EmoDetect-FINAL-300.arff";
+            }
+            String outputPath = Utils.getOption("output", args);
+            String format = Utils.getOption("format", args);
+            if (format.length() == 0) {
+                format = FORMAT_CSV;
+            }
+
+            Classifier classifier = (Classifier) SerializationHelper.read(modelPath);
+
+            OutputStream outputStream = outputPath.length() == 0 ? System.out : new FileOutputStream(outputPath);
+            Writer out = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), OUTPUT_BUFFER_SIZE);
+            try {
+                long count = score(classifier, new File(inputPath), out, format);
+                System.err.println("Scored " + count + " instances from " + inputPath);
+            } finally {
+                out.flush();
+                if (outputStream != System.out) {
+                    out.close();
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Score every instance of the input file and return how many were written. While scoring, a
+     * daemon thread flushes the sink every FLUSH_MILLIS, so rows never wait in the buffer for
+     * long, even when the input stalls; rows are written and flushed under the writer's lock.
+     */
+    public static long score(Classifier classifier, File input, Writer out, String format) throws Exception {
+        if (!FORMAT_CSV.equals(format) && !FORMAT_JSONL.equals(format)) {
+            throw new IllegalArgumentException("Unknown output format: " + format + " (use csv or jsonl)");
+        }
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "prediction-stream-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(() -> {
+            synchronized (out) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    // The scoring thread gets the same error on its next write
+                }
+            }
+        }, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            if (input.getName().toLowerCase().endsWith(".csv")) {
+                return scoreCSV(classifier, input, out, format);
+            }
+            return scoreARFF(classifier, input, out, format);
+        } finally {
+            flusher.shutdownNow();
+        }
+    }
+
+    // Incremental ARFF: only the header is kept, instances are read and dropped one by one
+    private static long scoreARFF(Classifier classifier, File input, Writer out, String format) throws Exception {
+        ArffLoader loader = new ArffLoader();
+        loader.setFile(input);
+        Instances structure = loader.getStructure();
+        structure.setClassIndex(structure.numAttributes() - 1);
+        writeHeader(out, structure, format);
+
+        long row = 0;
+        Instance instance;
+        while ((instance = loader.getNextInstance(structure)) != null) {
+            writePrediction(out, ++row, structure, classifier.distributionForInstance(instance), format);
+        }
+        return row;
+    }
+
+    /*
+     * CSV with the seven features (optionally followed by the class). A header line (the first
+     * non-empty line, if it is not numeric) maps the columns by attribute name and must name all
+     * seven features; without one the columns are taken in ARFF order.
+     */
+    private static long scoreCSV(Classifier classifier, File input, Writer out, String format) throws Exception {
+        Instances header = FrustrationFeatures.newHeader(input.getName());
+        writeHeader(out, header, format);
+
+        int[] columnOfFeature = new int[FrustrationFeatures.NUM_FEATURES];
+        for (int i = 0; i < columnOfFeature.length; i++) {
+            columnOfFeature[i] = i;
+        }
+        double[] features = new double[FrustrationFeatures.NUM_FEATURES];
+
+        long row = 0;
+        long lineNumber = 0;
+        boolean firstLine = true;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(input), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                // -1 keeps trailing empty fields, so a short row is reported rather than shifted
+                String[] tokens = line.split(",", -1);
+                if (firstLine) {
+                    firstLine = false;
+                    if (!isNumeric(tokens[0])) {
+                        mapColumns(tokens, columnOfFeature, input);
+                        continue;
+                    }
+                }
+                for (int i = 0; i < features.length; i++) {
+                    if (columnOfFeature[i] >= tokens.length) {
+                        throw new IOException(input + ", line " + lineNumber + ": " + tokens.length + " fields, no column "
+                            + (columnOfFeature[i] + 1) + " for feature " + FrustrationFeatures.ATTRIBUTE_NAMES[i]);
+                    }
+                    String token = tokens[columnOfFeature[i]].trim();
+                    try {
+                        features[i] = token.equals("?") ? Utils.missingValue() : Double.parseDouble(token);
+                    } catch (NumberFormatException e) {
+                        throw new IOException(input + ", line " + lineNumber + ": bad value \"" + token + "\" for feature "
+                            + FrustrationFeatures.ATTRIBUTE_NAMES[i]);
+                    }
+                }
+                Instance instance = FrustrationFeatures.toInstance(features, header);
+                writePrediction(out, ++row, header, classifier.distributionForInstance(instance), format);
+            }
+        }
+        return row;
+    }
+
+    // Column of every feature from the header line; a feature it does not name is an error
+    private static void mapColumns(String[] tokens, int[] columnOfFeature, File input) throws IOException {
+        Arrays.fill(columnOfFeature, -1);
+        for (int column = 0; column < tokens.length; column++) {
+            int feature = FrustrationFeatures.indexOf(tokens[column]);
+            if (feature >= 0) {
+                columnOfFeature[feature] = column;
+            }
+        }
+        for (int i = 0; i < columnOfFeature.length; i++) {
+            if (columnOfFeature[i] < 0) {
+                throw new IOException(input + ": the header has no column for feature " + FrustrationFeatures.ATTRIBUTE_NAMES[i]);
+            }
+        }
+    }
+
+    private static boolean isNumeric(String token) {
+        try {
+            Double.parseDouble(token.trim());
+            return true;
+        } catch (NumberFormatException e) {
+            return token.trim().equals("?");
+        }
+    }
+
+    private static void writeHeader(Writer out, Instances structure, String format) throws IOException {
+        if (!FORMAT_CSV.equals(format)) {
+            return;
+        }
+        out.write("instance,predicted");
+        for (int c = 0; c < structure.numClasses(); c++) {
+            out.write(',');
+            out.write(structure.classAttribute().value(c));
+        }
+        out.write('\n');
+    }
+
+    private static void writePrediction(Writer out, long row, Instances structure, double[] distribution, String format) throws IOException {
+        synchronized (out) {
+            writeRow(out, row, structure, distribution, format);
+            if (row == 1) {
+                out.flush();
+            }
+        }
+    }
+
+    private static void writeRow(Writer out, long row, Instances structure, double[] distribution, String format) throws IOException {
+        // Same label classifyInstance gives: the most probable class, '?' if there is none
+        String predictedClassLabel = Utils.sum(distribution) == 0
+            ? "?"
+            : structure.classAttribute().value(Utils.maxIndex(distribution));
+        if (FORMAT_CSV.equals(format)) {
+            out.write(Long.toString(row));
+            out.write(',');
+            out.write(predictedClassLabel);
+            for (double probability : distribution) {
+                out.write(',');
+                out.write(Double.toString(probability));
+            }
+        } else {
+            out.write("{\"instance\":");
+            out.write(Long.toString(row));
+            out.write(",\"predicted\":\"");
+            out.write(predictedClassLabel);
+            out.write("\",\"distribution\":{");
+            for (int c = 0; c < distribution.length; c++) {
+                if (c > 0) {
+                    out.write(',');
+                }
+                out.write('"');
+                out.write(structure.classAttribute().value(c));
+                out.write("\":");
+                out.write(Double.toString(distribution[c]));
+            }
+            out.write("}}");
+        }
+        out.write('\n');
+    }
+}
+
+/* Note:
+
+ModelPrediction loads the whole test file with DataSource.getDataSet() and prints one line per
+instance through System.out.println. Here the ArffLoader is used incrementally: getStructure()
+parses only the header, and getNextInstance(structure) hands back one instance at a time, so the
+first prediction is written as soon as the header has been read.
+The output goes through a 64 KB BufferedWriter: the first row is flushed as soon as it is
+written, and a daemon thread flushes whatever is buffered every 100 ms after that (a full buffer
+is flushed by the writer itself). Throughput stays that of a buffered sink while a consumer
+reading stdout never waits more than 100 ms for a scored row.
+
+Example:
+java ModelPredictionStream -model models/J48_model_trained.model -input "data/Test DataSets/UTAS/TEST-UTAS-FINAL-424.arff" -format jsonl -output utas.jsonl
+ *
+ *
+*/
@@ -0,0 +1,517 @@
+/**
+ * Versioned registry of the serialized models with hot reload
+ * Watches the models directory; a new or replaced .model file is deserialized, compiled and
+ * warmed up on a sample of the training ARFF on a background thread, then published with an
+ * atomic reference swap, so scoring threads never wait for a reload. Earlier versions are kept
+ * for rollback, and loaded versions are evicted, least recently used first, to stay within a
+ * memory budget; an evicted model is loaded again on the loader thread when it is next asked for.
+ * Options: -directory <models directory> -warmup <arff file> -budget <MB> -pool <classifier copies> -seconds <time to keep watching>
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public final class ModelRegistry implements AutoCloseable {
+
+    public static final String MODEL_EXTENSION = ".model";
+    public static final int DEFAULT_WARMUP_ROWS = 500;
+    public static final long DEFAULT_MEMORY_BUDGET = 512L << 20;
+
+    // A file is reloaded once it has not changed for this long (writers may still be copying it)
+    private static final long SETTLE_MILLIS = 200;
+
+    /** One loaded version of a model; immutable once published. */
+    public static final class Version {
+        private final String name;
+        private final int number;
+        private final Path file;
+        private final long lastModified;
+        private final long sizeBytes;
+        private final ClassifierPool pool;      // null when compiled
+        private final CompiledScorer scorer;
+        private final Instances header = FrustrationFeatures.newHeader("registry");
+
+        Version(String name, int number, Path file, long lastModified, long sizeBytes, ClassifierPool pool, CompiledScorer scorer) {
+            this.name = name;
+            this.number = number;
+            this.file = file;
+            this.lastModified = lastModified;
+            this.sizeBytes = sizeBytes;
+            this.pool = pool;
+            this.scorer = scorer;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        // Estimated memory: the serialized size times the number of classifier copies
+        public long getSizeBytes() {
+            return sizeBytes;
+        }
+
+        public boolean isCompiled() {
+            return scorer != null;
+        }
+
+        // Class distribution of one row; the compiled scorer is thread-safe, classifiers come from the pool
+        public double[] distribution(double[] features) throws Exception {
+            if (scorer != null) {
+                double[] out = new double[scorer.numClasses()];
+                scorer.distribution(features, out);
+                return out;
+            }
+            return pool.distributionForInstance(FrustrationFeatures.toInstance(features, header));
+        }
+
+        public void distributions(double[][] rows, int numRows, double[][] out) throws Exception {
+            if (scorer != null) {
+                scorer.distributions(rows, numRows, out);
+                return;
+            }
+            for (int r = 0; r < numRows; r++) {
+                double[] distribution = distribution(rows[r]);
+                System.arraycopy(distribution, 0, out[r], 0, distribution.length);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + " v" + number + " (" + file.getFileName() + ", " + (sizeBytes >> 10) + " KB"
+                + (scorer != null ? ", " + scorer.getClass().getSimpleName() : "") + ")";
+        }
+    }
+
+    /** The published version of one model name and the versions it replaced. */
+    private static final class Entry {
+        final AtomicReference<Version> current = new AtomicReference<>();
+        final Deque<Version> previous = new ArrayDeque<>();   // most recent first; guarded by the entry
+        Path file;
+        int lastNumber;
+        volatile long lastUsed;
+        // While unloaded for the budget: the version number and file time to load again under
+        int unloadedNumber;
+        long unloadedModified;
+        Future<Version> restoring;   // the one pending reload of an unloaded model
+    }
+
+    private final Path directory;
+    private final Instances warmupSample;
+    private final long memoryBudget;
+    private final int poolSize;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ExecutorService loader;
+    private final WatchService watchService;
+    private final Thread watcher;
+
+    public ModelRegistry(Path directory, String warmupPath, long memoryBudget) throws Exception {
+        this(directory, warmupPath, memoryBudget, 1);
+    }
+
+    // Models that do not compile get poolSize classifier copies, so that many requests score at once
+    public ModelRegistry(Path directory, String warmupPath, long memoryBudget, int poolSize) throws Exception {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1, got " + poolSize);
+        }
+        this.directory = directory;
+        this.memoryBudget = memoryBudget;
+        this.poolSize = poolSize;
+        Instances warmup = DatasetCatalog.load(warmupPath);
+        this.warmupSample = new Instances(warmup, 0, Math.min(DEFAULT_WARMUP_ROWS, warmup.numInstances()));
+        this.loader = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "model-registry-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Initial load, in the caller's thread, so the registry starts complete
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + MODEL_EXTENSION)) {
+            for (Path file : files) {
+                load(file);
+            }
+        }
+        this.watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.watcher = new Thread(this::watch, "model-registry-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public List<String> names() {
+        List<String> names = new ArrayList<>(entries.keySet());
+        names.sort(null);
+        return names;
+    }
+
+    public boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /*
+     * The published version of a model: one volatile read. A model unloaded for the memory budget
+     * is loaded again on the loader thread, and every caller waits for that one reload; a rollback
+     * version is never served in its place.
+     */
+    public Version get(String name) throws Exception {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            throw new IllegalArgumentException("Unknown model " + name);
+        }
+        entry.lastUsed = System.nanoTime();
+        Version version = entry.current.get();
+        if (version != null) {
+            return version;
+        }
+        Future<Version> restoring;
+        synchronized (entry) {
+            version = entry.current.get();
+            if (version != null) {
+                return version;
+            }
+            if (entry.restoring == null) {
+                entry.restoring = loader.submit(() -> restore(entry));
+            }
+            restoring = entry.restoring;
+        }
+        try {
+            return restoring.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /*
+     * A scorer that follows hot reloads: every batch is scored by the version published when it
+     * is dispatched (for MicroBatcher). Models that do not compile are scored row by row.
+     */
+    public CompiledScorer liveScorer(String name) {
+        return new CompiledScorer() {
+            @Override
+            public int numClasses() {
+                return FrustrationFeatures.CLASS_VALUES.length;
+            }
+
+            @Override
+            public void distribution(double[] features, double[] out) {
+                distributions(new double[][] {features}, 1, new double[][] {out});
+            }
+
+            @Override
+            public void distributions(double[][] rows, int numRows, double[][] out) {
+                try {
+                    get(name).distributions(rows, numRows, out);
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IllegalStateException(name + ": " + e.getMessage(), e);
+                }
+            }
+        };
+    }
+
+    // Republish the version before the current one; returns it, or null if there is none
+    public Version rollback(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            throw new IllegalArgumentException("Unknown model " + name);
+        }
+        synchronized (entry) {
+            Version previous = entry.previous.pollFirst();
+            if (previous != null) {
+                entry.current.set(previous);
+                System.err.println("Rolled back to " + previous);
+            }
+            return previous;
+        }
+    }
+
+    public List<Version> versions(String name) {
+        Entry entry = entries.get(name);
+        List<Version> versions = new ArrayList<>();
+        if (entry != null) {
+            synchronized (entry) {
+                Version current = entry.current.get();
+                if (current != null) {
+                    versions.add(current);
+                }
+                versions.addAll(entry.previous);
+            }
+        }
+        return versions;
+    }
+
+    // Runs on the loader thread: load an unloaded model again, unless a watcher reload already has
+    private Version restore(Entry entry) throws Exception {
+        try {
+            Version current = entry.current.get();
+            return current != null ? current : load(entry.file);
+        } finally {
+            synchronized (entry) {
+                entry.restoring = null;
+            }
+        }
+    }
+
+    /*
+     * Deserialize, compile and warm up one model file, then publish it. A file that fails to
+     * load or to score the warm-up sample is reported and the current version stays in place.
+     * Reloading an unchanged file after an unload publishes it under its old version number.
+     * Runs on the loader thread, except for the initial load.
+     */
+    private Version load(Path file) throws Exception {
+        String name = ModelInspector.modelName(file.toString());
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        Classifier classifier = (Classifier) SerializationHelper.read(file.toString());
+        CompiledScorer scorer = null;
+        try {
+            scorer = ModelCompiler.compile(classifier);
+        } catch (IllegalArgumentException e) {
+            // Not compilable: scored through a pool of classifier copies
+        }
+        warmUp(name, classifier, scorer);
+        ClassifierPool pool = scorer == null ? new ClassifierPool(name, classifier, poolSize) : null;
+        long sizeBytes = Files.size(file) * (pool == null ? 1 : poolSize);
+
+        Entry entry = entries.computeIfAbsent(name, n -> new Entry());
+        Version version;
+        synchronized (entry) {
+            boolean unchanged = entry.current.get() == null && entry.unloadedNumber > 0
+                && file.equals(entry.file) && entry.unloadedModified == lastModified;
+            int number = unchanged ? entry.unloadedNumber : ++entry.lastNumber;
+            entry.unloadedNumber = 0;
+            version = new Version(name, number, file, lastModified, sizeBytes, pool, scorer);
+            Version replaced = entry.current.getAndSet(version);
+            if (replaced != null) {
+                entry.previous.addFirst(replaced);
+            }
+            entry.file = file;
+            entry.lastUsed = System.nanoTime();
+        }
+        System.err.println("Published " + version);
+        evict();
+        return version;
+    }
+
+    // Score the warm-up rows (JIT warm-up and a sanity check of the new model's output)
+    private void warmUp(String name, Classifier classifier, CompiledScorer scorer) throws Exception {
+        double[] features = new double[FrustrationFeatures.NUM_FEATURES];
+        double[] distribution = new double[warmupSample.numClasses()];
+        for (int i = 0; i < warmupSample.numInstances(); i++) {
+            if (scorer != null) {
+                scorer.distribution(FrustrationFeatures.toFeatures(warmupSample.instance(i), features), distribution);
+            } else {
+                distribution = classifier.distributionForInstance(warmupSample.instance(i));
+            }
+            double sum = Utils.sum(distribution);
+            if (distribution.length != warmupSample.numClasses() || Double.isNaN(sum) || (sum != 0.0 && Math.abs(sum - 1.0) > 1e-6)) {
+                throw new IOException(name + ": invalid class distribution on warm-up row " + i);
+            }
+        }
+    }
+
+    // Memory held by every loaded version, estimated by the size of its serialized file
+    public long loadedBytes() {
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            synchronized (entry) {
+                Version current = entry.current.get();
+                total += current == null ? 0 : current.sizeBytes;
+                for (Version version : entry.previous) {
+                    total += version.sizeBytes;
+                }
+            }
+        }
+        return total;
+    }
+
+    /*
+     * Over budget: drop the oldest rollback versions first, then unload the current version of
+     * the least recently used models (they are reloaded from disk on their next get).
+     */
+    private void evict() {
+        while (loadedBytes() > memoryBudget) {
+            Entry oldest = null;
+            for (Entry entry : entries.values()) {
+                synchronized (entry) {
+                    if (!entry.previous.isEmpty() && (oldest == null || entry.lastUsed < oldest.lastUsed)) {
+                        oldest = entry;
+                    }
+                }
+            }
+            if (oldest != null) {
+                synchronized (oldest) {
+                    Version dropped = oldest.previous.pollLast();
+                    if (dropped != null) {
+                        System.err.println("Evicted " + dropped);
+                    }
+                }
+                continue;
+            }
+            Entry leastUsed = null;
+            int loaded = 0;
+            for (Entry entry : entries.values()) {
+                if (entry.current.get() != null) {
+                    loaded++;
+                    if (leastUsed == null || entry.lastUsed < leastUsed.lastUsed) {
+                        leastUsed = entry;
+                    }
+                }
+            }
+            // Always keep at least one model loaded, whatever the budget
+            if (leastUsed == null || loaded <= 1) {
+                return;
+            }
+            synchronized (leastUsed) {
+                Version unloaded = leastUsed.current.getAndSet(null);
+                if (unloaded != null) {
+                    leastUsed.unloadedNumber = unloaded.number;
+                    leastUsed.unloadedModified = unloaded.lastModified;
+                    System.err.println("Unloaded " + unloaded);
+                }
+            }
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        continue;
+                    }
+                    Path file = directory.resolve((Path) event.context());
+                    if (file.getFileName().toString().endsWith(MODEL_EXTENSION)) {
+                        loader.submit(() -> reload(file));
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    // Runs on the loader thread: wait for the file to settle, skip it if it is already published
+    private void reload(Path file) {
+        try {
+            long modified;
+            do {
+                modified = Files.getLastModifiedTime(file).toMillis();
+                Thread.sleep(SETTLE_MILLIS);
+            } while (Files.getLastModifiedTime(file).toMillis() != modified);
+
+            Entry entry = entries.get(ModelInspector.modelName(file.toString()));
+            Version current = entry == null ? null : entry.current.get();
+            if (current != null && current.file.equals(file) && current.lastModified == modified) {
+                return;
+            }
+            load(file);
+        } catch (Exception e) {
+            System.err.println("Could not reload " + file + ": " + e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        loader.shutdownNow();
+    }
+
+    public static void main(String[] args) {
+        try {
+            String directory = Utils.getOption("directory", args);
+            String warmup = Utils.getOption("warmup", args);
+            if (warmup.length() == 0) {
+                warmup = "data/Training/Affect_Clip_Labels_important-7-features.arff";
+            }
+            String budget = Utils.getOption("budget", args);
+            String pool = Utils.getOption("pool", args);
+            String seconds = Utils.getOption("seconds", args);
+
+            long start = System.nanoTime();
+            try (ModelRegistry registry = new ModelRegistry(Paths.get(directory.length() == 0 ? "models" : directory), warmup,
+                    budget.length() == 0 ? DEFAULT_MEMORY_BUDGET : Long.parseLong(budget) << 20,
+                    pool.length() == 0 ? 1 : Integer.parseInt(pool))) {
+                System.out.printf("Loaded %d models (%d KB) in %.1f ms%n", registry.names().size(),
+                    registry.loadedBytes() >> 10, (System.nanoTime() - start) / 1e6);
+                // Keep watching: replace a .model file meanwhile to see it reloaded and published
+                long end = System.currentTimeMillis() + (seconds.length() == 0 ? 0 : (long) (Double.parseDouble(seconds) * 1000));
+                while (System.currentTimeMillis() < end) {
+                    TimeUnit.MILLISECONDS.sleep(Math.min(1000, end - System.currentTimeMillis()));
+                }
+                for (String name : registry.names()) {
+                    System.out.println(name + ": " + registry.versions(name));
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/* Note:
+
+Each model name maps to an AtomicReference of its published Version. Readers do one volatile
+read and keep using the Version they got, even if a newer one is published meanwhile, so a
+reload never blocks or pauses scoring. The loader thread does the slow part (deserialize,
+compile, score the first 500 rows of the warm-up ARFF so the JIT has compiled the scoring path
+and a broken file is caught) before the swap. Replaced versions move to a per-model rollback
+list; rollback() republishes the latest of them.
+
+Memory: a version's footprint is estimated by its serialized file size (times the number of
+copies for a model that does not compile). Over the -budget the oldest rollback versions go
+first, then the current versions of the least recently used models. The next get() of an
+unloaded model queues one reload on the loader thread, shared by every caller that arrives
+before it is published, and it comes back under its old version number if the file has not
+changed. Those callers wait for it: an older rollback version would answer with stale
+predictions (and evict() has dropped all of them before it unloads a current version anyway).
+Waiting only happens when the budget is smaller than the models in use.
+ScoringServer scores through get() (and liveScorer() for its micro-batchers), so replacing a
+.model file changes what it serves without a restart.
+
+WatchService on Linux reports a modify event per write, so a reload waits until the file's
+modification time has been stable for 200 ms and skips files whose version is already published.
+Replacing the file with an atomic move is the safest way to publish a retrained model.
+
+Example:
+java ModelRegistry -directory models -budget 64 -seconds 60
+ *
+ *
+*/
@@ -0,0 +1,400 @@
+/**
+ * Online (Poisson) bootstrap of the goodness metrics over an unbounded stream of labelled predictions
+ * Keeps B replicates of the StreamingMetrics counters (confusion matrix and per-class score
+ * histograms). Every event is added to each replicate with its own Poisson(1) weight, so at any
+ * moment the replicates are B bootstrap resamples of everything seen so far, and confidence
+ * intervals for the AUC, Cohen's Kappa and weighted F-Measure are read from them on demand.
+ * Memory does not grow with the stream; an event costs O(B) counter updates. Events are applied
+ * in batches, with the replicates split into contiguous shards that run on separate cores.
+ * Options: -model <model file> -input <arff file> -events <stream length> -bins <score bins> -batch <events per batch> -B <replicates> -C <confidence> -S <seed> -num-slots <threads>
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+public class OnlineBootstrap implements AutoCloseable {
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    // A shard gets at least this many replicates, in multiples of 8 (a cache line of longs)
+    private static final int MIN_SHARD_REPLICATES = 64;
+
+    // P(Poisson(1) <= k); weights above the table are cut at its length (probability < 1e-16)
+    private static final double[] POISSON_CDF = new double[18];
+
+    static {
+        double term = Math.exp(-1.0);
+        double sum = 0.0;
+        for (int k = 0; k < POISSON_CDF.length; k++) {
+            sum += term;
+            POISSON_CDF[k] = sum;
+            term /= k + 1;
+        }
+    }
+
+    private final int numClasses;
+    private final int numBins;
+    private final int numReplicates;
+    private final double confidenceLevel;
+
+    // Counter slots, as in StreamingMetrics: [confusion K*K][labelled 1][positive K*bins][negative K*bins]
+    private final int labelledSlot;
+    private final int positiveSlot;
+    private final int negativeSlot;
+
+    // counts[slot * numReplicates + replicate]: one event adds the same weights vector to a few slots
+    private final long[] counts;
+    private final long[] randomState;   // SplitMix64 state of every replicate
+    private final int[] shardStart;     // replicates [shardStart[s], shardStart[s + 1]) belong to shard s
+    private final long[][] shardWeights;
+    private final ExecutorService pool;
+
+    // Events waiting to be applied
+    private final int[] pendingActual;
+    private final int[] pendingPredicted;
+    private final int[] pendingBins;    // numClasses per event
+    private int numPending;
+    private long numEvents;
+
+    // B, -C, -S and -num-slots are taken from the bootstrap engine's options
+    public OnlineBootstrap(int numClasses, int numBins, BootstrapEngine bootstrap) {
+        this(numClasses, numBins, bootstrap.getNumBootstrapSamples(), bootstrap.getConfidenceLevel(), bootstrap.getSeed(),
+            bootstrap.getNumThreads(), DEFAULT_BATCH_SIZE);
+    }
+
+    public OnlineBootstrap(int numClasses, int numBins, int numReplicates, double confidenceLevel, long seed, int numThreads, int batchSize) {
+        if (numClasses < 2) {
+            throw new IllegalArgumentException("At least two classes are needed, got " + numClasses);
+        }
+        if (numBins < 2) {
+            throw new IllegalArgumentException("At least two score bins are needed, got " + numBins);
+        }
+        if (numReplicates < 2) {
+            throw new IllegalArgumentException("Number of bootstrap replicates must be at least 2, got " + numReplicates);
+        }
+        if (confidenceLevel <= 0.0 || confidenceLevel >= 1.0) {
+            throw new IllegalArgumentException("Confidence level must be in (0, 1), got " + confidenceLevel);
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive, got " + batchSize);
+        }
+        this.numClasses = numClasses;
+        this.numBins = numBins;
+        this.numReplicates = numReplicates;
+        this.confidenceLevel = confidenceLevel;
+
+        this.labelledSlot = numClasses * numClasses;
+        this.positiveSlot = labelledSlot + 1;
+        this.negativeSlot = positiveSlot + numClasses * numBins;
+        this.counts = new long[(negativeSlot + numClasses * numBins) * numReplicates];
+
+        // Replicate r always draws from the r-th stream of the seed, whatever the number of shards
+        SplittableRandom root = new SplittableRandom(seed);
+        this.randomState = new long[numReplicates];
+        for (int r = 0; r < numReplicates; r++) {
+            randomState[r] = root.nextLong();
+        }
+
+        int numShards = Math.max(1, Math.min(numThreads, numReplicates / MIN_SHARD_REPLICATES));
+        this.shardStart = new int[numShards + 1];
+        for (int s = 1; s < numShards; s++) {
+            shardStart[s] = (int) ((long) numReplicates * s / numShards) & ~7;
+        }
+        shardStart[numShards] = numReplicates;
+        this.shardWeights = new long[numShards][];
+        for (int s = 0; s < numShards; s++) {
+            shardWeights[s] = new long[shardStart[s + 1] - shardStart[s]];
+        }
+        this.pool = numShards > 1 ? new ForkJoinPool(numShards) : null;
+
+        this.pendingActual = new int[batchSize];
+        this.pendingPredicted = new int[batchSize];
+        this.pendingBins = new int[batchSize * numClasses];
+    }
+
+    public int numReplicates() {
+        return numReplicates;
+    }
+
+    public int numShards() {
+        return shardWeights.length;
+    }
+
+    // Labelled events recorded so far (applied or still pending)
+    public synchronized long numEvents() {
+        return numEvents;
+    }
+
+    /*
+     * Record one labelled prediction. Returns false if the event is unlabelled. The event is
+     * queued and the batch is applied to every replicate once it is full.
+     */
+    public synchronized boolean record(int actual, double[] distribution) throws Exception {
+        if (actual < 0 || actual >= numClasses) {
+            return false;
+        }
+        // Same rule as Evaluation: the first class with the strictly highest positive probability
+        int predicted = -1;
+        double bestProb = 0.0;
+        for (int c = 0; c < numClasses; c++) {
+            if (distribution[c] > bestProb) {
+                predicted = c;
+                bestProb = distribution[c];
+            }
+        }
+        pendingActual[numPending] = actual;
+        pendingPredicted[numPending] = predicted;
+        for (int c = 0; c < numClasses; c++) {
+            pendingBins[numPending * numClasses + c] = bin(distribution[c]);
+        }
+        numEvents++;
+        if (++numPending == pendingActual.length) {
+            flush();
+        }
+        return true;
+    }
+
+    private int bin(double score) {
+        if (!(score > 0.0)) {
+            return 0;
+        }
+        return Math.min(numBins - 1, (int) (score * numBins));
+    }
+
+    // Apply the queued events to every replicate, one shard per core
+    public synchronized void flush() throws Exception {
+        if (numPending == 0) {
+            return;
+        }
+        if (pool == null) {
+            applyPending(0);
+        } else {
+            List<Callable<Void>> shards = new ArrayList<>();
+            for (int s = 0; s < shardWeights.length; s++) {
+                final int shard = s;
+                shards.add(() -> {
+                    applyPending(shard);
+                    return null;
+                });
+            }
+            for (Future<Void> shard : pool.invokeAll(shards)) {
+                shard.get();
+            }
+        }
+        numPending = 0;
+    }
+
+    /*
+     * Add every pending event to the replicates of one shard: draw the shard's Poisson(1) weights
+     * for the event, then add the weights vector to the numClasses + 2 slots the event touches.
+     * Both are straight loops over contiguous replicates.
+     */
+    private void applyPending(int shard) {
+        int from = shardStart[shard];
+        int to = shardStart[shard + 1];
+        long[] weights = shardWeights[shard];
+        for (int e = 0; e < numPending; e++) {
+            for (int r = from; r < to; r++) {
+                long z = randomState[r] += 0x9E3779B97F4A7C15L;
+                z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+                z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+                z ^= z >>> 31;
+                weights[r - from] = poisson((z >>> 11) * 0x1.0p-53);
+            }
+            int actual = pendingActual[e];
+            if (pendingPredicted[e] >= 0) {
+                add(actual * numClasses + pendingPredicted[e], from, to, weights);
+            }
+            add(labelledSlot, from, to, weights);
+            for (int c = 0; c < numClasses; c++) {
+                int histogram = c == actual ? positiveSlot : negativeSlot;
+                add(histogram + c * numBins + pendingBins[e * numClasses + c], from, to, weights);
+            }
+        }
+    }
+
+    private void add(int slot, int from, int to, long[] weights) {
+        int base = slot * numReplicates;
+        for (int r = from; r < to; r++) {
+            counts[base + r] += weights[r - from];
+        }
+    }
+
+    // Inverse CDF; the mean of Poisson(1) is 1, so this is about one comparison per draw
+    private static long poisson(double u) {
+        int k = 0;
+        while (k < POISSON_CDF.length - 1 && u >= POISSON_CDF[k]) {
+            k++;
+        }
+        return k;
+    }
+
+    /*
+     * The confidence intervals of the class-averaged (binned) AUC, Cohen's Kappa and weighted
+     * F-Measure over the replicates as they stand. Replicates where a statistic is undefined
+     * (a class not drawn yet) are left out of that statistic's interval.
+     */
+    public synchronized BootstrapReport report() throws Exception {
+        flush();
+        double[] auc = new double[numReplicates];
+        double[] area = new double[numReplicates];
+        double[] negativesBelow = new double[numReplicates];
+        double[] totalPositives = new double[numReplicates];
+        for (int c = 0; c < numClasses; c++) {
+            Arrays.fill(area, 0.0);
+            Arrays.fill(negativesBelow, 0.0);
+            Arrays.fill(totalPositives, 0.0);
+            // Mann-Whitney over the bins, all replicates side by side
+            for (int b = 0; b < numBins; b++) {
+                int positives = (positiveSlot + c * numBins + b) * numReplicates;
+                int negatives = (negativeSlot + c * numBins + b) * numReplicates;
+                for (int r = 0; r < numReplicates; r++) {
+                    double p = counts[positives + r];
+                    double n = counts[negatives + r];
+                    area[r] += p * (negativesBelow[r] + 0.5 * n);
+                    negativesBelow[r] += n;
+                    totalPositives[r] += p;
+                }
+            }
+            for (int r = 0; r < numReplicates; r++) {
+                auc[r] += area[r] / (negativesBelow[r] * totalPositives[r]) / numClasses;
+            }
+        }
+
+        double[] kappa = new double[numReplicates];
+        double[] weightedFMeasure = new double[numReplicates];
+        double[] confusion = new double[numClasses * numClasses];
+        for (int r = 0; r < numReplicates; r++) {
+            for (int i = 0; i < confusion.length; i++) {
+                confusion[i] = counts[i * numReplicates + r];
+            }
+            double labelled = counts[labelledSlot * numReplicates + r];
+            kappa[r] = ClassificationMetrics.kappa(confusion, numClasses, labelled);
+            weightedFMeasure[r] = ClassificationMetrics.weightedFMeasure(confusion, numClasses);
+        }
+        return new BootstrapReport(interval(auc, "AUC"), interval(kappa, "Kappa"), interval(weightedFMeasure, "F-Measure"));
+    }
+
+    private ConfidenceInterval interval(double[] samples, String statistic) {
+        double[] defined = Arrays.stream(samples).filter(sample -> !Double.isNaN(sample)).toArray();
+        if (defined.length < 2) {
+            throw new IllegalStateException("Not enough labelled events for a " + statistic + " interval yet (" + numEvents + ")");
+        }
+        return ConfidenceInterval.fromSamples(defined, confidenceLevel);
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * Replay a test set as an endless stream (cycling over its rows, -events events in all),
+     * print the intervals after the first pass next to the predict-once bootstrap of the same
+     * rows, and report the event rate.
+     */
+    public static void main(String[] args) {
+        try {
+            String modelPath = Utils.getOption("model", args);
+            if (modelPath.length() == 0) {
+                modelPath = "models/CostSensitive_BN_model_Trained.model";
+            }
+            String inputPath = Utils.getOption("input", args);
+            if (inputPath.length() == 0) {
+                inputPath = "data/Test DataSets/UTAS/TEST-UTAS-FINAL-424.arff";
+            }
+            String bins = Utils.getOption("bins", args);
+            int numBins = bins.length() == 0 ? StreamingMetrics.DEFAULT_NUM_BINS : Integer.parseInt(bins);
+            String events = Utils.getOption("events", args);
+            long numEvents = events.length() == 0 ? 1_000_000 : Long.parseLong(events);
+            String batch = Utils.getOption("batch", args);
+            int batchSize = batch.length() == 0 ? DEFAULT_BATCH_SIZE : Integer.parseInt(batch);
+            BootstrapEngine bootstrap = new BootstrapEngine();
+            bootstrap.setOptions(args);
+
+            Classifier classifier = (Classifier) SerializationHelper.read(modelPath);
+            Instances inputData = DatasetCatalog.load(inputPath);
+            PredictionCache cache = PredictionCache.predict(classifier, inputData);
+            int numClasses = cache.numClasses();
+            int numInstances = cache.numInstances();
+
+            try (OnlineBootstrap online = new OnlineBootstrap(numClasses, numBins, bootstrap.getNumBootstrapSamples(),
+                bootstrap.getConfidenceLevel(), bootstrap.getSeed(), bootstrap.getNumThreads(), batchSize)) {
+                double[] distribution = new double[numClasses];
+                long start = System.nanoTime();
+                for (long e = 0; e < numEvents; e++) {
+                    int i = (int) (e % numInstances);
+                    for (int c = 0; c < numClasses; c++) {
+                        distribution[c] = cache.score(i, c);
+                    }
+                    online.record(cache.actual(i), distribution);
+                    if (e == numInstances - 1) {
+                        long pause = System.nanoTime();
+                        System.out.println("=== Online bootstrap after one pass (" + numInstances + " events, " + numBins + " bins) ===");
+                        online.report().print(System.out);
+                        System.out.println("\n=== Predict-once bootstrap of the same rows ===");
+                        bootstrap.bootstrapCached(cache).print(System.out);
+                        start += System.nanoTime() - pause;
+                    }
+                }
+                online.flush();
+                long elapsed = System.nanoTime() - start;
+
+                long pause = System.nanoTime();
+                BootstrapReport report = online.report();
+                double reportMillis = (System.nanoTime() - pause) / 1e6;
+                System.out.println("\n=== Online bootstrap after " + online.numEvents() + " events ===");
+                report.print(System.out);
+                System.err.printf("%d events x %d replicates on %d shards: %.0f events/s, report in %.1f ms, %d KB of counters%n",
+                    numEvents, online.numReplicates(), online.numShards(), numEvents / (elapsed / 1e9), reportMillis,
+                    online.counts.length * 8L / 1024);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/* Note:
+
+BootstrapEngine resamples a finished, in-memory dataset: a round draws n rows with replacement.
+A stream has no n, so each event instead gets an independent Poisson(1) weight in every
+replicate, i.e. it is counted 0, 1, 2, ... times with probabilities e^-1/k!. Over n events this
+approximates the multinomial resample (Oza and Russell's online bagging uses the same trick),
+and a replicate never has to look at past events again: it only keeps weighted StreamingMetrics
+counters. The AUC is the binned Mann-Whitney AUC of StreamingMetrics, so it inherits its
+resolution; Kappa and the F-Measure are exact for each replicate.
+
+Cost: memory is B * (K*K + 1 + 2*K*bins) longs (about 8 MB for 1000 replicates of 2 classes
+and 256 bins) whatever the stream length. An event draws B weights and adds the weight vector
+to K + 2 counter rows. The counters are stored slot-major (the B replicates of one counter are
+adjacent), so both steps are plain loops over contiguous arrays that the JIT can unroll and
+vectorize. Events are queued and applied a batch at a time; the replicates are split into
+-num-slots contiguous shards (at least 64 replicates each) and each shard applies the batch on
+its own core, so shards never write the same cache line.
+
+Reproducibility: replicate r draws its weights from its own SplitMix64 stream seeded from -S,
+so for the same sequence of events the intervals do not depend on -num-slots or -batch.
+record() is synchronized: events from several threads are queued in arrival order.
+
+Example:
+java OnlineBootstrap -input "data/Test DataSets/EmoDetect/TEST-EmoDetect-FINAL-300.arff" -events 2000000 -B 1000 -num-slots 4
+ *
+ *
+*/
@@ -0,0 +1,273 @@
+/**
+ * Predict-once cache of a classifier's output on a dataset
+ * distributionForInstance is called exactly once per instance; the class scores, actual and
+ * predicted labels are kept in primitive arrays so every bootstrap round can be evaluated by
+ * reweighting the cached rows (index multiplicities) instead of re-classifying a resample.
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+public class PredictionCache {
+
+    private final int numInstances;
+    private final int numClasses;
+    private final String[] classValues;
+    private final double[] distributions;   // row-major: distributions[i * numClasses + c]
+    private final int[] actual;             // actual class index, -1 when the class is missing
+    private final int[] predicted;          // predicted class index, -1 when unclassified
+
+    // Per class: instances sorted by ascending score for that class (rank-based AUC)
+    private final int[][] sortedIndex;
+    private final double[][] sortedScore;
+
+    public PredictionCache(double[] distributions, int[] actual, String[] classValues) {
+        this.numInstances = actual.length;
+        this.numClasses = classValues.length;
+        if (distributions.length != numInstances * numClasses) {
+            throw new IllegalArgumentException("Expected " + (numInstances * numClasses) + " scores, got " + distributions.length);
+        }
+        this.classValues = classValues.clone();
+        this.distributions = distributions;
+        this.actual = actual;
+        this.predicted = new int[numInstances];
+        for (int i = 0; i < numInstances; i++) {
+            // Same rule as Evaluation: the first class with the strictly highest positive probability
+            int predictedClass = -1;
+            double bestProb = 0.0;
+            for (int c = 0; c < numClasses; c++) {
+                if (distributions[i * numClasses + c] > bestProb) {
+                    predictedClass = c;
+                    bestProb = distributions[i * numClasses + c];
+                }
+            }
+            predicted[i] = predictedClass;
+        }
+
+        this.sortedIndex = new int[numClasses][];
+        this.sortedScore = new double[numClasses][];
+        for (int c = 0; c < numClasses; c++) {
+            // Class scores copied to a local so the comparator does not capture this
+            double[] scores = new double[numInstances];
+            Integer[] order = new Integer[numInstances];
+            for (int i = 0; i < numInstances; i++) {
+                scores[i] = distributions[i * numClasses + c];
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(scores[a], scores[b]));
+            sortedIndex[c] = new int[numInstances];
+            sortedScore[c] = new double[numInstances];
+            for (int r = 0; r < numInstances; r++) {
+                sortedIndex[c][r] = order[r];
+                sortedScore[c][r] = scores[order[r]];
+            }
+        }
+    }
+
+    // Score every instance once with the classifier
+    public static PredictionCache predict(Classifier classifier, Instances data) throws Exception {
+        int numInstances = data.numInstances();
+        int numClasses = data.numClasses();
+        double[] distributions = new double[numInstances * numClasses];
+        int[] actual = new int[numInstances];
+        for (int i = 0; i < numInstances; i++) {
+            Instance instance = data.instance(i);
+            double[] distribution = classifier.distributionForInstance(instance);
+            System.arraycopy(distribution, 0, distributions, i * numClasses, numClasses);
+            actual[i] = instance.classIsMissing() ? -1 : (int) instance.classValue();
+        }
+        String[] classValues = new String[numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            classValues[c] = data.classAttribute().value(c);
+        }
+        return new PredictionCache(distributions, actual, classValues);
+    }
+
+    // Score every instance once with a compiled scorer (no per-instance distribution arrays)
+    public static PredictionCache predict(CompiledScorer scorer, Instances data) {
+        int numInstances = data.numInstances();
+        int numClasses = data.numClasses();
+        double[] distributions = new double[numInstances * numClasses];
+        int[] actual = new int[numInstances];
+        double[] features = new double[FrustrationFeatures.NUM_FEATURES];
+        double[] distribution = new double[numClasses];
+        for (int i = 0; i < numInstances; i++) {
+            Instance instance = data.instance(i);
+            scorer.distribution(FrustrationFeatures.toFeatures(instance, features), distribution);
+            System.arraycopy(distribution, 0, distributions, i * numClasses, numClasses);
+            actual[i] = instance.classIsMissing() ? -1 : (int) instance.classValue();
+        }
+        String[] classValues = new String[numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            classValues[c] = data.classAttribute().value(c);
+        }
+        return new PredictionCache(distributions, actual, classValues);
+    }
+
+    public int numInstances() {
+        return numInstances;
+    }
+
+    public int numClasses() {
+        return numClasses;
+    }
+
+    public String classValue(int classIndex) {
+        return classValues[classIndex];
+    }
+
+    public double score(int instanceIndex, int classIndex) {
+        return distributions[instanceIndex * numClasses + classIndex];
+    }
+
+    public int actual(int instanceIndex) {
+        return actual[instanceIndex];
+    }
+
+    public int predicted(int instanceIndex) {
+        return predicted[instanceIndex];
+    }
+
+    // True when both caches hold the actual labels of the same instances, in the same order
+    public boolean hasSameLabels(PredictionCache other) {
+        return numClasses == other.numClasses && Arrays.equals(actual, other.actual);
+    }
+
+    // Draw one bootstrap resample as index multiplicities: counts[i] = times instance i was drawn
+    public void drawCounts(SplittableRandom random, int[] counts) {
+        Arrays.fill(counts, 0);
+        for (int k = 0; k < numInstances; k++) {
+            counts[random.nextInt(numInstances)]++;
+        }
+    }
+
+    /*
+     * Rank-based (Mann-Whitney) AUC for one class; ties count one half, which is the same
+     * area ThresholdCurve.getROCArea integrates. counts == null weighs every instance once.
+     */
+    public double areaUnderROC(int classIndex, int[] counts) {
+        int[] index = sortedIndex[classIndex];
+        double[] score = sortedScore[classIndex];
+        double area = 0.0;
+        double negativesBelow = 0.0;
+        double totalPositives = 0.0;
+        int r = 0;
+        while (r < numInstances) {
+            double tieScore = score[r];
+            double tiedPositives = 0.0;
+            double tiedNegatives = 0.0;
+            for (; r < numInstances && score[r] == tieScore; r++) {
+                int i = index[r];
+                if (actual[i] < 0) {
+                    continue;
+                }
+                double weight = counts == null ? 1.0 : counts[i];
+                if (actual[i] == classIndex) {
+                    tiedPositives += weight;
+                } else {
+                    tiedNegatives += weight;
+                }
+            }
+            area += tiedPositives * (negativesBelow + 0.5 * tiedNegatives);
+            negativesBelow += tiedNegatives;
+            totalPositives += tiedPositives;
+        }
+        return area / (negativesBelow * totalPositives);
+    }
+
+    public double averageAUC(int[] counts) {
+        double sumAUC = 0.0;
+        for (int c = 0; c < numClasses; c++) {
+            sumAUC += areaUnderROC(c, counts);
+        }
+        return sumAUC / numClasses;
+    }
+
+    /*
+     * DeLong placement values for one class, in one pass over the pre-sorted scores (ties count
+     * one half). For a positive instance: the fraction of negatives scored below it; for a
+     * negative: the fraction of positives scored above it; NaN when the class is missing.
+     * The mean over the positives, and the mean over the negatives, are both the AUC.
+     */
+    public double[] placements(int classIndex) {
+        double totalPositives = 0.0;
+        double totalNegatives = 0.0;
+        for (int i = 0; i < numInstances; i++) {
+            if (actual[i] == classIndex) {
+                totalPositives++;
+            } else if (actual[i] >= 0) {
+                totalNegatives++;
+            }
+        }
+        int[] index = sortedIndex[classIndex];
+        double[] score = sortedScore[classIndex];
+        double[] placement = new double[numInstances];
+        Arrays.fill(placement, Double.NaN);
+        double positivesBelow = 0.0;
+        double negativesBelow = 0.0;
+        int r = 0;
+        while (r < numInstances) {
+            int tieStart = r;
+            double tiedPositives = 0.0;
+            double tiedNegatives = 0.0;
+            for (; r < numInstances && score[r] == score[tieStart]; r++) {
+                int i = index[r];
+                if (actual[i] == classIndex) {
+                    tiedPositives++;
+                } else if (actual[i] >= 0) {
+                    tiedNegatives++;
+                }
+            }
+            double positivesAbove = totalPositives - positivesBelow - tiedPositives;
+            for (int t = tieStart; t < r; t++) {
+                int i = index[t];
+                if (actual[i] == classIndex) {
+                    placement[i] = (negativesBelow + 0.5 * tiedNegatives) / totalNegatives;
+                } else if (actual[i] >= 0) {
+                    placement[i] = (positivesAbove + 0.5 * tiedPositives) / totalPositives;
+                }
+            }
+            positivesBelow += tiedPositives;
+            negativesBelow += tiedNegatives;
+        }
+        return placement;
+    }
+
+    /*
+     * Fill the flattened confusion matrix (confusion[actual * numClasses + predicted]) and return
+     * the number of labelled instances, unclassified ones included (the Kappa denominator).
+     */
+    public double confusionMatrix(int[] counts, double[] confusion) {
+        Arrays.fill(confusion, 0.0);
+        double total = 0.0;
+        for (int i = 0; i < numInstances; i++) {
+            if (actual[i] < 0) {
+                continue;
+            }
+            double weight = counts == null ? 1.0 : counts[i];
+            total += weight;
+            if (predicted[i] >= 0) {
+                confusion[actual[i] * numClasses + predicted[i]] += weight;
+            }
+        }
+        return total;
+    }
+}
+
+/* Note:
+
+The model output for an instance never changes between bootstrap rounds, so a resample is fully
+described by how many times each cached row was drawn. Every round then costs one pass over the
+pre-sorted scores per class (AUC) and one pass over the labels (confusion matrix), with no
+Instances or Evaluation objects built.
+Instance weights are not used (all the bundled ARFF files have unit weights).
+ *
+ *
+*/
@@ -0,0 +1,281 @@
+/**
+ * In-process class rebalancing of a dataset to any minority ratio
+ * Replaces the pre-baked _Resampled_12%/20%/30% (and ReSampled test) ARFF copies: the original
+ * dataset is read once into primitive arrays and every requested ratio is generated from it,
+ * either by drawing minority rows again (oversampling) or by SMOTE-style interpolation between a
+ * minority row and one of its k nearest minority neighbours. The neighbour lists are computed
+ * once and shared by every ratio and seed.
+ * Options: -i <arff file> -ratios <comma separated minority ratios> -method <smote|oversample> -K <neighbours> -S <seed> -model <model name to evaluate on each ratio>
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.Classifier;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+public class Resampler {
+
+    public static final String METHOD_SMOTE = "smote";
+    public static final String METHOD_OVERSAMPLE = "oversample";
+    public static final int DEFAULT_NEIGHBOURS = 5;
+
+    private final Instances header;
+    private final int classIndex;
+    private final int minorityClass;
+    private final int numNeighbours;
+    private final double[][] rows;      // every labelled row's attribute values, class included
+    private final int[] minority;       // indices into rows of the minority class
+    private final int numMajority;
+    private volatile int[][] neighbours; // per minority row: positions in minority of its nearest minority rows
+
+    // The minority class is the least frequent one of the labelled rows
+    public Resampler(Instances data) {
+        this(data, leastFrequentClass(data), DEFAULT_NEIGHBOURS);
+    }
+
+    public Resampler(Instances data, int minorityClass, int numNeighbours) {
+        if (data.classIndex() < 0) {
+            throw new IllegalArgumentException("The dataset has no class attribute");
+        }
+        for (int a = 0; a < data.numAttributes(); a++) {
+            if (a != data.classIndex() && !data.attribute(a).isNumeric()) {
+                throw new IllegalArgumentException("Only numeric attributes can be interpolated: " + data.attribute(a).name());
+            }
+        }
+        this.header = new Instances(data, 0);
+        this.classIndex = data.classIndex();
+        this.minorityClass = minorityClass;
+        this.numNeighbours = numNeighbours;
+
+        int numLabelled = 0;
+        int numMinority = 0;
+        for (int i = 0; i < data.numInstances(); i++) {
+            if (!data.instance(i).classIsMissing()) {
+                numLabelled++;
+                if ((int) data.instance(i).classValue() == minorityClass) {
+                    numMinority++;
+                }
+            }
+        }
+        if (numMinority == 0) {
+            throw new IllegalArgumentException("No rows of class " + data.classAttribute().value(minorityClass));
+        }
+        this.rows = new double[numLabelled][];
+        this.minority = new int[numMinority];
+        for (int i = 0, r = 0, m = 0; i < data.numInstances(); i++) {
+            if (!data.instance(i).classIsMissing()) {
+                rows[r] = data.instance(i).toDoubleArray();
+                if ((int) rows[r][classIndex] == minorityClass) {
+                    minority[m++] = r;
+                }
+                r++;
+            }
+        }
+        this.numMajority = numLabelled - numMinority;
+    }
+
+    public static int leastFrequentClass(Instances data) {
+        int[] counts = data.attributeStats(data.classIndex()).nominalCounts;
+        int least = 0;
+        for (int c = 1; c < counts.length; c++) {
+            if (counts[c] < counts[least]) {
+                least = c;
+            }
+        }
+        return least;
+    }
+
+    public int minorityClass() {
+        return minorityClass;
+    }
+
+    public double minorityRatio() {
+        return minority.length / (double) rows.length;
+    }
+
+    /*
+     * A copy of the dataset whose minority class makes up the given share of the rows. Every
+     * majority row is kept once. Above the original ratio all minority rows are kept and the
+     * missing ones are added (drawn again, or synthesized with SMOTE); below it a random subset of
+     * the minority rows is kept. The rows are shuffled with the same seed.
+     */
+    public Instances resample(double ratio, String method, long seed) {
+        if (!(ratio > 0 && ratio < 1)) {
+            throw new IllegalArgumentException("The minority ratio must be between 0 and 1, got " + ratio);
+        }
+        boolean smote = METHOD_SMOTE.equals(method);
+        if (!smote && !METHOD_OVERSAMPLE.equals(method)) {
+            throw new IllegalArgumentException("Unknown resampling method: " + method + " (use smote or oversample)");
+        }
+        SplittableRandom random = new SplittableRandom(seed);
+        int targetMinority = (int) Math.round(ratio * numMajority / (1 - ratio));
+
+        double[][] out = new double[numMajority + targetMinority][];
+        int n = 0;
+        for (double[] row : rows) {
+            if ((int) row[classIndex] != minorityClass) {
+                out[n++] = row;
+            }
+        }
+        if (targetMinority <= minority.length) {
+            // Partial Fisher-Yates: the first targetMinority of a shuffled copy
+            int[] kept = minority.clone();
+            for (int i = 0; i < targetMinority; i++) {
+                int j = i + random.nextInt(kept.length - i);
+                int swap = kept[i];
+                kept[i] = kept[j];
+                kept[j] = swap;
+                out[n++] = rows[kept[i]];
+            }
+        } else {
+            for (int m : minority) {
+                out[n++] = rows[m];
+            }
+            int[][] nearest = smote ? neighbours() : null;
+            for (int s = minority.length; s < targetMinority; s++) {
+                int base = random.nextInt(minority.length);
+                out[n++] = smote ? synthesize(rows[minority[base]], nearest[base], random) : rows[minority[base]];
+            }
+        }
+
+        for (int i = out.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            double[] swap = out[i];
+            out[i] = out[j];
+            out[j] = swap;
+        }
+        Instances resampled = new Instances(header, out.length);
+        for (double[] row : out) {
+            // DenseInstance keeps the array, so shared rows are copied
+            resampled.add(new DenseInstance(1.0, row.clone()));
+        }
+        return resampled;
+    }
+
+    // As Weka's SMOTE filter: each attribute moves a separate random fraction towards a neighbour
+    private double[] synthesize(double[] row, int[] nearest, SplittableRandom random) {
+        if (nearest.length == 0) {
+            return row;
+        }
+        double[] neighbour = rows[minority[nearest[random.nextInt(nearest.length)]]];
+        double[] synthetic = row.clone();
+        for (int a = 0; a < synthetic.length; a++) {
+            if (a != classIndex) {
+                synthetic[a] = row[a] + random.nextDouble() * (neighbour[a] - row[a]);
+            }
+        }
+        return synthetic;
+    }
+
+    /*
+     * The k nearest minority rows of every minority row (Euclidean distance over the raw values,
+     * as Weka's SMOTE), computed on first use and kept for every later ratio and seed.
+     */
+    int[][] neighbours() {
+        int[][] nearest = neighbours;
+        if (nearest != null) {
+            return nearest;
+        }
+        synchronized (this) {
+            if (neighbours != null) {
+                return neighbours;
+            }
+            int k = Math.min(numNeighbours, minority.length - 1);
+            nearest = new int[minority.length][];
+            double[] distance = new double[minority.length];
+            Integer[] order = new Integer[minority.length];
+            for (int i = 0; i < minority.length; i++) {
+                double[] row = rows[minority[i]];
+                for (int j = 0; j < minority.length; j++) {
+                    double sum = 0.0;
+                    double[] other = rows[minority[j]];
+                    for (int a = 0; a < row.length; a++) {
+                        if (a != classIndex) {
+                            double difference = row[a] - other[a];
+                            sum += difference * difference;
+                        }
+                    }
+                    distance[j] = j == i ? Double.POSITIVE_INFINITY : sum;
+                    order[j] = j;
+                }
+                Arrays.sort(order, (a, b) -> Double.compare(distance[a], distance[b]));
+                nearest[i] = new int[k];
+                for (int j = 0; j < k; j++) {
+                    nearest[i][j] = order[j];
+                }
+            }
+            neighbours = nearest;
+            return nearest;
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            String inputPath = Utils.getOption("i", args);
+            if (inputPath.length() == 0) {
+                inputPath = "data/Training/Affect_Clip_Labels_important-7-features.arff";
+            }
+            String ratioList = Utils.getOption("ratios", args);
+            String[] ratios = (ratioList.length() == 0 ? "0.12,0.2,0.3" : ratioList).split(",");
+            String method = Utils.getOption("method", args);
+            if (method.length() == 0) {
+                method = METHOD_SMOTE;
+            }
+            String k = Utils.getOption("K", args);
+            String seed = Utils.getOption("S", args);
+            long s = seed.length() == 0 ? 1 : Long.parseLong(seed);
+            String modelName = Utils.getOption("model", args);
+
+            Instances data = DatasetCatalog.load(inputPath);
+            Resampler resampler = new Resampler(data, leastFrequentClass(data), k.length() == 0 ? DEFAULT_NEIGHBOURS : Integer.parseInt(k));
+            System.out.printf("%s: %d rows, %s ratio %.4f%n", DatasetCatalog.datasetName(inputPath), data.numInstances(),
+                data.classAttribute().value(resampler.minorityClass()), resampler.minorityRatio());
+            long start = System.nanoTime();
+            resampler.neighbours();
+            System.out.printf("Neighbour lists: %.1f ms (once for all ratios)%n", (System.nanoTime() - start) / 1e6);
+
+            Classifier classifier = modelName.length() == 0 ? null : (Classifier) SerializationHelper.read(ModelInspector.modelPath(modelName));
+            System.out.printf("%8s %8s %10s %10s%s%n", "ratio", "rows", "minority", "ms", classifier == null ? "" : String.format(" %10s", modelName + " AUC"));
+            for (String ratio : ratios) {
+                start = System.nanoTime();
+                Instances resampled = resampler.resample(Double.parseDouble(ratio), method, s);
+                double millis = (System.nanoTime() - start) / 1e6;
+                int numMinority = resampled.attributeStats(resampled.classIndex()).nominalCounts[resampler.minorityClass()];
+                String auc = "";
+                if (classifier != null) {
+                    auc = String.format(" %10.4f", PredictionCache.predict(classifier, resampled).averageAUC(null));
+                }
+                System.out.printf("%8s %8d %10d %10.2f%s%n", ratio, resampled.numInstances(), numMinority, millis, auc);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/* Note:
+
+The bundled _Resampled_ training files were made with weka.filters.supervised.instance.SMOTE
+(-K 5 -S 1, see their @relation) followed by Randomize; METHOD_SMOTE follows the same recipe
+(raw Euclidean distance, a separate random gap per attribute) without writing a file, so the
+rows will not be identical but come from the same distribution. The ratio is the minority share
+of the result: 0.2 on the 94 yes / 2539 no ASSISTments rows (2633 in all) gives 635 yes rows
+(2539 * 0.2 / 0.8 = 634.75, rounded), 3174 rows in all.
+
+The neighbour search is all pairs over the minority rows only (94 on ASSISTments), so it costs
+far less than parsing one ARFF copy, and each further ratio is a pass over the rows plus the
+Instances it returns. Rows with a missing class are left out.
+
+Example:
+java Resampler -ratios 0.12,0.2,0.3,0.5 -method smote -S 1 -model J48
+java Resampler -i "data/Test DataSets/UTAS/TEST-UTAS-FINAL-424.arff" -ratios 0.08,0.16 -method oversample
+ *
+ *
+*/
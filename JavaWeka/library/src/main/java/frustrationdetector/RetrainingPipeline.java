@@ -0,0 +1,393 @@
+/**
+ * Headless retraining of the seven model types on the four ASSISTments training sets
+ * Every (algorithm, training set) combination is cross-validated and then trained on the full
+ * training set. The algorithms and their options are taken from the bundled models, the
+ * stratified fold splits are made once per training set and shared by all algorithms, and
+ * every fold and every final training runs as its own task on one worker pool. Each model is
+ * written with a JSON metadata file (training file hash, options, CV AUC). With -ratios the
+ * rebalanced training sets are generated in process from the original one by a Resampler
+ * instead of being read from the pre-baked _Resampled_ files.
+ * Options: -model <comma separated model names> -folds <k, default 10> -S <seed> -num-slots <workers> -output <directory, default models/retrained>
+ * -ratios <comma separated minority ratios> -method <smote|oversample>
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.OptionHandler;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class RetrainingPipeline {
+
+    public static final int DEFAULT_FOLDS = 10;
+    public static final String DEFAULT_OUTPUT = "models/retrained";
+
+    /** One training set with its fold splits, made once and shared read-only by every algorithm. */
+    static final class TrainingSet {
+        final String path;
+        final String name;
+        final String sha256;
+        final String resampling;   // e.g. "smote ratio 0.2 seed 1", empty for the file as it is
+        final Instances data;
+        final Instances[] foldTrain;
+        final Instances[] foldTest;
+        final int[] foldOffset;   // first row of each test fold in the concatenated CV predictions
+
+        TrainingSet(String path, int numFolds, long seed) throws Exception {
+            this(path, DatasetCatalog.datasetName(path), DatasetCatalog.sha256(path), "", DatasetCatalog.load(path), numFolds, seed);
+        }
+
+        TrainingSet(String path, String name, String sha256, String resampling, Instances data, int numFolds, long seed) {
+            this.path = path;
+            this.name = name;
+            this.sha256 = sha256;
+            this.resampling = resampling;
+            this.data = data;
+            // Same splits as Evaluation.crossValidateModel: randomize, stratify, trainCV/testCV
+            Instances shuffled = new Instances(data);
+            Random random = new Random(seed);
+            shuffled.randomize(random);
+            shuffled.stratify(numFolds);
+            this.foldTrain = new Instances[numFolds];
+            this.foldTest = new Instances[numFolds];
+            this.foldOffset = new int[numFolds + 1];
+            for (int fold = 0; fold < numFolds; fold++) {
+                foldTrain[fold] = shuffled.trainCV(numFolds, fold, random);
+                foldTest[fold] = shuffled.testCV(numFolds, fold);
+                foldOffset[fold + 1] = foldOffset[fold] + foldTest[fold].numInstances();
+            }
+        }
+    }
+
+    /** The outcome of one (algorithm, training set) combination. */
+    public static final class Result {
+        private final String algorithm;
+        private final String trainingSet;
+        private final double cvAUC;
+        private final double cvKappa;
+        private final long trainMillis;
+        private final Path modelPath;
+
+        Result(String algorithm, String trainingSet, double cvAUC, double cvKappa, long trainMillis, Path modelPath) {
+            this.algorithm = algorithm;
+            this.trainingSet = trainingSet;
+            this.cvAUC = cvAUC;
+            this.cvKappa = cvKappa;
+            this.trainMillis = trainMillis;
+            this.modelPath = modelPath;
+        }
+
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        public String getTrainingSet() {
+            return trainingSet;
+        }
+
+        public double getCvAUC() {
+            return cvAUC;
+        }
+
+        public double getCvKappa() {
+            return cvKappa;
+        }
+
+        public long getTrainMillis() {
+            return trainMillis;
+        }
+
+        public Path getModelPath() {
+            return modelPath;
+        }
+    }
+
+    private final int numFolds;
+    private final long seed;
+    private final int numWorkers;
+    private final Path outputDirectory;
+
+    public RetrainingPipeline(int numFolds, long seed, int numWorkers, Path outputDirectory) {
+        if (numFolds < 2) {
+            throw new IllegalArgumentException("Cross-validation needs at least 2 folds, got " + numFolds);
+        }
+        this.numFolds = numFolds;
+        this.seed = seed;
+        this.numWorkers = Math.max(1, numWorkers);
+        this.outputDirectory = outputDirectory;
+    }
+
+    public static void main(String[] args) {
+        try {
+            String modelList = Utils.getOption("model", args);
+            List<String> modelPaths = new ArrayList<>();
+            if (modelList.length() == 0) {
+                modelPaths.addAll(List.of(ModelInspector.MODEL_PATHS));
+            } else {
+                for (String name : modelList.split(",")) {
+                    modelPaths.add(ModelInspector.modelPath(name));
+                }
+            }
+            String folds = Utils.getOption("folds", args);
+            String seed = Utils.getOption("S", args);
+            String slots = Utils.getOption("num-slots", args);
+            String output = Utils.getOption("output", args);
+
+            RetrainingPipeline pipeline = new RetrainingPipeline(
+                folds.length() == 0 ? DEFAULT_FOLDS : Integer.parseInt(folds),
+                seed.length() == 0 ? 1 : Long.parseLong(seed),
+                slots.length() == 0 ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(slots),
+                Paths.get(output.length() == 0 ? DEFAULT_OUTPUT : output));
+
+            long start = System.nanoTime();
+            String ratios = Utils.getOption("ratios", args);
+            String method = Utils.getOption("method", args);
+            List<Result> results;
+            if (ratios.length() == 0) {
+                results = pipeline.run(modelPaths, DatasetCatalog.arffFiles("data/Training"));
+            } else {
+                double[] minorityRatios = Arrays.stream(ratios.split(",")).mapToDouble(Double::parseDouble).toArray();
+                results = pipeline.runResampled(modelPaths, "data/Training/Affect_Clip_Labels_important-7-features.arff",
+                    minorityRatios, method.length() == 0 ? Resampler.METHOD_SMOTE : method);
+            }
+            long wallMillis = (System.nanoTime() - start) / 1000000;
+
+            System.out.printf("%-18s %-60s %8s %8s %10s%n", "Model", "Training set", "CV AUC", "Kappa", "train ms");
+            long slowest = 0;
+            for (Result result : results) {
+                System.out.printf("%-18s %-60s %8.4f %8.4f %10d%n", result.getAlgorithm(), result.getTrainingSet(),
+                    result.getCvAUC(), result.getCvKappa(), result.getTrainMillis());
+                slowest = Math.max(slowest, result.getTrainMillis());
+            }
+            System.out.println("\n" + results.size() + " models written to " + pipeline.outputDirectory + " in " + wallMillis
+                + " ms wall clock; slowest single full training " + slowest + " ms");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Templates come from the bundled models: a fresh classifier of the same class with the same
+     * options, so retraining changes the data and nothing else. All (training set, algorithm, fold)
+     * tasks and the full trainings go to the pool at once; a combination is written as soon as its
+     * last task finishes. The rows come back in model order, then training set order.
+     */
+    public List<Result> run(List<String> modelPaths, List<String> trainingPaths) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(numWorkers);
+        try {
+            List<CompletableFuture<TrainingSet>> trainingSets = new ArrayList<>();
+            for (String trainingPath : trainingPaths) {
+                trainingSets.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return new TrainingSet(trainingPath, numFolds, seed);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, pool));
+            }
+            return run(modelPaths, trainingSets, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * The original training set plus one rebalanced copy per minority ratio, all generated from
+     * a single parse of the original file by one Resampler (the neighbour search is shared).
+     */
+    public List<Result> runResampled(List<String> modelPaths, String originalPath, double[] ratios, String method) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(numWorkers);
+        try {
+            String name = DatasetCatalog.datasetName(originalPath);
+            String sha256 = DatasetCatalog.sha256(originalPath);
+            Instances original = DatasetCatalog.load(originalPath);
+            Resampler resampler = new Resampler(original);
+            List<CompletableFuture<TrainingSet>> trainingSets = new ArrayList<>();
+            trainingSets.add(CompletableFuture.completedFuture(new TrainingSet(originalPath, name, sha256, "", original, numFolds, seed)));
+            for (double ratio : ratios) {
+                trainingSets.add(CompletableFuture.supplyAsync(() -> new TrainingSet(originalPath,
+                    name + "_" + method + "_" + Math.round(100 * ratio) + "%", sha256, method + " ratio " + ratio + " seed " + seed,
+                    resampler.resample(ratio, method, seed), numFolds, seed), pool));
+            }
+            return run(modelPaths, trainingSets, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private List<Result> run(List<String> modelPaths, List<CompletableFuture<TrainingSet>> trainingSets, ExecutorService pool) throws Exception {
+        Files.createDirectories(outputDirectory);
+        List<CompletableFuture<Result>> combinations = new ArrayList<>();
+        for (String modelPath : modelPaths) {
+            Classifier template = template((Classifier) SerializationHelper.read(modelPath));
+            String algorithm = ModelInspector.modelName(modelPath);
+            for (CompletableFuture<TrainingSet> trainingSet : trainingSets) {
+                combinations.add(trainingSet.thenComposeAsync(set -> combination(algorithm, template, set, pool), pool));
+            }
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (CompletableFuture<Result> combination : combinations) {
+            try {
+                results.add(combination.join());
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        return results;
+    }
+
+    // An untrained classifier of the same class and options as a trained one
+    static Classifier template(Classifier trained) throws Exception {
+        String[] options = trained instanceof OptionHandler ? ((OptionHandler) trained).getOptions() : new String[0];
+        return AbstractClassifier.forName(trained.getClass().getName(), options);
+    }
+
+    private CompletableFuture<Result> combination(String algorithm, Classifier template, TrainingSet set, ExecutorService pool) {
+        int numClasses = set.data.numClasses();
+        double[] distributions = new double[set.data.numInstances() * numClasses];
+        int[] actual = new int[set.data.numInstances()];
+
+        CompletableFuture<?>[] folds = new CompletableFuture<?>[numFolds];
+        for (int fold = 0; fold < numFolds; fold++) {
+            final int f = fold;
+            folds[fold] = CompletableFuture.runAsync(() -> {
+                try {
+                    // Each fold writes its own disjoint slice of the shared prediction arrays
+                    Classifier classifier = AbstractClassifier.makeCopy(template);
+                    classifier.buildClassifier(new Instances(set.foldTrain[f]));
+                    Instances test = set.foldTest[f];
+                    for (int i = 0; i < test.numInstances(); i++) {
+                        int row = set.foldOffset[f] + i;
+                        double[] distribution = classifier.distributionForInstance(test.instance(i));
+                        System.arraycopy(distribution, 0, distributions, row * numClasses, numClasses);
+                        actual[row] = test.instance(i).classIsMissing() ? -1 : (int) test.instance(i).classValue();
+                    }
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, pool);
+        }
+
+        CompletableFuture<Long> full = CompletableFuture.supplyAsync(() -> {
+            try {
+                Classifier classifier = AbstractClassifier.makeCopy(template);
+                long start = System.nanoTime();
+                classifier.buildClassifier(new Instances(set.data));
+                long millis = (System.nanoTime() - start) / 1000000;
+                writeModel(modelPath(algorithm, set), classifier);
+                return millis;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, pool);
+
+        return CompletableFuture.allOf(folds).thenCombineAsync(full, (ignored, millis) -> {
+            String[] classValues = new String[numClasses];
+            for (int c = 0; c < numClasses; c++) {
+                classValues[c] = set.data.classAttribute().value(c);
+            }
+            PredictionCache cv = new PredictionCache(distributions, actual, classValues);
+            double[] confusion = new double[numClasses * numClasses];
+            double total = cv.confusionMatrix(null, confusion);
+            Result result = new Result(algorithm, set.name, cv.averageAUC(null),
+                ClassificationMetrics.kappa(confusion, numClasses, total), millis, modelPath(algorithm, set));
+            try {
+                writeMetadata(result, template, set);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            return result;
+        }, pool);
+    }
+
+    // e.g. models/retrained/J48_Affect_Clip_Labels_important-7-features_Resampled_12%.model
+    private Path modelPath(String algorithm, TrainingSet set) {
+        return outputDirectory.resolve(algorithm + "_" + set.name + ".model");
+    }
+
+    // Serialize next to the target and move into place, so a watcher never reads half a model
+    static void writeModel(Path path, Classifier classifier) throws Exception {
+        Path temporary = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            SerializationHelper.write(temporary.toString(), classifier);
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private void writeMetadata(Result result, Classifier template, TrainingSet set) throws IOException {
+        String options = template instanceof OptionHandler ? Utils.joinOptions(((OptionHandler) template).getOptions()) : "";
+        String json = "{\n"
+            + "  \"model\": \"" + result.getAlgorithm() + "\",\n"
+            + "  \"classifier\": \"" + template.getClass().getName() + "\",\n"
+            + "  \"options\": \"" + jsonEscape(options) + "\",\n"
+            + "  \"training_file\": \"" + jsonEscape(set.path) + "\",\n"
+            + "  \"training_sha256\": \"" + set.sha256 + "\",\n"
+            + "  \"resampling\": \"" + set.resampling + "\",\n"
+            + "  \"instances\": " + set.data.numInstances() + ",\n"
+            + "  \"folds\": " + numFolds + ",\n"
+            + "  \"seed\": " + seed + ",\n"
+            + "  \"cv_auc\": " + result.getCvAUC() + ",\n"
+            + "  \"cv_kappa\": " + result.getCvKappa() + ",\n"
+            + "  \"train_millis\": " + result.getTrainMillis() + ",\n"
+            + "  \"trained_at\": \"" + Instant.now() + "\"\n"
+            + "}\n";
+        String fileName = result.getModelPath().getFileName().toString();
+        Path path = result.getModelPath().resolveSibling(fileName.substring(0, fileName.length() - ".model".length()) + ".json");
+        Files.write(path, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String jsonEscape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
+
+/* Note:
+
+The bundled models are the source of truth for what to train: each is reduced to its class name
+and getOptions(), so the CostSensitive models keep their [0.0 1.0; 3.0 0.0] matrix and base
+classifier, the RandomForest its number of trees, and so on. The retrained models go to
+models/retrained (not under version control) and never replace the bundled ones.
+
+Cross-validation follows Evaluation.crossValidateModel (randomize with the seed, stratify,
+trainCV/testCV), but the splits are made once per training set and reused by all seven
+algorithms, so the CV AUCs of different algorithms are paired on the same folds. The AUC is the
+class-averaged AUC of the pooled out-of-fold predictions, as the other programs report it.
+
+Scheduling: 7 algorithms x 4 training sets x (k folds + 1 full training) tasks all go to the pool
+at once. With enough cores the wall clock is that of the slowest single task (a fold or the full
+training of the slowest model) rather than the sum over the 28 combinations.
+
+With -ratios the four pre-baked training files are replaced by the original ASSISTments file and
+its in-process rebalanced copies (Resampler); training_sha256 is then the original file's hash
+and "resampling" records the method, ratio and seed that rebuild the exact training rows.
+
+Example:
+java RetrainingPipeline -folds 10 -S 1 -num-slots 8
+java RetrainingPipeline -ratios 0.12,0.2,0.3 -method smote
+java RetrainingPipeline -model J48,RandomForest -output /tmp/retrained
+ *
+ *
+*/
@@ -0,0 +1,411 @@
+/**
+ * Resident frustration-scoring service
+ * Serves the models of a ModelRegistry (hot reloaded from the models directory) and answers HTTP
+ * scoring requests with the yes/no distribution. Every request is handled on its own virtual thread.
+ * Options: -host <address, default 127.0.0.1> -port <port, default 8080> -pool <copies per model> -batch <max micro-batch size, 0 = off>
+ * -directory <models directory> -warmup <arff file> -budget <MB>
+ * -ladder <comma separated models for model=auto> -max-queue <queued requests> -max-p99 <us>
+ * -load-check <requests per model> -clients <concurrent clients> (score against a loopback instance, print the latency percentiles and exit)
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ScoringServer {
+
+    public static final int DEFAULT_PORT = 8080;
+
+    private final ModelRegistry registry;
+    private final Map<String, MicroBatcher> batchers = new LinkedHashMap<>();
+    private DegradationLadder ladder;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    // Every request is scored by the version the registry has published at that moment
+    public ScoringServer(ModelRegistry registry) throws Exception {
+        this(registry, 0);
+    }
+
+    /*
+     * With maxBatchSize > 0 the models that compile are scored through an adaptive MicroBatcher,
+     * which follows the registry's reloads through its live scorer. The registry stays the
+     * caller's to close.
+     */
+    public ScoringServer(ModelRegistry registry, int maxBatchSize) throws Exception {
+        this.registry = registry;
+        if (maxBatchSize > 0) {
+            for (String name : registry.names()) {
+                if (registry.get(name).isCompiled()) {
+                    batchers.put(name, new MicroBatcher(name, registry.liveScorer(name), maxBatchSize,
+                        MicroBatcher.DEFAULT_MAX_WAIT_MICROS, MicroBatcher.DEFAULT_TARGET_LATENCY_MICROS));
+                }
+            }
+        }
+    }
+
+    // Requests for model=auto are scored by whichever rung of the ladder is current
+    public void setLadder(DegradationLadder ladder) {
+        this.ladder = ladder;
+    }
+
+    public static void main(String[] args) {
+        try {
+            String host = Utils.getOption("host", args);
+            String port = Utils.getOption("port", args);
+            String pool = Utils.getOption("pool", args);
+            int poolSize = pool.length() > 0 ? Integer.parseInt(pool) : Runtime.getRuntime().availableProcessors();
+            String batch = Utils.getOption("batch", args);
+            int maxBatchSize = batch.length() > 0 ? Integer.parseInt(batch) : 0;
+            String directory = Utils.getOption("directory", args);
+            String warmup = Utils.getOption("warmup", args);
+            String budget = Utils.getOption("budget", args);
+
+            long start = System.nanoTime();
+            ModelRegistry registry = new ModelRegistry(Paths.get(directory.length() > 0 ? directory : "models"),
+                warmup.length() > 0 ? warmup : "data/Training/Affect_Clip_Labels_important-7-features.arff",
+                budget.length() > 0 ? Long.parseLong(budget) << 20 : ModelRegistry.DEFAULT_MEMORY_BUDGET, poolSize);
+            ScoringServer scoringServer = new ScoringServer(registry, maxBatchSize);
+            String ladder = Utils.getOption("ladder", args);
+            if (ladder.length() > 0) {
+                String queue = Utils.getOption("max-queue", args);
+                String p99 = Utils.getOption("max-p99", args);
+                scoringServer.setLadder(DegradationLadder.load(ladder.split(","),
+                    queue.length() > 0 ? Integer.parseInt(queue) : DegradationLadder.DEFAULT_MAX_QUEUE,
+                    p99.length() > 0 ? Long.parseLong(p99) : DegradationLadder.DEFAULT_MAX_P99_MICROS));
+            }
+            String loadCheck = Utils.getOption("load-check", args);
+            if (loadCheck.length() > 0) {
+                String clients = Utils.getOption("clients", args);
+                scoringServer.start(new InetSocketAddress("127.0.0.1", 0));
+                try {
+                    scoringServer.loadCheck(Integer.parseInt(loadCheck), clients.length() > 0 ? Integer.parseInt(clients) : 16);
+                } finally {
+                    scoringServer.stop();
+                    registry.close();
+                }
+                return;
+            }
+            InetSocketAddress address = new InetSocketAddress(host.length() > 0 ? host : "127.0.0.1",
+                port.length() > 0 ? Integer.parseInt(port) : DEFAULT_PORT);
+            scoringServer.start(address);
+            System.err.printf("Loaded %d models in %.1f ms, listening on http://%s:%d/score\n",
+                registry.names().size(), (System.nanoTime() - start) / 1e6,
+                address.getHostString(), scoringServer.getPort());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void start(InetSocketAddress address) throws IOException {
+        // Without TCP_NODELAY a small answer waits for the client's delayed ACK (about 40 ms)
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(address, 1024);
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(executor);
+        server.createContext("/score", this::handleScore);
+        server.createContext("/models", this::handleModels);
+        server.createContext("/metrics", this::handleMetrics);
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+        for (MicroBatcher batcher : batchers.values()) {
+            batcher.close();
+        }
+        if (ladder != null) {
+            ladder.close();
+        }
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /*
+     * GET /score?model=CostSensitive_BN&averagecorrect=0.5&mincorrect=1&...&mintotalfrattempted=1
+     * or the same form-encoded parameters in a POST body; features=v1,...,v7 gives all seven at once.
+     * Answers {"model":"CostSensitive_BN","no":0.12,"yes":0.88}; with model=auto the answer names
+     * the ladder rung that actually scored the request.
+     */
+    private void handleScore(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> parameters = parseParameters(exchange.getRequestURI().getRawQuery());
+            if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                parameters.putAll(parseParameters(readBody(exchange.getRequestBody())));
+            }
+            String modelName = parameters.getOrDefault("model", "CostSensitive_BN");
+            boolean auto = "auto".equals(modelName) && ladder != null;
+            if (!auto && !registry.contains(modelName)) {
+                respond(exchange, 404, "{\"error\":" + jsonString("unknown model " + modelName) + "}");
+                return;
+            }
+            double[] features = parseFeatures(parameters);
+            double[] distribution;
+            if (auto) {
+                DegradationLadder.Result result = ladder.submit(features).get();
+                modelName = result.getModel();
+                distribution = result.getDistribution();
+            } else {
+                MicroBatcher batcher = batchers.get(modelName);
+                distribution = batcher != null
+                    ? batcher.submit(features).get()
+                    : registry.get(modelName).distribution(features);
+            }
+            respond(exchange, 200, "{\"model\":" + jsonString(modelName) + "," + jsonString(FrustrationFeatures.CLASS_VALUES[0]) + ":"
+                + distribution[FrustrationFeatures.NO] + "," + jsonString(FrustrationFeatures.CLASS_VALUES[1]) + ":"
+                + distribution[FrustrationFeatures.YES] + "}");
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException included: its message quotes the bad input
+            respond(exchange, 400, "{\"error\":" + jsonString(String.valueOf(e.getMessage())) + "}");
+        } catch (Exception e) {
+            respond(exchange, 500, "{\"error\":" + jsonString(e.toString()) + "}");
+        }
+    }
+
+    private void handleModels(HttpExchange exchange) throws IOException {
+        StringBuilder json = new StringBuilder("[");
+        for (String name : registry.names()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(jsonString(name));
+        }
+        respond(exchange, 200, json.append(']').toString());
+    }
+
+    // Queue depth and batch size distributions of every batched model, and the ladder's state
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        StringBuilder json = new StringBuilder("{");
+        if (ladder != null) {
+            String[] rungs = ladder.names();
+            json.append("\"ladder\":{\"model\":").append(jsonString(ladder.currentModel()))
+                .append(",\"queue\":").append(ladder.queueDepth())
+                .append(",\"p99Micros\":").append(ladder.lastP99Micros()).append(",\"served\":{");
+            for (int r = 0; r < rungs.length; r++) {
+                json.append(r > 0 ? "," : "").append(jsonString(rungs[r])).append(':').append(ladder.served(r));
+            }
+            json.append("}}");
+        }
+        for (Map.Entry<String, MicroBatcher> entry : batchers.entrySet()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(jsonString(entry.getKey())).append(':').append(entry.getValue().metricsJson());
+        }
+        respond(exchange, 200, json.append('}').toString());
+    }
+
+    // A JSON string literal: quotes, backslashes and control characters escaped
+    static String jsonString(String value) {
+        StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (ch < 0x20) {
+                        json.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        json.append(ch);
+                    }
+                }
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    /*
+     * Load check: numClients concurrent clients (virtual threads) send numRequests GET /score
+     * requests per model over loopback, with the rows of the UTAS test set as features, and the
+     * client-side round-trip latencies are printed as p50/p99/max. A warm-up round per model is
+     * not measured.
+     */
+    public void loadCheck(int numRequests, int numClients) throws Exception {
+        Instances rows = DatasetCatalog.load("data/Test DataSets/UTAS/TEST-UTAS-FINAL-424.arff");
+        String[] queries = new String[rows.numInstances()];
+        double[] features = new double[FrustrationFeatures.NUM_FEATURES];
+        for (int i = 0; i < queries.length; i++) {
+            Instance instance = rows.instance(i);
+            FrustrationFeatures.toFeatures(instance, features);
+            StringBuilder query = new StringBuilder("&features=");
+            for (int f = 0; f < features.length; f++) {
+                query.append(f > 0 ? "," : "").append(features[f]);
+            }
+            queries[i] = query.toString();
+        }
+        List<String> names = new ArrayList<>(registry.names());
+        if (ladder != null) {
+            names.add("auto");
+        }
+        String base = "http://127.0.0.1:" + getPort() + "/score?model=";
+        HttpClient client = HttpClient.newHttpClient();
+        System.out.printf("%d requests per model from %d clients%n", numRequests, numClients);
+        System.out.printf("%-20s %10s %10s %10s%n", "model", "p50 us", "p99 us", "max us");
+        for (String name : names) {
+            HttpRequest[] requests = new HttpRequest[queries.length];
+            for (int i = 0; i < queries.length; i++) {
+                requests[i] = HttpRequest.newBuilder(URI.create(base + name + queries[i])).build();
+            }
+            send(client, requests, new long[Math.min(numRequests, 1000)], numClients);
+            long[] latencies = new long[numRequests];
+            send(client, requests, latencies, numClients);
+            Arrays.sort(latencies);
+            System.out.printf("%-20s %10.1f %10.1f %10.1f%n", name, latencies[numRequests / 2] / 1e3,
+                latencies[Math.min(numRequests - 1, (int) (numRequests * 0.99))] / 1e3, latencies[numRequests - 1] / 1e3);
+        }
+    }
+
+    // Send latencies.length requests from numClients virtual threads and record each round trip
+    private static void send(HttpClient client, HttpRequest[] requests, long[] latencies, int numClients) throws Exception {
+        AtomicInteger next = new AtomicInteger();
+        Thread[] clients = new Thread[numClients];
+        Exception[] failure = new Exception[1];
+        for (int c = 0; c < numClients; c++) {
+            clients[c] = Thread.ofVirtual().start(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < latencies.length) {
+                    long start = System.nanoTime();
+                    try {
+                        HttpResponse<String> response = client.send(requests[i % requests.length], HttpResponse.BodyHandlers.ofString());
+                        if (response.statusCode() != 200) {
+                            throw new IOException("HTTP " + response.statusCode() + ": " + response.body());
+                        }
+                    } catch (Exception e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                        return;
+                    }
+                    latencies[i] = System.nanoTime() - start;
+                }
+            });
+        }
+        for (Thread thread : clients) {
+            thread.join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    private static double[] parseFeatures(Map<String, String> parameters) {
+        double[] features = new double[FrustrationFeatures.NUM_FEATURES];
+        String all = parameters.get("features");
+        if (all != null) {
+            String[] values = all.split(",");
+            if (values.length != features.length) {
+                throw new IllegalArgumentException("features needs " + features.length + " values, got " + values.length);
+            }
+            for (int i = 0; i < features.length; i++) {
+                features[i] = Double.parseDouble(values[i].trim());
+            }
+            return features;
+        }
+        for (int i = 0; i < features.length; i++) {
+            String value = parameters.get(FrustrationFeatures.ATTRIBUTE_NAMES[i]);
+            if (value == null) {
+                throw new IllegalArgumentException("missing feature " + FrustrationFeatures.ATTRIBUTE_NAMES[i]);
+            }
+            features[i] = Double.parseDouble(value);
+        }
+        return features;
+    }
+
+    private static Map<String, String> parseParameters(String query) {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        if (query == null || query.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : query.trim().split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    private static String readBody(InputStream body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        body.transferTo(bytes);
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
+
+/* Note:
+
+Every prediction run used to be a fresh JVM that deserialized one model with
+SerializationHelper.read. The server keeps the models resident in a ModelRegistry instead:
+every request asks it for the published version, so a .model file replaced in the models
+directory is served from the next request on, without a restart (and the budget can unload
+models that are not being asked for). Models that do not compile get -pool copies each. The JDK's built-in com.sun.net.httpserver is used (no extra dependency) with
+Executors.newVirtualThreadPerTaskExecutor(), so thousands of concurrent student sessions do not
+each hold a platform thread. A request waiting for a free classifier copy parks only its
+virtual thread (ArrayBlockingQueue uses a ReentrantLock, which does not pin the carrier).
+Requires Java 21.
+With -batch the compiled models are scored through a MicroBatcher each: request threads park on
+their future while one dispatcher scores the queued rows together; GET /metrics reports the
+batch size and queue depth distributions.
+With -ladder, model=auto is scored by a DegradationLadder that steps down to cheaper models when
+its queue or p99 limit is broken and back up once the load has eased; the "model" field of each
+answer is the rung that produced it, and /metrics shows the current rung and how much each served.
+
+Every value written into a response (model names, error messages, which can quote the client's
+input) goes through jsonString, so the answers stay valid JSON whatever the request contained.
+-load-check starts the server on an ephemeral loopback port, scores the UTAS test rows through
+every model from -clients virtual threads and prints the round-trip p50/p99/max, which is how
+the sub-millisecond p99 target is checked (the time includes the HTTP client's own work).
+sun.net.httpserver.nodelay is switched on before the server is created (unless set on the
+command line): with Nagle's algorithm every answer waited about 40 ms for a delayed ACK.
+
+Example:
+curl "http://127.0.0.1:8080/score?model=J48&features=0.5,1,1,0,0,0,1"
+java ScoringServer -batch 64 -load-check 20000 -clients 16
+ *
+ *
+*/
@@ -0,0 +1,412 @@
+/**
+ * Online goodness metrics for labelled predictions that arrive as a stream
+ * Every labelled event updates a fixed set of primitive counters in O(1): the confusion matrix
+ * and, per class, a binned histogram of the class scores of positives and negatives, from which
+ * Cohen's Kappa, Precision, Recall, F-Measure and an approximate AUC are read on demand.
+ * The counters can cover the whole stream, tumbling windows or a sliding window of buckets.
+ * Recording is lock-free: counters are striped per thread in AtomicLongArrays.
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+public class StreamingMetrics {
+
+    public static final int DEFAULT_NUM_BINS = 256;
+
+    // Counters of different stripes are kept at least this many longs (128 bytes) apart
+    private static final int STRIPE_ALIGNMENT = 16;
+
+    /** The counters of one time bucket, one copy per stripe. */
+    private static final class Slice {
+        final long epoch;
+        final AtomicLongArray counters;
+
+        Slice(long epoch, int size) {
+            this.epoch = epoch;
+            this.counters = new AtomicLongArray(size);
+        }
+    }
+
+    private final int numClasses;
+    private final int numBins;
+    private final long bucketMillis;    // 0: a single bucket for the whole stream
+    private final int numBuckets;
+    private final LongSupplier clock;
+
+    // Offsets inside one stripe: [confusion K*K][labelled 1][positive K*bins][negative K*bins]
+    private final int labelledOffset;
+    private final int positiveOffset;
+    private final int negativeOffset;
+    private final int stripeSize;
+    private final int stripeMask;
+
+    private final AtomicReferenceArray<Slice> buckets;
+    private final AtomicLong lateEvents = new AtomicLong();
+
+    private StreamingMetrics(int numClasses, int numBins, long bucketMillis, int numBuckets, LongSupplier clock) {
+        if (numClasses < 2) {
+            throw new IllegalArgumentException("At least two classes are needed, got " + numClasses);
+        }
+        if (numBins < 2) {
+            throw new IllegalArgumentException("At least two score bins are needed, got " + numBins);
+        }
+        if (bucketMillis < 0 || numBuckets < 1) {
+            throw new IllegalArgumentException("Invalid window: " + numBuckets + " buckets of " + bucketMillis + " ms");
+        }
+        this.numClasses = numClasses;
+        this.numBins = numBins;
+        this.bucketMillis = bucketMillis;
+        this.numBuckets = numBuckets;
+        this.clock = clock;
+
+        this.labelledOffset = numClasses * numClasses;
+        this.positiveOffset = labelledOffset + 1;
+        this.negativeOffset = positiveOffset + numClasses * numBins;
+        int size = negativeOffset + numClasses * numBins;
+        this.stripeSize = (size + STRIPE_ALIGNMENT - 1) / STRIPE_ALIGNMENT * STRIPE_ALIGNMENT;
+        int numStripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        this.stripeMask = numStripes - 1;
+        this.buckets = new AtomicReferenceArray<>(numBuckets);
+    }
+
+    // Metrics over every event recorded so far
+    public static StreamingMetrics cumulative(int numClasses, int numBins) {
+        return new StreamingMetrics(numClasses, numBins, 0, 1, System::currentTimeMillis);
+    }
+
+    // Metrics over the current window of windowMillis; the counters restart at every window boundary
+    public static StreamingMetrics tumbling(int numClasses, int numBins, long windowMillis, LongSupplier clock) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("Window length must be positive, got " + windowMillis);
+        }
+        return new StreamingMetrics(numClasses, numBins, windowMillis, 1, clock);
+    }
+
+    // Metrics over the last windowMillis, advanced in numBuckets steps of windowMillis / numBuckets
+    public static StreamingMetrics sliding(int numClasses, int numBins, long windowMillis, int numBuckets, LongSupplier clock) {
+        if (numBuckets < 1 || windowMillis < numBuckets) {
+            throw new IllegalArgumentException("Cannot split a " + windowMillis + " ms window into " + numBuckets + " buckets");
+        }
+        return new StreamingMetrics(numClasses, numBins, windowMillis / numBuckets, numBuckets, clock);
+    }
+
+    public int numClasses() {
+        return numClasses;
+    }
+
+    // Events dropped because their bucket had already been recycled
+    public long lateEvents() {
+        return lateEvents.get();
+    }
+
+    public boolean record(int actual, double[] distribution) {
+        return record(clock.getAsLong(), actual, distribution);
+    }
+
+    /*
+     * Record one labelled prediction at the given time. Returns false if the event is unlabelled
+     * or older than the window. Touches numClasses * 2 + 2 counters, whatever the stream length.
+     */
+    public boolean record(long timeMillis, int actual, double[] distribution) {
+        if (actual < 0 || actual >= numClasses) {
+            return false;
+        }
+        Slice slice = slice(timeMillis);
+        if (slice == null) {
+            lateEvents.incrementAndGet();
+            return false;
+        }
+        AtomicLongArray counters = slice.counters;
+        int base = (int) (Thread.currentThread().threadId() & stripeMask) * stripeSize;
+
+        // Same rule as Evaluation: the first class with the strictly highest positive probability
+        int predicted = -1;
+        double bestProb = 0.0;
+        for (int c = 0; c < numClasses; c++) {
+            if (distribution[c] > bestProb) {
+                predicted = c;
+                bestProb = distribution[c];
+            }
+        }
+        if (predicted >= 0) {
+            counters.getAndIncrement(base + actual * numClasses + predicted);
+        }
+        counters.getAndIncrement(base + labelledOffset);
+        for (int c = 0; c < numClasses; c++) {
+            int histogram = c == actual ? positiveOffset : negativeOffset;
+            counters.getAndIncrement(base + histogram + c * numBins + bin(distribution[c]));
+        }
+        return true;
+    }
+
+    private int bin(double score) {
+        if (!(score > 0.0)) {
+            return 0;
+        }
+        return Math.min(numBins - 1, (int) (score * numBins));
+    }
+
+    // The slice of the event's bucket, recycling it when the ring has moved on; null if too old
+    private Slice slice(long timeMillis) {
+        long epoch = bucketMillis == 0 ? 0 : Math.floorDiv(timeMillis, bucketMillis);
+        int index = (int) Math.floorMod(epoch, (long) numBuckets);
+        while (true) {
+            Slice slice = buckets.get(index);
+            if (slice != null && slice.epoch == epoch) {
+                return slice;
+            }
+            if (slice != null && slice.epoch > epoch) {
+                return null;
+            }
+            Slice fresh = new Slice(epoch, stripeSize * (stripeMask + 1));
+            if (buckets.compareAndSet(index, slice, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    public Snapshot snapshot() {
+        return snapshot(clock.getAsLong());
+    }
+
+    // Sum the stripes of every bucket that is still inside the window at the given time
+    public Snapshot snapshot(long timeMillis) {
+        long currentEpoch = bucketMillis == 0 ? 0 : Math.floorDiv(timeMillis, bucketMillis);
+        long[] sum = new long[stripeSize];
+        for (int b = 0; b < numBuckets; b++) {
+            Slice slice = buckets.get(b);
+            if (slice == null || slice.epoch > currentEpoch || slice.epoch <= currentEpoch - numBuckets) {
+                continue;
+            }
+            for (int stripe = 0; stripe <= stripeMask; stripe++) {
+                int base = stripe * stripeSize;
+                for (int i = 0; i < sum.length; i++) {
+                    sum[i] += slice.counters.get(base + i);
+                }
+            }
+        }
+        double[] confusion = new double[numClasses * numClasses];
+        for (int i = 0; i < confusion.length; i++) {
+            confusion[i] = sum[i];
+        }
+        long[][] positives = new long[numClasses][numBins];
+        long[][] negatives = new long[numClasses][numBins];
+        for (int c = 0; c < numClasses; c++) {
+            System.arraycopy(sum, positiveOffset + c * numBins, positives[c], 0, numBins);
+            System.arraycopy(sum, negativeOffset + c * numBins, negatives[c], 0, numBins);
+        }
+        return new Snapshot(numClasses, confusion, sum[labelledOffset], positives, negatives);
+    }
+
+    /** Metrics of a point-in-time copy of the counters. */
+    public static class Snapshot {
+        private final int numClasses;
+        private final double[] confusion;
+        private final long numLabelled;
+        private final long[][] positives;
+        private final long[][] negatives;
+
+        Snapshot(int numClasses, double[] confusion, long numLabelled, long[][] positives, long[][] negatives) {
+            this.numClasses = numClasses;
+            this.confusion = confusion;
+            this.numLabelled = numLabelled;
+            this.positives = positives;
+            this.negatives = negatives;
+        }
+
+        public long numLabelled() {
+            return numLabelled;
+        }
+
+        public double[] confusionMatrix() {
+            return confusion.clone();
+        }
+
+        public double kappa() {
+            return ClassificationMetrics.kappa(confusion, numClasses, numLabelled);
+        }
+
+        public double precision(int classIndex) {
+            return ClassificationMetrics.precision(confusion, numClasses, classIndex);
+        }
+
+        public double recall(int classIndex) {
+            return ClassificationMetrics.recall(confusion, numClasses, classIndex);
+        }
+
+        public double fMeasure(int classIndex) {
+            return ClassificationMetrics.fMeasure(confusion, numClasses, classIndex);
+        }
+
+        public double weightedPrecision() {
+            return ClassificationMetrics.weightedPrecision(confusion, numClasses);
+        }
+
+        public double weightedRecall() {
+            return ClassificationMetrics.weightedRecall(confusion, numClasses);
+        }
+
+        public double weightedFMeasure() {
+            return ClassificationMetrics.weightedFMeasure(confusion, numClasses);
+        }
+
+        // Mann-Whitney AUC over the score bins; scores sharing a bin count as ties
+        public double areaUnderROC(int classIndex) {
+            double area = 0.0;
+            double negativesBelow = 0.0;
+            double totalPositives = 0.0;
+            for (int b = 0; b < positives[classIndex].length; b++) {
+                double p = positives[classIndex][b];
+                double n = negatives[classIndex][b];
+                area += p * (negativesBelow + 0.5 * n);
+                negativesBelow += n;
+                totalPositives += p;
+            }
+            return area / (negativesBelow * totalPositives);
+        }
+
+        public double averageAUC() {
+            double sumAUC = 0.0;
+            for (int c = 0; c < numClasses; c++) {
+                sumAUC += areaUnderROC(c);
+            }
+            return sumAUC / numClasses;
+        }
+
+        // Per-class AUC weighted by the class proportions, as ModelPredictionCI prints it
+        public double weightedAUC() {
+            double weightedAUC = 0.0;
+            for (int c = 0; c < numClasses; c++) {
+                long classCount = 0;
+                for (long count : positives[c]) {
+                    classCount += count;
+                }
+                if (classCount > 0) {
+                    weightedAUC += areaUnderROC(c) * classCount / numLabelled;
+                }
+            }
+            return weightedAUC;
+        }
+
+        public void print(PrintStream out) {
+            out.println("Labelled instances: " + numLabelled);
+            out.println("Average AUC (binned): " + averageAUC());
+            out.println("Weighted Average AUC (binned): " + weightedAUC());
+            out.println("Cohen's Kappa: " + kappa());
+            out.println("Weighted Average Precision: " + weightedPrecision());
+            out.println("Weighted Average Recall: " + weightedRecall());
+            out.println("Weighted Average F-Measure: " + weightedFMeasure());
+        }
+    }
+
+    /*
+     * Replay a test set as a labelled stream (one event every -interval ms of simulated time)
+     * from -threads threads and compare the streaming metrics with the exact ones.
+     */
+    public static void main(String[] args) {
+        try {
+            String modelPath = Utils.getOption("model", args);
+            if (modelPath.length() == 0) {
+                modelPath = "models/CostSensitive_BN_model_Trained.model";
+            }
+            String inputPath = Utils.getOption("input", args);
+            if (inputPath.length() == 0) {
+                inputPath = "data/Test DataSets/UTAS/TEST-UTAS-FINAL-424.arff";
+            }
+            String bins = Utils.getOption("bins", args);
+            int numBins = bins.length() == 0 ? DEFAULT_NUM_BINS : Integer.parseInt(bins);
+            String threads = Utils.getOption("threads", args);
+            int numThreads = threads.length() == 0 ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads);
+            String interval = Utils.getOption("interval", args);
+            long intervalMillis = interval.length() == 0 ? 10 : Long.parseLong(interval);
+
+            Classifier classifier = (Classifier) SerializationHelper.read(modelPath);
+            Instances inputData = DatasetCatalog.load(inputPath);
+            PredictionCache cache = PredictionCache.predict(classifier, inputData);
+            int numClasses = cache.numClasses();
+            int numInstances = cache.numInstances();
+
+            long streamMillis = numInstances * intervalMillis;
+            StreamingMetrics total = cumulative(numClasses, numBins);
+            StreamingMetrics lastQuarter = sliding(numClasses, numBins, streamMillis / 4, 8, System::currentTimeMillis);
+
+            AtomicInteger next = new AtomicInteger();
+            Thread[] workers = new Thread[numThreads];
+            long start = System.nanoTime();
+            for (int t = 0; t < numThreads; t++) {
+                workers[t] = new Thread(() -> {
+                    double[] distribution = new double[numClasses];
+                    int i;
+                    while ((i = next.getAndIncrement()) < numInstances) {
+                        for (int c = 0; c < numClasses; c++) {
+                            distribution[c] = cache.score(i, c);
+                        }
+                        total.record(i * intervalMillis, cache.actual(i), distribution);
+                        lastQuarter.record(i * intervalMillis, cache.actual(i), distribution);
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            double[] confusion = new double[numClasses * numClasses];
+            double labelled = cache.confusionMatrix(null, confusion);
+            System.out.println("=== Exact (PredictionCache) ===");
+            System.out.println("Labelled instances: " + (long) labelled);
+            System.out.println("Average AUC: " + cache.averageAUC(null));
+            System.out.println("Cohen's Kappa: " + ClassificationMetrics.kappa(confusion, numClasses, labelled));
+            System.out.println("Weighted Average F-Measure: " + ClassificationMetrics.weightedFMeasure(confusion, numClasses));
+            System.out.println("\n=== Streaming, whole stream (" + numBins + " bins, " + numThreads + " threads) ===");
+            total.snapshot().print(System.out);
+            System.out.println("\n=== Streaming, sliding window over the last quarter of the stream ===");
+            lastQuarter.snapshot((numInstances - 1) * intervalMillis).print(System.out);
+            System.out.println("Late events dropped: " + lastQuarter.lateEvents());
+            System.err.printf("%d events recorded twice in %.2f ms%n", numInstances, elapsed / 1e6);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/* Note:
+
+ModelPredictionCI gets every metric from a finished Evaluation over a test set held in memory.
+When the labels come in later, one by one, the same numbers can be kept up to date instead:
+the confusion matrix gives Kappa and the (weighted) Precision, Recall and F-Measure exactly,
+and the AUC comes from per-class score histograms (Mann-Whitney over the bins, scores in the
+same bin counted as ties). With 256 bins the AUC differs from the exact one in the third decimal
+at most on the bundled test sets.
+
+Windows: the counters live in a ring of time buckets. An event goes to bucket
+floor(time / bucketMillis); when the ring wraps, the first writer swaps in a fresh bucket with
+compareAndSet. A snapshot sums the buckets still inside the window.
+Events older than the oldest bucket are counted in lateEvents() and dropped; a writer that read
+the old bucket just before it was swapped out can lose its increments, which is the price of not
+locking the ring. Tumbling windows are one
+bucket the length of the window; cumulative metrics are one bucket that never expires.
+
+Contention: each thread increments its own stripe of the bucket's AtomicLongArray (chosen by
+thread id, stripes padded to 128 bytes), so concurrent scorers rarely touch the same cache line
+and no thread ever blocks. Reading a snapshot sums the stripes.
+
+Example:
+java StreamingMetrics -model models/RandomForest_model_trained.model -input "data/Test DataSets/ReSampled/EmoDetect/ReSampled-10%.arff" -bins 512 -threads 4
+ *
+ *
+*/
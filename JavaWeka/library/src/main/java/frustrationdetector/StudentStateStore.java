@@ -0,0 +1,511 @@
+/**
+ * Off-heap, sharded store of fixed-width records keyed by a primitive long (the student id)
+ * Each shard is an open-addressing (linear probing) hash table in one direct ByteBuffer, guarded
+ * by its own lock: a slot is the 8 byte key followed by recordWidth 8 byte fields, so millions of
+ * students cost no Java objects and no boxing. The whole store can be snapshotted to a file and
+ * restored from it with a memory mapping.
+ * Run as a program it fills a store from several threads, snapshots, restores and checks it.
+ * Options: -students <number of keys> -threads <threads> -file <snapshot file>
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.core.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongPredicate;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+public class StudentStateStore {
+
+    public static final int MAGIC = 0x53534446;   // "FDSS"
+    public static final int VERSION = 1;
+    public static final int DEFAULT_NUM_SHARDS = 64;
+    public static final int DEFAULT_SHARD_CAPACITY = 1024;
+
+    // Marks a free slot; the one key value the store cannot hold
+    public static final long EMPTY = Long.MIN_VALUE;
+
+    static final int HEADER_SIZE = 32;
+    private static final int SHARD_HEADER_SIZE = 8;
+    private static final int MAX_LOAD_PERCENT = 75;
+
+    /*
+     * One lock-protected hash table. Every method except lock()/unlock() must be called with the
+     * lock held; a slot number stays valid until the next insert or remove on the shard.
+     */
+    public static final class Shard {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final int recordWidth;
+        private final int slotBytes;
+        private ByteBuffer table;
+        private int capacity;   // power of two
+        private int size;
+
+        Shard(int recordWidth, int capacity) {
+            this.recordWidth = recordWidth;
+            this.slotBytes = 8 * (recordWidth + 1);
+            this.table = newTable(capacity);
+            this.capacity = capacity;
+        }
+
+        Shard(int recordWidth, ByteBuffer table, int capacity, int size) {
+            this.recordWidth = recordWidth;
+            this.slotBytes = 8 * (recordWidth + 1);
+            this.table = table;
+            this.capacity = capacity;
+            this.size = size;
+        }
+
+        private ByteBuffer newTable(int capacity) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(capacity * slotBytes).order(ByteOrder.LITTLE_ENDIAN);
+            for (int slot = 0; slot < capacity; slot++) {
+                buffer.putLong(slot * slotBytes, EMPTY);
+            }
+            return buffer;
+        }
+
+        public void lock() {
+            lock.lock();
+        }
+
+        public void unlock() {
+            lock.unlock();
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private long keyAt(int slot) {
+            return table.getLong(slot * slotBytes);
+        }
+
+        // Slot of the key, or -1 if it is not in the shard
+        public int find(long key) {
+            int mask = capacity - 1;
+            for (int slot = (int) hash(key) & mask; ; slot = (slot + 1) & mask) {
+                long k = keyAt(slot);
+                if (k == key) {
+                    return slot;
+                }
+                if (k == EMPTY) {
+                    return -1;
+                }
+            }
+        }
+
+        // Slot of the key, adding it with an all-zero record if it is new
+        public int insert(long key) {
+            if (key == EMPTY) {
+                throw new IllegalArgumentException("Key " + EMPTY + " is reserved");
+            }
+            int slot = find(key);
+            if (slot >= 0) {
+                return slot;
+            }
+            if ((size + 1) * 100L > (long) capacity * MAX_LOAD_PERCENT) {
+                grow();
+            }
+            size++;
+            return place(table, capacity, key);
+        }
+
+        private int place(ByteBuffer target, int targetCapacity, long key) {
+            int mask = targetCapacity - 1;
+            int slot = (int) hash(key) & mask;
+            while (target.getLong(slot * slotBytes) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            target.putLong(slot * slotBytes, key);
+            for (int field = 0; field < recordWidth; field++) {
+                target.putLong(slot * slotBytes + 8 + 8 * field, 0L);
+            }
+            return slot;
+        }
+
+        private void grow() {
+            if (capacity > (Integer.MAX_VALUE / 2) / slotBytes) {
+                throw new IllegalStateException("Shard full: " + size + " keys");
+            }
+            int newCapacity = capacity * 2;
+            ByteBuffer larger = newTable(newCapacity);
+            for (int slot = 0; slot < capacity; slot++) {
+                long key = keyAt(slot);
+                if (key != EMPTY) {
+                    int target = place(larger, newCapacity, key);
+                    for (int field = 0; field < recordWidth; field++) {
+                        larger.putLong(target * slotBytes + 8 + 8 * field, table.getLong(slot * slotBytes + 8 + 8 * field));
+                    }
+                }
+            }
+            table = larger;
+            capacity = newCapacity;
+        }
+
+        // Remove the key; later keys of its probe run are shifted back, so no tombstones are left
+        public boolean remove(long key) {
+            int hole = find(key);
+            if (hole < 0) {
+                return false;
+            }
+            int mask = capacity - 1;
+            int slot = hole;
+            while (true) {
+                slot = (slot + 1) & mask;
+                long k = keyAt(slot);
+                if (k == EMPTY) {
+                    break;
+                }
+                int home = (int) hash(k) & mask;
+                // k may move into the hole unless its home slot lies cyclically in (hole, slot]
+                boolean homeBetween = hole <= slot ? (home > hole && home <= slot) : (home > hole || home <= slot);
+                if (!homeBetween) {
+                    for (int offset = 0; offset < slotBytes; offset += 8) {
+                        table.putLong(hole * slotBytes + offset, table.getLong(slot * slotBytes + offset));
+                    }
+                    hole = slot;
+                }
+            }
+            table.putLong(hole * slotBytes, EMPTY);
+            size--;
+            return true;
+        }
+
+        /*
+         * Remove every key that matches. A removal shifts later keys of the probe run back into
+         * the freed slot, so the slot is looked at again before the scan moves on; keys that wrap
+         * around to the start of the table land in slots already scanned, which hold no matches.
+         */
+        public int removeIf(LongPredicate matches) {
+            int removed = 0;
+            int slot = 0;
+            while (slot < capacity) {
+                long key = keyAt(slot);
+                if (key != EMPTY && matches.test(key)) {
+                    remove(key);
+                    removed++;
+                } else {
+                    slot++;
+                }
+            }
+            return removed;
+        }
+
+        public long getLong(int slot, int field) {
+            return table.getLong(slot * slotBytes + 8 + 8 * field);
+        }
+
+        public void putLong(int slot, int field, long value) {
+            table.putLong(slot * slotBytes + 8 + 8 * field, value);
+        }
+
+        public double getDouble(int slot, int field) {
+            return table.getDouble(slot * slotBytes + 8 + 8 * field);
+        }
+
+        public void putDouble(int slot, int field, double value) {
+            table.putDouble(slot * slotBytes + 8 + 8 * field, value);
+        }
+    }
+
+    private final int recordWidth;
+    private final Shard[] shards;
+
+    public StudentStateStore(int recordWidth) {
+        this(recordWidth, DEFAULT_NUM_SHARDS, DEFAULT_SHARD_CAPACITY);
+    }
+
+    public StudentStateStore(int recordWidth, int numShards, int shardCapacity) {
+        if (recordWidth < 1) {
+            throw new IllegalArgumentException("Record width must be at least 1, got " + recordWidth);
+        }
+        if (Integer.bitCount(numShards) != 1 || Integer.bitCount(shardCapacity) != 1) {
+            throw new IllegalArgumentException("Shard count and capacity must be powers of two");
+        }
+        this.recordWidth = recordWidth;
+        this.shards = new Shard[numShards];
+        for (int s = 0; s < numShards; s++) {
+            shards[s] = new Shard(recordWidth, shardCapacity);
+        }
+    }
+
+    private StudentStateStore(int recordWidth, Shard[] shards) {
+        this.recordWidth = recordWidth;
+        this.shards = shards;
+    }
+
+    // SplitMix64 finalizer: consecutive student ids spread over all shards and slots
+    static long hash(long key) {
+        key = (key ^ (key >>> 30)) * 0xbf58476d1ce4e5b9L;
+        key = (key ^ (key >>> 27)) * 0x94d049bb133111ebL;
+        return key ^ (key >>> 31);
+    }
+
+    public int recordWidth() {
+        return recordWidth;
+    }
+
+    // The shard that owns the key (the high bits of its hash; the low bits pick the slot)
+    public Shard shard(long key) {
+        return shards[(int) (hash(key) >>> 32) & (shards.length - 1)];
+    }
+
+    public long size() {
+        long size = 0;
+        for (Shard shard : shards) {
+            shard.lock();
+            try {
+                size += shard.size;
+            } finally {
+                shard.unlock();
+            }
+        }
+        return size;
+    }
+
+    // Remove every key that matches from every shard, one shard lock at a time; returns how many
+    public long removeIf(LongPredicate matches) {
+        long removed = 0;
+        for (Shard shard : shards) {
+            shard.lock();
+            try {
+                removed += shard.removeIf(matches);
+            } finally {
+                shard.unlock();
+            }
+        }
+        return removed;
+    }
+
+    /*
+     * Write every shard to the file: a 32 byte header (magic, version, record width, shard count,
+     * payload length, CRC32) then, per shard, its capacity and size and its raw table. Shards are
+     * handled one at a time: copied under their own lock into one scratch buffer (sized for the
+     * largest shard) and written from it, so the snapshot needs one shard's worth of extra memory
+     * and no single buffer or mapping spans the file. The file is written next to the target and
+     * moved into place.
+     */
+    public void snapshot(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temporary = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try {
+            ByteBuffer scratch = ByteBuffer.allocateDirect(0);
+            ByteBuffer shardHeader = ByteBuffer.allocate(SHARD_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            CRC32 crc = new CRC32();
+            long position = HEADER_SIZE;
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                for (Shard shard : shards) {
+                    int size;
+                    shard.lock();
+                    try {
+                        // The shard lock is only held for one memory copy
+                        if (scratch.capacity() < shard.table.capacity()) {
+                            scratch = ByteBuffer.allocateDirect(shard.table.capacity());
+                        }
+                        scratch.clear();
+                        scratch.put(shard.table.duplicate().clear()).flip();
+                        size = shard.size;
+                    } finally {
+                        shard.unlock();
+                    }
+                    shardHeader.clear();
+                    shardHeader.putInt(scratch.remaining() / shard.slotBytes).putInt(size).flip();
+                    crc.update(shardHeader.duplicate());
+                    crc.update(scratch.duplicate());
+                    position += writeFully(channel, shardHeader, position);
+                    position += writeFully(channel, scratch, position);
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putInt(recordWidth).putInt(shards.length);
+                header.putLong(position - HEADER_SIZE).putLong(crc.getValue()).flip();
+                writeFully(channel, header, 0);
+                channel.force(true);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    /*
+     * Map a snapshot and serve the shards straight from the mapping, one mapping per shard (a
+     * single mapping is limited to 2 GB). The mappings are private (copy-on-write): updates after
+     * the restore never reach the file, and a shard that grows moves to a fresh direct buffer.
+     */
+    public static StudentStateStore restore(Path path, int recordWidth) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return restore(path, channel, recordWidth);
+        }
+    }
+
+    private static StudentStateStore restore(Path path, FileChannel channel, int recordWidth) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < HEADER_SIZE) {
+            throw new IOException(path + ": not a state snapshot (too short)");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer, 0);
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException(path + ": not a state snapshot (bad magic number)");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException(path + ": unsupported format version " + version + " (expected " + VERSION + ")");
+        }
+        if (buffer.getInt(8) != recordWidth) {
+            throw new IOException(path + ": records of " + buffer.getInt(8) + " fields, expected " + recordWidth);
+        }
+        int numShards = buffer.getInt(12);
+        if (Integer.bitCount(numShards) != 1) {
+            throw new IOException(path + ": bad shard count " + numShards);
+        }
+        if (buffer.getLong(16) != fileSize - HEADER_SIZE) {
+            throw new IOException(path + ": truncated (payload of " + buffer.getLong(16) + " bytes expected)");
+        }
+        long expectedCrc = buffer.getLong(24);
+
+        int slotBytes = 8 * (recordWidth + 1);
+        Shard[] shards = new Shard[numShards];
+        CRC32 crc = new CRC32();
+        ByteBuffer shardHeader = ByteBuffer.allocate(SHARD_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long position = HEADER_SIZE;
+        for (int s = 0; s < numShards; s++) {
+            if (position + SHARD_HEADER_SIZE > fileSize) {
+                throw new IOException(path + ": shard " + s + " is corrupt");
+            }
+            shardHeader.clear();
+            readFully(channel, shardHeader, position);
+            crc.update(shardHeader.flip().duplicate());
+            int capacity = shardHeader.getInt(0);
+            int size = shardHeader.getInt(4);
+            position += SHARD_HEADER_SIZE;
+            long tableBytes = (long) capacity * slotBytes;
+            if (Integer.bitCount(capacity) != 1 || size >= capacity || tableBytes > Integer.MAX_VALUE || position + tableBytes > fileSize) {
+                throw new IOException(path + ": shard " + s + " is corrupt");
+            }
+            MappedByteBuffer table = channel.map(FileChannel.MapMode.PRIVATE, position, tableBytes);
+            crc.update(table.duplicate());
+            shards[s] = new Shard(recordWidth, table.order(ByteOrder.LITTLE_ENDIAN), capacity, size);
+            position += tableBytes;
+        }
+        if (crc.getValue() != expectedCrc) {
+            throw new IOException(path + ": checksum mismatch");
+        }
+        return new StudentStateStore(recordWidth, shards);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            String students = Utils.getOption("students", args);
+            int numStudents = students.length() == 0 ? 1000000 : Integer.parseInt(students);
+            String threads = Utils.getOption("threads", args);
+            int numThreads = threads.length() == 0 ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads);
+            String file = Utils.getOption("file", args);
+            Path path = Paths.get(file.length() == 0 ? "models/binary/student-state.fds" : file);
+
+            // Two fields per student: an event count and a running sum
+            StudentStateStore store = new StudentStateStore(2);
+            AtomicInteger next = new AtomicInteger();
+            Thread[] workers = new Thread[numThreads];
+            long start = System.nanoTime();
+            for (int t = 0; t < numThreads; t++) {
+                workers[t] = new Thread(() -> {
+                    int i;
+                    while ((i = next.getAndIncrement()) < 2 * numStudents) {
+                        long student = i % numStudents;
+                        Shard shard = store.shard(student);
+                        shard.lock();
+                        try {
+                            int slot = shard.insert(student);
+                            shard.putLong(slot, 0, shard.getLong(slot, 0) + 1);
+                            shard.putDouble(slot, 1, shard.getDouble(slot, 1) + student * 0.5);
+                        } finally {
+                            shard.unlock();
+                        }
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            System.out.printf("%d updates of %d students on %d threads: %.1f ms%n",
+                2L * numStudents, store.size(), numThreads, (System.nanoTime() - start) / 1e6);
+
+            start = System.nanoTime();
+            store.snapshot(path);
+            System.out.printf("Snapshot to %s (%d KB): %.1f ms%n", path, Files.size(path) / 1024, (System.nanoTime() - start) / 1e6);
+            start = System.nanoTime();
+            StudentStateStore restored = restore(path, 2);
+            System.out.printf("Restore: %.1f ms%n", (System.nanoTime() - start) / 1e6);
+
+            boolean match = restored.size() == numStudents;
+            for (long student = 0; student < numStudents && match; student++) {
+                Shard shard = restored.shard(student);
+                shard.lock();
+                try {
+                    int slot = shard.find(student);
+                    match = slot >= 0 && shard.getLong(slot, 0) == 2 && shard.getDouble(slot, 1) == student * 1.0;
+                } finally {
+                    shard.unlock();
+                }
+            }
+            System.out.println("Restored state " + (match ? "matches" : "DOES NOT MATCH"));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/* Note:
+
+A HashMap<Long, double[]> per student costs a boxed key, an entry, an array header and a share of
+the map's table, all of which the collector has to trace. Here a student is one slot of
+8 * (recordWidth + 1) bytes in a direct buffer outside the Java heap; the only objects are the
+shards themselves.
+
+Concurrency: the key's hash picks one of DEFAULT_NUM_SHARDS shards, each with its own
+ReentrantLock, so threads working on different students rarely wait on each other. A caller locks
+the shard, finds or inserts the key and reads or writes the fields in place, which makes a
+multi-field update of one record atomic without copying it.
+
+Snapshot and restore: the tables are copied out shard by shard into one reusable scratch buffer
+and written from it at their file offsets, then the file is moved into place, so a crash never
+leaves a half-written snapshot and the extra memory is one shard, not the whole store. Restore
+maps every shard's table on its own (each is under 2 GB, the file may be larger), checks the
+CRC32 and then uses the mapped tables as they are, so restarting with millions of students costs
+one mapping per shard and one checksum pass.
+ *
+ *
+*/
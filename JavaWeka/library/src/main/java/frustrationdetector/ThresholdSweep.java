@@ -0,0 +1,318 @@
+/**
+ * Decision threshold and cost ratio sweep without retraining
+ * The bundled cost-sensitive models were trained with the cost matrix [0.0 1.0; 3.0 0.0]
+ * (a missed frustrated student costs three false alarms). This program scores every model on
+ * a dataset once, sorts the P(yes) scores once and, in one linear pass over them, finds the
+ * threshold of least expected cost for each of hundreds of false-negative cost ratios, with the
+ * precision, recall, F-Measure and Kappa of the yes class at that threshold.
+ * Options: -model <comma separated model names> -dataset <comma separated dataset names> -cost <FN cost, FP cost = 1> -ratios <min:max:count> -output <csv file>
+ * @author Mohammad Mustaneer Rahman
+ */
+
+package frustrationdetector;
+
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import java.io.BufferedWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public class ThresholdSweep {
+
+    // Cost of a false negative relative to a false positive in the matrix of the bundled models
+    public static final double DEFAULT_COST_RATIO = 3.0;
+    public static final String DEFAULT_RATIOS = "0.25:16:241";
+
+    // ASSISTments (the training set), UTAS and EmoDetect
+    public static final String[] DEFAULT_DATASETS = {
+        "Affect_Clip_Labels_important-7-features",
+        "TEST-UTAS-FINAL-424",
+        "TEST-EmoDetect-FINAL-300"
+    };
+
+    /** The cheapest threshold for one cost ratio: predict yes when P(yes) >= threshold. */
+    public static final class OperatingPoint {
+        private final double costRatio;
+        private final double threshold;
+        private final double[] confusion;   // confusion[actual * 2 + predicted], as in ClassificationMetrics
+
+        OperatingPoint(double costRatio, double threshold, double truePositives, double falsePositives, int numPositive, int numNegative) {
+            this.costRatio = costRatio;
+            this.threshold = threshold;
+            this.confusion = new double[4];
+            confusion[FrustrationFeatures.NO * 2 + FrustrationFeatures.NO] = numNegative - falsePositives;
+            confusion[FrustrationFeatures.NO * 2 + FrustrationFeatures.YES] = falsePositives;
+            confusion[FrustrationFeatures.YES * 2 + FrustrationFeatures.NO] = numPositive - truePositives;
+            confusion[FrustrationFeatures.YES * 2 + FrustrationFeatures.YES] = truePositives;
+        }
+
+        public double getCostRatio() {
+            return costRatio;
+        }
+
+        public double getThreshold() {
+            return threshold;
+        }
+
+        public double getFalsePositives() {
+            return confusion[FrustrationFeatures.NO * 2 + FrustrationFeatures.YES];
+        }
+
+        public double getFalseNegatives() {
+            return confusion[FrustrationFeatures.YES * 2 + FrustrationFeatures.NO];
+        }
+
+        // Expected cost per instance, in units of one false positive
+        public double getCost() {
+            return (getFalsePositives() + costRatio * getFalseNegatives()) / total();
+        }
+
+        public double getPrecision() {
+            return ClassificationMetrics.precision(confusion, 2, FrustrationFeatures.YES);
+        }
+
+        public double getRecall() {
+            return ClassificationMetrics.recall(confusion, 2, FrustrationFeatures.YES);
+        }
+
+        public double getFMeasure() {
+            return ClassificationMetrics.fMeasure(confusion, 2, FrustrationFeatures.YES);
+        }
+
+        public double getKappa() {
+            return ClassificationMetrics.kappa(confusion, 2, total());
+        }
+
+        private double total() {
+            return confusion[0] + confusion[1] + confusion[2] + confusion[3];
+        }
+    }
+
+    private final double[] scores;      // P(yes) of the labelled instances, descending
+    private final boolean[] positive;   // actual class is yes, in the same order
+    private final int numPositive;
+    private final int numNegative;
+
+    // Sort the cached P(yes) scores once; instances with a missing class are left out
+    public ThresholdSweep(PredictionCache cache) {
+        if (cache.numClasses() != 2) {
+            throw new IllegalArgumentException("The sweep needs a two-class dataset, got " + cache.numClasses() + " classes");
+        }
+        int numLabelled = 0;
+        for (int i = 0; i < cache.numInstances(); i++) {
+            if (cache.actual(i) >= 0) {
+                numLabelled++;
+            }
+        }
+        Integer[] order = new Integer[numLabelled];
+        for (int i = 0, k = 0; i < cache.numInstances(); i++) {
+            if (cache.actual(i) >= 0) {
+                order[k++] = i;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(cache.score(b, FrustrationFeatures.YES), cache.score(a, FrustrationFeatures.YES)));
+        this.scores = new double[numLabelled];
+        this.positive = new boolean[numLabelled];
+        int positives = 0;
+        for (int k = 0; k < numLabelled; k++) {
+            scores[k] = cache.score(order[k], FrustrationFeatures.YES);
+            positive[k] = cache.actual(order[k]) == FrustrationFeatures.YES;
+            if (positive[k]) {
+                positives++;
+            }
+        }
+        this.numPositive = positives;
+        this.numNegative = numLabelled - positives;
+    }
+
+    /*
+     * One pass down the sorted scores. Each distinct score is a candidate threshold; after all
+     * rows with that score are counted as predicted yes, the cost of the cut is checked against
+     * the best so far of every ratio. The first (highest) threshold wins ties. The cut above the
+     * highest score (threshold +Infinity, never predict yes) is the starting point.
+     */
+    public OperatingPoint[] sweep(double[] costRatios) {
+        int numRatios = costRatios.length;
+        double[] bestCost = new double[numRatios];
+        double[] bestThreshold = new double[numRatios];
+        int[] bestTruePositives = new int[numRatios];
+        int[] bestFalsePositives = new int[numRatios];
+        for (int r = 0; r < numRatios; r++) {
+            bestCost[r] = costRatios[r] * numPositive;
+            bestThreshold[r] = Double.POSITIVE_INFINITY;
+        }
+
+        int truePositives = 0;
+        int falsePositives = 0;
+        int k = 0;
+        while (k < scores.length) {
+            double threshold = scores[k];
+            while (k < scores.length && scores[k] == threshold) {
+                if (positive[k]) {
+                    truePositives++;
+                } else {
+                    falsePositives++;
+                }
+                k++;
+            }
+            int falseNegatives = numPositive - truePositives;
+            for (int r = 0; r < numRatios; r++) {
+                double cost = falsePositives + costRatios[r] * falseNegatives;
+                if (cost < bestCost[r]) {
+                    bestCost[r] = cost;
+                    bestThreshold[r] = threshold;
+                    bestTruePositives[r] = truePositives;
+                    bestFalsePositives[r] = falsePositives;
+                }
+            }
+        }
+
+        OperatingPoint[] points = new OperatingPoint[numRatios];
+        for (int r = 0; r < numRatios; r++) {
+            points[r] = new OperatingPoint(costRatios[r], bestThreshold[r], bestTruePositives[r], bestFalsePositives[r], numPositive, numNegative);
+        }
+        return points;
+    }
+
+    // The operating point of a fixed threshold (e.g. 0.5, the argmax rule of the trained model)
+    public OperatingPoint at(double costRatio, double threshold, boolean inclusive) {
+        int truePositives = 0;
+        int falsePositives = 0;
+        for (int k = 0; k < scores.length && (inclusive ? scores[k] >= threshold : scores[k] > threshold); k++) {
+            if (positive[k]) {
+                truePositives++;
+            } else {
+                falsePositives++;
+            }
+        }
+        return new OperatingPoint(costRatio, threshold, truePositives, falsePositives, numPositive, numNegative);
+    }
+
+    // count ratios spaced evenly on a log scale from min to max, plus any extra ratios, sorted
+    public static double[] costRatios(String range, double... extra) {
+        String[] parts = range.split(":");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Cost ratios must be given as min:max:count, got " + range);
+        }
+        double min = Double.parseDouble(parts[0]);
+        double max = Double.parseDouble(parts[1]);
+        int count = Integer.parseInt(parts[2]);
+        if (min <= 0 || max < min || count < 1) {
+            throw new IllegalArgumentException("Invalid cost ratio range " + range);
+        }
+        double[] ratios = new double[count + extra.length];
+        for (int i = 0; i < count; i++) {
+            ratios[i] = count == 1 ? min : min * Math.pow(max / min, i / (double) (count - 1));
+        }
+        System.arraycopy(extra, 0, ratios, count, extra.length);
+        Arrays.sort(ratios);
+        return ratios;
+    }
+
+    public static void main(String[] args) {
+        try {
+            String modelList = Utils.getOption("model", args);
+            String[] modelNames;
+            if (modelList.length() == 0) {
+                modelNames = new String[ModelInspector.MODEL_PATHS.length];
+                for (int m = 0; m < modelNames.length; m++) {
+                    modelNames[m] = ModelInspector.modelName(ModelInspector.MODEL_PATHS[m]);
+                }
+            } else {
+                modelNames = modelList.split(",");
+            }
+            String datasetList = Utils.getOption("dataset", args);
+            String[] datasetNames = datasetList.length() == 0 ? DEFAULT_DATASETS : datasetList.split(",");
+            String cost = Utils.getOption("cost", args);
+            double costRatio = cost.length() == 0 ? DEFAULT_COST_RATIO : Double.parseDouble(cost);
+            String range = Utils.getOption("ratios", args);
+            double[] ratios = costRatios(range.length() == 0 ? DEFAULT_RATIOS : range, costRatio);
+            int chosen = Arrays.binarySearch(ratios, costRatio);
+            String outputPath = Utils.getOption("output", args);
+
+            Classifier[] classifiers = new Classifier[modelNames.length];
+            for (int m = 0; m < modelNames.length; m++) {
+                classifiers[m] = (Classifier) SerializationHelper.read(ModelInspector.modelPath(modelNames[m]));
+            }
+
+            Writer csv = outputPath.length() == 0 ? null : new BufferedWriter(Files.newBufferedWriter(Paths.get(outputPath), StandardCharsets.UTF_8));
+            try {
+                if (csv != null) {
+                    csv.write("model,dataset,cost_ratio,threshold,cost,precision,recall,f_measure,kappa\n");
+                }
+                for (String datasetName : datasetNames) {
+                    Instances data = DatasetCatalog.load(DatasetCatalog.path(datasetName));
+                    System.out.printf("=== %s (%d instances), FN cost %s, %d ratios swept ===%n", datasetName, data.numInstances(), costRatio, ratios.length);
+                    System.out.printf("%-18s %10s %10s %10s %8s %8s %8s %8s %8s%n",
+                        "Model", "threshold", "cost", "cost@0.5", "P", "R", "F", "Kappa", "sweep ms");
+                    String bestModel = null;
+                    OperatingPoint bestPoint = null;
+                    for (int m = 0; m < modelNames.length; m++) {
+                        // A fresh compiled scorer per dataset, so history-dependent scorers (KNN) start clean
+                        PredictionCache cache = ModelCompiler.canCompile(classifiers[m])
+                            ? PredictionCache.predict(ModelCompiler.compile(classifiers[m]), data)
+                            : PredictionCache.predict(classifiers[m], data);
+                        long start = System.nanoTime();
+                        ThresholdSweep sweep = new ThresholdSweep(cache);
+                        OperatingPoint[] points = sweep.sweep(ratios);
+                        double millis = (System.nanoTime() - start) / 1e6;
+
+                        OperatingPoint point = points[chosen];
+                        // The trained model's own rule: yes when P(yes) > P(no)
+                        OperatingPoint argmax = sweep.at(costRatio, 0.5, false);
+                        System.out.printf("%-18s %10.4g %10.4f %10.4f %8.4f %8.4f %8.4f %8.4f %8.2f%n", modelNames[m],
+                            point.getThreshold(), point.getCost(), argmax.getCost(), point.getPrecision(),
+                            point.getRecall(), point.getFMeasure(), point.getKappa(), millis);
+                        if (bestPoint == null || point.getCost() < bestPoint.getCost()) {
+                            bestModel = modelNames[m];
+                            bestPoint = point;
+                        }
+                        if (csv != null) {
+                            for (OperatingPoint p : points) {
+                                csv.write(modelNames[m] + "," + datasetName + "," + p.getCostRatio() + "," + p.getThreshold() + ","
+                                    + p.getCost() + "," + p.getPrecision() + "," + p.getRecall() + "," + p.getFMeasure() + "," + p.getKappa() + "\n");
+                            }
+                        }
+                    }
+                    System.out.printf("Optimal operating point: %s with P(yes) >= %.4g (cost %.4f per instance)%n%n",
+                        bestModel, bestPoint.getThreshold(), bestPoint.getCost());
+                }
+            } finally {
+                if (csv != null) {
+                    csv.close();
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/* Note:
+
+Only the ratio of the two misclassification costs moves the decision, so the false positive cost
+is fixed at 1 and -cost is the false negative cost (3 for the bundled [0.0 1.0; 3.0 0.0]
+matrix). Costs are reported per instance in false positive units.
+
+For a calibrated model the cheapest threshold would be 1 / (1 + ratio), 0.25 for the bundled
+matrix; the sweep finds the empirical one on the dataset instead, which also covers models whose
+scores are not probabilities in that sense (the RandomForest votes, the CostSensitive wrappers
+trained on reweighted data). "cost@0.5" is the model's own argmax rule for comparison.
+
+Work per model and dataset: one scoring pass, one sort (n log n) and a pass over the n sorted
+scores that updates all R ratios at every distinct score (n * R). With R = 242 and the 2633
+ASSISTments rows that is well under a million updates, a few milliseconds. A threshold of
+Infinity means no instance is worth flagging at that ratio (precision is then undefined). Thresholds chosen on the data
+they are reported on are optimistic; pick on ASSISTments and check on UTAS/EmoDetect.
+
+Example:
+java ThresholdSweep -model CostSensitive_NB,CostSensitive_BN -cost 5 -output sweep.csv
+ *
+ *
+*/